@@ -0,0 +1,365 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Evaluation by an efficiently updatable neural network (NNUE)
+ * <p>
+ * The inputs are one feature per piece type, color and square, seen from each side in turn: for Black the board is
+ * mirrored and the colors swapped, so both sides share the first layer's weights. The first layer's sums, the
+ * accumulator, are kept for every depth of the position. A move changes at most three features, so the accumulator
+ * of a depth is the one below it plus and minus a few weight rows; accumulators are brought up to date when a
+ * position is evaluated, starting from the deepest one still valid for the line being searched.
+ * <p>
+ * The accumulators of the side to move and of the other side, clipped to [0, 1], feed a small dense layer with ReLU
+ * and one output in centipawns. Both layers use the Vector API, so compiling and running need
+ * --add-modules jdk.incubator.vector; this class is kept out of src and loaded by name with Evaluator.network(), so
+ * that everything else builds without the module. The weights file is memory-mapped and copied once into arrays shared by all
+ * copies of the evaluator, as vector loads from arrays are about twice as fast as from a buffer.
+ * <p>
+ * Layout, little-endian: magic "NNUE", version(int), hidden size(int), layer size(int), then feature weights
+ * short[FEATURES][hidden] and biases short[hidden] scaled by ONE, layer weights float[layer][2 * hidden] and biases
+ * float[layer], output weights float[layer] and bias(float).
+ */
+final class Nnue extends Evaluator {
+    static final int FEATURES = 12 * 64;
+    // Quantized first-layer activation of 1.0
+    static final int ONE      = 127;
+
+    private static final byte[] MAGIC       = {'N', 'N', 'U', 'E'};
+    private static final int    VERSION     = 1;
+    private static final int    HEADER_SIZE = 16;
+
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    // Network written by main: the parameter table spread over HIDDEN units, each covering STEP centipawns
+    private static final int HIDDEN = 128;
+    private static final int LAYER  = 8;
+    private static final int STEP   = 64;
+
+    // Weights, shared by copies
+    private final int     hidden;
+    private final int     layer;
+    private final short[] featureWeights;  // By feature, then hidden unit
+    private final short[] featureBiases;
+    private final float[] layerWeights;    // By layer unit, then input
+    private final float[] layerBiases;
+    private final float[] outputWeights;
+    private final float   outputBias;
+
+    // Accumulators by depth and perspective (0 White, 1 Black), hidden values each, and the hash they were computed for
+    private final short[]   accumulators;
+    private final long[]    accumulatorHashes = new long[Position.MAX_DEPTH + 1];
+    private final boolean[] computed          = new boolean[Position.MAX_DEPTH + 1];
+
+    private final float[] input;
+    private final float[] activations;
+
+    /**
+     * @param weights Network file after the header
+     */
+    private Nnue(ByteBuffer weights, int hidden, int layer) {
+        this.hidden = hidden;
+        this.layer  = layer;
+
+        featureWeights = new short[FEATURES * hidden];
+        featureBiases  = new short[hidden];
+        layerWeights   = new float[layer * 2 * hidden];
+        layerBiases    = new float[layer];
+        outputWeights  = new float[layer];
+
+        weights.asShortBuffer().get(featureWeights).get(featureBiases);
+        weights.position(weights.position() + (featureWeights.length + featureBiases.length) * 2);
+        weights.asFloatBuffer().get(layerWeights).get(layerBiases).get(outputWeights);
+        outputBias = weights.getFloat(weights.position() + (layerWeights.length + 2 * layer) * 4);
+
+        accumulators = new short[(Position.MAX_DEPTH + 1) * 2 * hidden];
+        input        = new float[2 * hidden];
+        activations  = new float[layer];
+    }
+
+    private Nnue(Nnue other) {
+        hidden         = other.hidden;
+        layer          = other.layer;
+        featureWeights = other.featureWeights;
+        featureBiases  = other.featureBiases;
+        layerWeights   = other.layerWeights;
+        layerBiases    = other.layerBiases;
+        outputWeights  = other.outputWeights;
+        outputBias     = other.outputBias;
+
+        accumulators = new short[(Position.MAX_DEPTH + 1) * 2 * hidden];
+        input        = new float[2 * hidden];
+        activations  = new float[layer];
+    }
+
+    /**
+     * Map a network file
+     *
+     * @param path Network file
+     * @return Evaluator for one search at a time; copy() for more
+     */
+    static Nnue open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) throw new IOException("Not a network file: " + path);
+
+            MappedByteBuffer weights = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            weights.order(ByteOrder.LITTLE_ENDIAN);
+
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (weights.get(i) != MAGIC[i]) throw new IOException("Not a network file: " + path);
+            }
+            if (weights.getInt(4) != VERSION) throw new IOException("Unsupported network version " + weights.getInt(4));
+
+            int hidden = weights.getInt(8), layer = weights.getInt(12);
+            // Whole vectors of either kind
+            if (hidden <= 0 || hidden % 64 != 0 || hidden > 4096 || layer <= 0 || layer > 4096) {
+                throw new IOException("Invalid network size " + hidden + "x" + layer + " in " + path);
+            }
+
+            long expected = HEADER_SIZE + (FEATURES + 1) * hidden * 2L + (layer * 2L * hidden + 2L * layer + 1) * 4;
+            if (channel.size() != expected) {
+                throw new IOException("Network file " + path + " has " + channel.size() + " bytes, expected " + expected);
+            }
+
+            return new Nnue(weights.position(HEADER_SIZE), hidden, layer);
+        }
+    }
+
+    /**
+     * @return Evaluator sharing the weights, with its own accumulators
+     */
+    @Override
+    Evaluator copy() {
+        return new Nnue(this);
+    }
+
+    @Override
+    int evaluate(Position position) {
+        int depth = position.depth;
+
+        int valid = depth;
+        while (valid >= 0 && !(computed[valid] && accumulatorHashes[valid] == position.hashAt(valid))) valid--;
+
+        if (valid < 0) {
+            refresh(position);
+        } else {
+            for (; valid < depth; valid++) update(position, valid);
+        }
+
+        return output(depth, position.side);
+    }
+
+    /**
+     * Compute the accumulators of the current depth from all pieces
+     */
+    private void refresh(Position position) {
+        int depth = position.depth;
+
+        for (int perspective = 0; perspective < 2; perspective++) {
+            int to = (depth * 2 + perspective) * hidden;
+
+            for (int i = 0; i < hidden; i += SHORTS.length()) {
+                ShortVector sum = ShortVector.fromArray(SHORTS, featureBiases, i);
+                for (int square = 0; square < 64; square++) {
+                    int piece = position.squares[square];
+                    if (piece != 0) sum = sum.add(row(feature(perspective, piece, square), i));
+                }
+                sum.intoArray(accumulators, to + i);
+            }
+        }
+
+        accumulatorHashes[depth] = position.hash;
+        computed[depth]          = true;
+    }
+
+    /**
+     * Compute the accumulators of depth + 1 from those of depth and the move made there
+     */
+    private void update(Position position, int depth) {
+        int move   = position.moveAt(depth), piece = position.movedAt(depth), captured = position.capturedAt(depth);
+        int src    = move >>> 9 & 63, dest = move >>> 3 & 63;
+        int placed = Position.placed(piece, move & 7);
+
+        for (int perspective = 0; perspective < 2; perspective++) {
+            int from    = (depth * 2 + perspective) * hidden, to = from + 2 * hidden;
+            int removed = feature(perspective, piece, src), added = feature(perspective, placed, dest);
+
+            if (captured == 0) {
+                for (int i = 0; i < hidden; i += SHORTS.length()) {
+                    ShortVector.fromArray(SHORTS, accumulators, from + i).sub(row(removed, i)).add(row(added, i))
+                               .intoArray(accumulators, to + i);
+                }
+            } else {
+                int taken = feature(perspective, captured, dest);
+                for (int i = 0; i < hidden; i += SHORTS.length()) {
+                    ShortVector.fromArray(SHORTS, accumulators, from + i).sub(row(removed, i)).add(row(added, i))
+                               .sub(row(taken, i)).intoArray(accumulators, to + i);
+                }
+            }
+
+            // Castling moves the rook too, en passant takes a pawn beside dest
+            if (Position.isCastling(piece, move)) {
+                int rook = Position.ROOK | piece & Position.BLACK;
+                moveFeature(to, feature(perspective, rook, Position.castlingRookSource(move)),
+                            feature(perspective, rook, Position.castlingRookDest(move)));
+            } else if (Position.isEnPassant(piece, captured, move)) {
+                int pawn = Position.PAWN | ~piece & Position.BLACK;
+                moveFeature(to, feature(perspective, pawn, Position.enPassantSquare(move)), -1);
+            }
+        }
+
+        accumulatorHashes[depth + 1] = position.hashAt(depth + 1);
+        computed[depth + 1]          = true;
+    }
+
+    /**
+     * Remove a feature from the accumulator at offset and add another one, if not -1
+     */
+    private void moveFeature(int offset, int removed, int added) {
+        for (int i = 0; i < hidden; i += SHORTS.length()) {
+            ShortVector sum = ShortVector.fromArray(SHORTS, accumulators, offset + i).sub(row(removed, i));
+            if (added >= 0) sum = sum.add(row(added, i));
+            sum.intoArray(accumulators, offset + i);
+        }
+    }
+
+    /**
+     * @return Weights of a feature from hidden unit i on, one vector long
+     */
+    private ShortVector row(int feature, int i) {
+        return ShortVector.fromArray(SHORTS, featureWeights, feature * hidden + i);
+    }
+
+    /**
+     * @param perspective 0 for White, 1 for Black
+     * @return Feature of a piece code on a square, as seen by a side
+     */
+    static int feature(int perspective, int piece, int square) {
+        int relative = piece >>> 3 == perspective ? 0 : 1;
+        return (relative * 6 + (piece & 7) - 1) * 64 + (perspective == 0 ? square : square ^ 56);
+    }
+
+    /**
+     * Run the dense layers on the accumulators of a depth
+     *
+     * @return Score for the side to move
+     */
+    private int output(int depth, int side) {
+        int us = (depth * 2 + side) * hidden, them = (depth * 2 + (side ^ 1)) * hidden;
+
+        // Clip to [0, ONE] and scale to [0, 1], each short vector filling several float vectors
+        int parts = SHORTS.length() / FLOATS.length();
+        for (int half = 0; half < 2; half++) {
+            int from = half == 0 ? us : them;
+            for (int i = 0; i < hidden; i += SHORTS.length()) {
+                ShortVector clipped = ShortVector.fromArray(SHORTS, accumulators, from + i)
+                                                 .max((short) 0).min((short) ONE);
+                for (int part = 0; part < parts; part++) {
+                    ((FloatVector) clipped.convertShape(VectorOperators.S2F, FLOATS, part)).mul(1f / ONE)
+                        .intoArray(input, half * hidden + i + part * FLOATS.length());
+                }
+            }
+        }
+
+        for (int j = 0; j < layer; j++) {
+            FloatVector sum = FloatVector.zero(FLOATS);
+            for (int i = 0; i < 2 * hidden; i += FLOATS.length()) {
+                sum = FloatVector.fromArray(FLOATS, layerWeights, j * 2 * hidden + i)
+                                 .fma(FloatVector.fromArray(FLOATS, input, i), sum);
+            }
+            activations[j] = Math.max(0, sum.reduceLanes(VectorOperators.ADD) + layerBiases[j]);
+        }
+
+        int         bound = FLOATS.loopBound(layer), i = 0;
+        FloatVector sum   = FloatVector.zero(FLOATS);
+        for (; i < bound; i += FLOATS.length()) {
+            sum = FloatVector.fromArray(FLOATS, outputWeights, i)
+                             .fma(FloatVector.fromArray(FLOATS, activations, i), sum);
+        }
+        float score = sum.reduceLanes(VectorOperators.ADD) + outputBias;
+        for (; i < layer; i++) score += activations[i] * outputWeights[i];
+
+        return Math.round(score);
+    }
+
+    /**
+     * Write a network that computes the score of a parameter table
+     * <p>
+     * Every hidden unit sees the table's score for its side; unit k is offset to cover STEP centipawns of it, so
+     * together they count the score from -HIDDEN / 2 * STEP up. Two layer units split the count into its positive
+     * and negative part. Used as a starting point and to check the network code against Evaluator.
+     *
+     * @param path   Network file
+     * @param params Parameter table
+     */
+    static void write(Path path, int[] params) throws IOException {
+        int        low = -HIDDEN / 2 * STEP;
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + (FEATURES + 1) * HIDDEN * 2 + (LAYER * 2 * HIDDEN + 2 * LAYER + 1) * 4)
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+
+        out.put(MAGIC).putInt(VERSION).putInt(HIDDEN).putInt(LAYER);
+
+        // Own pieces count for, the other side's against; squares are already as seen by the side
+        for (int feature = 0; feature < FEATURES; feature++) {
+            int type = feature / 64 % 6, square = feature % 64;
+            int value = feature < 6 * 64 ? params[MATERIAL + type] + params[PSQT + type * 64 + square]
+                                         : -(params[MATERIAL + type] + params[PSQT + type * 64 + (square ^ 56)]);
+            short weight = (short) Math.round(value * (double) ONE / STEP);
+            for (int k = 0; k < HIDDEN; k++) out.putShort(weight);
+        }
+        for (int k = 0; k < HIDDEN; k++) out.putShort((short) Math.round(-(low + k * STEP) * (double) ONE / STEP));
+
+        for (int j = 0; j < LAYER; j++) {
+            for (int i = 0; i < 2 * HIDDEN; i++) out.putFloat(j < 2 && i < HIDDEN ? (j == 0 ? STEP : -STEP) : 0);
+        }
+        for (int j = 0; j < LAYER; j++) out.putFloat(j == 0 ? low : j == 1 ? -low : 0);
+        for (int j = 0; j < LAYER; j++) out.putFloat(j == 0 ? 1 : j == 1 ? -1 : 0);
+        out.putFloat(0);
+
+        Files.write(path, out.array());
+    }
+
+    /**
+     * Write the network of a parameter table
+     * <p>
+     * Usage: java --add-modules jdk.incubator.vector Nnue --out FILE [--params FILE]
+     */
+    public static void main(String[] args) throws IOException {
+        Path  out    = null;
+        int[] params = Evaluator.defaultParams();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--out":
+                    out = Path.of(value);
+                    break;
+                case "--params":
+                    params = Evaluator.readParams(Path.of(value));
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        if (out == null) {
+            System.err.println("Usage: Nnue --out FILE [--params FILE]");
+            return;
+        }
+
+        write(out, params);
+        System.out.println("Wrote " + out + ", " + Files.size(out) + " bytes");
+    }
+}
@@ -0,0 +1,157 @@
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Sidebar showing live analysis of the current position
+ * <p>
+ * Polls the Analyzer a few times per second instead of being called by the search, so however fast the search
+ * produces results, the EDT does at most one refresh per tick.
+ */
+class AnalysisPanel extends JPanel {
+    // Refresh interval in ms
+    private final static int       refreshMillis = 200;
+    private final static Dimension sizePanel     = new Dimension(220, 0);
+    private final static Integer[] lineCounts    = {1, 2, 3, 4, 5};
+
+    private final Analyzer  analyzer   = new Analyzer(20);
+    private final BoardView board;
+    private final JLabel    labelDepth = new JLabel();
+    private final JLabel    labelScore = new JLabel();
+    private final JLabel    labelNodes = new JLabel();
+    private final JLabel    labelSpeed = new JLabel();
+    private final JTextArea textLines  = new JTextArea(6, 16);
+    private final Timer     timer      = new Timer(refreshMillis, l -> refresh());
+
+    // Last shown result, to skip unchanged refreshes
+    private Search.Info shownInfo;
+
+    /**
+     * @param board Board to draw the candidate moves on
+     */
+    AnalysisPanel(BoardView board) {
+        super(new BorderLayout(0, 5));
+        this.board = board;
+
+        JComboBox<Integer> comboLines = new JComboBox<>(lineCounts);
+        comboLines.addActionListener(l -> analyzer.setLines((Integer) comboLines.getSelectedItem()));
+        comboLines.setSelectedIndex(2);
+
+        JPanel panelLabels = new JPanel(new GridLayout(5, 2));
+        panelLabels.add(new JLabel("Lines"));
+        panelLabels.add(comboLines);
+        panelLabels.add(new JLabel("Depth"));
+        panelLabels.add(labelDepth);
+        panelLabels.add(new JLabel("Score"));
+        panelLabels.add(labelScore);
+        panelLabels.add(new JLabel("Nodes"));
+        panelLabels.add(labelNodes);
+        panelLabels.add(new JLabel("Nodes/s"));
+        panelLabels.add(labelSpeed);
+
+        textLines.setEditable(false);
+        textLines.setLineWrap(true);
+        textLines.setWrapStyleWord(true);
+
+        add(panelLabels, BorderLayout.NORTH);
+        add(new JScrollPane(textLines), BorderLayout.CENTER);
+        setBorder(BorderFactory.createCompoundBorder(BorderFactory.createTitledBorder("Analysis"),
+                                                     BorderFactory.createEmptyBorder(5, 5, 5, 5)));
+        setPreferredSize(sizePanel);
+    }
+
+    /**
+     * Start or stop analyzing
+     *
+     * @param board Position to analyze, null to stop
+     */
+    void setPosition(Board board) {
+        analyzer.analyze(board);
+        shownInfo = null;
+        this.board.setArrows(new int[0]);
+
+        if (board != null) {
+            timer.start();
+        } else {
+            timer.stop();
+        }
+        refresh();
+    }
+
+    /**
+     * Show the latest result
+     */
+    private void refresh() {
+        Analyzer.Snapshot snapshot = analyzer.latest();
+
+        if (snapshot == null) {
+            board.setArrows(new int[0]);
+            labelDepth.setText("");
+            labelScore.setText("");
+            labelNodes.setText("");
+            labelNodes.setToolTipText(null);
+            labelSpeed.setText("");
+            textLines.setText("");
+            return;
+        }
+
+        // Nodes and speed move on between iterations
+        long nodes = analyzer.nodes();
+        long nanos = System.nanoTime() - snapshot.startNanos;
+        labelNodes.setText(String.format("%,d", nodes));
+        labelSpeed.setText(nanos > 0 ? String.format("%,d", nodes * 1_000_000_000L / nanos) : "");
+
+        Search.Info info = snapshot.info;
+        if (info == shownInfo) return;
+        shownInfo = info;
+
+        if (info == null) {
+            board.setArrows(new int[0]);
+            labelDepth.setText("");
+            labelScore.setText("");
+            textLines.setText("");
+            return;
+        }
+
+        // Scores are shown for White
+        int           sign   = snapshot.board.turnColor == ChessColorType.White ? 1 : -1;
+        int[]         arrows = new int[info.pvs.length];
+        StringBuilder lines  = new StringBuilder();
+        for (int i = 0; i < info.pvs.length; i++) {
+            arrows[i] = info.pvs[i][0];
+            if (i > 0) lines.append("\n\n");
+            lines.append(Search.scoreText(sign * info.scores[i])).append("  ")
+                 .append(lineText(snapshot.board, info.pvs[i]));
+        }
+
+        labelDepth.setText(String.valueOf(info.depth));
+        labelNodes.setToolTipText(String.format("%.0f%% in quiescence search", 100 * info.quiescenceShare()));
+        labelScore.setText(Search.scoreText(sign * info.score));
+        textLines.setText(lines.toString());
+        textLines.setCaretPosition(0);
+        board.setArrows(arrows);
+    }
+
+    /**
+     * @param board Position before the line; not modified
+     * @param line  Moves as Move.code() values
+     * @return Line in SAN with move numbers
+     */
+    static String lineText(Board board, int[] line) {
+        Board         position = Board.copyOf(board);
+        StringBuilder sb       = new StringBuilder();
+
+        for (int i = 0; i < line.length; i++) {
+            Move move = Move.ofCode(line[i]);
+
+            if (position.turnColor == ChessColorType.White) {
+                sb.append(position.turnCount).append(". ");
+            } else if (i == 0) {
+                sb.append(position.turnCount).append("... ");
+            }
+            sb.append(San.toSan(position, move)).append(' ');
+            position.applyMove(move);
+        }
+
+        return sb.toString().trim();
+    }
+}
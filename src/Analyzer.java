@@ -0,0 +1,116 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Continuous background analysis on one reusable thread
+ * <p>
+ * Each new position stops the running search and starts the next one on the same thread, keeping the search's
+ * transposition table. Results are only stored as the latest snapshot, so readers choose how often to look.
+ */
+final class Analyzer {
+    /**
+     * Latest result for a position
+     */
+    static final class Snapshot {
+        final Board       board;       // Position searched; not modified
+        final Search.Info info;        // Last completed iteration, null before the first
+        final long        startNanos;
+
+        Snapshot(Board board, Search.Info info, long startNanos) {
+            this.board      = board;
+            this.info       = info;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private final Search                    search;
+    private final AtomicReference<Snapshot> latest = new AtomicReference<>();
+    private final Object                    lock   = new Object();
+
+    private Board  pending;    // Guarded by lock
+    private Board  current;    // Guarded by lock
+    private int    lines = 1;  // Guarded by lock
+    private Thread thread;     // Guarded by lock
+
+    /**
+     * @param tableBits Log2 of the number of transposition table entries
+     */
+    Analyzer(int tableBits) {
+        this.search = new Search(tableBits, Evaluator.standard());
+    }
+
+    /**
+     * Analyze a position from now on
+     *
+     * @param board Position to analyze, copied; null to stop analyzing
+     */
+    void analyze(Board board) {
+        synchronized (lock) {
+            pending = board == null || board.kingCaught ? null : Board.copyOf(board);
+            current = pending;
+            search.stop();
+
+            if (thread == null) {
+                thread = new Thread(this::run, "Analysis");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            lock.notifyAll();
+        }
+
+        if (board == null) latest.set(null);
+    }
+
+    /**
+     * Set the number of lines to find, restarting the analysis
+     */
+    void setLines(int lines) {
+        synchronized (lock) {
+            this.lines = lines;
+            if (current == null) return;
+
+            pending = current;
+            search.stop();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return Latest result, null if not analyzing
+     */
+    Snapshot latest() {
+        return latest.get();
+    }
+
+    /**
+     * @return Nodes searched so far for the latest position
+     */
+    long nodes() {
+        return search.nodes();
+    }
+
+    private void run() {
+        while (true) {
+            Board board;
+            int   searchLines;
+
+            synchronized (lock) {
+                while (pending == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                board       = pending;
+                searchLines = lines;
+                pending     = null;
+                search.clearStop();
+            }
+
+            long start = System.nanoTime();
+            latest.set(new Snapshot(board, null, start));
+            search.search(Position.of(board), Search.MAX_PLY, searchLines,
+                          info -> latest.set(new Snapshot(board, info, start)));
+        }
+    }
+}
@@ -0,0 +1,433 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Headless board state
+ * <p>
+ * Holds the same pieces map as ChessEngine without a GUI, so that bots, servers and tools can follow a game.
+ * Castling rights and the en passant file are packed into the bits of state, which is copied, hashed, sent and
+ * saved as one byte.
+ */
+class Board {
+    // Piece types a pawn can promote to
+    static final ChessPieceType[] PROMOTION_TYPES = {
+        ChessPieceType.Queen, ChessPieceType.Rook, ChessPieceType.Bishop, ChessPieceType.Knight
+    };
+
+    // Castling rights in bits 0-3 of state
+    static final int WHITE_KINGSIDE  = 1;
+    static final int WHITE_QUEENSIDE = 2;
+    static final int BLACK_KINGSIDE  = 4;
+    static final int BLACK_QUEENSIDE = 8;
+    static final int ALL_CASTLING    = 15;
+    // Bits 4-7 of state hold the file of a pawn that can be captured en passant plus 1, 0 if none
+    static final int EN_PASSANT_SHIFT = 4;
+
+    // Castling rights kept by a move from or to a square, by square
+    private static final int[] CASTLING_KEPT = new int[64];
+
+    static {
+        Arrays.fill(CASTLING_KEPT, ALL_CASTLING);
+        CASTLING_KEPT[60] = ALL_CASTLING & ~(WHITE_KINGSIDE | WHITE_QUEENSIDE);
+        CASTLING_KEPT[63] = ALL_CASTLING & ~WHITE_KINGSIDE;
+        CASTLING_KEPT[56] = ALL_CASTLING & ~WHITE_QUEENSIDE;
+        CASTLING_KEPT[4]  = ALL_CASTLING & ~(BLACK_KINGSIDE | BLACK_QUEENSIDE);
+        CASTLING_KEPT[7]  = ALL_CASTLING & ~BLACK_KINGSIDE;
+        CASTLING_KEPT[0]  = ALL_CASTLING & ~BLACK_QUEENSIDE;
+    }
+
+    // Map of pieces
+    final HashMap<Coordinates, Piece> pieces = new HashMap<>(33);
+
+    ChessColorType turnColor  = ChessColorType.White;
+    int            turnCount  = 1;
+    int            plyCount   = 0;
+    boolean        kingCaught = false;
+    int            state      = 0;  // Castling rights and en passant file
+
+    // Positions since the last irreversible move, started by history()
+    private final PositionHistory history = new PositionHistory();
+
+    /**
+     * @return A board with pieces at the start position
+     */
+    static Board initial() {
+        Board board = new Board();
+        initPieces(board.pieces);
+        board.state = ALL_CASTLING;
+        return board;
+    }
+
+    /**
+     * @param other Board to copy
+     * @return A board with copies of the pieces and state of other
+     */
+    static Board copyOf(Board other) {
+        Board board = new Board();
+
+        for (Piece piece : other.pieces.values()) {
+            Piece copy = Piece.create(board.pieces, piece.type, piece.color, piece.pos);
+            copy.hasMoved = piece.hasMoved;
+            copy.id       = piece.id;
+            board.pieces.put(copy.pos, copy);
+        }
+
+        board.turnColor  = other.turnColor;
+        board.turnCount  = other.turnCount;
+        board.plyCount   = other.plyCount;
+        board.kingCaught = other.kingCaught;
+        board.state      = other.state;
+        board.history.copyFrom(other.history);
+
+        return board;
+    }
+
+    /**
+     * Put all pieces at the start position
+     *
+     * @param pieces Map of pieces to fill
+     */
+    static void initPieces(HashMap<Coordinates, Piece> pieces) {
+        initFirstRow(pieces, ChessColorType.Black, 0);
+        initPawns(pieces, ChessColorType.Black, 1);
+        initFirstRow(pieces, ChessColorType.White, 7);
+        initPawns(pieces, ChessColorType.White, 6);
+    }
+
+    private static void initFirstRow(HashMap<Coordinates, Piece> pieces, ChessColorType color, int row) {
+        ChessPieceType[] order = {
+            ChessPieceType.Rook, ChessPieceType.Knight, ChessPieceType.Bishop, ChessPieceType.Queen,
+            ChessPieceType.King, ChessPieceType.Bishop, ChessPieceType.Knight, ChessPieceType.Rook
+        };
+
+        for (int col = 0; col < 8; col++) {
+            Coordinates pos = Coordinates.of(row, col);
+            pieces.put(pos, Piece.create(pieces, order[col], color, pos));
+        }
+    }
+
+    private static void initPawns(HashMap<Coordinates, Piece> pieces, ChessColorType color, int row) {
+        for (int col = 0; col < 8; col++) {
+            Coordinates pos = Coordinates.of(row, col);
+            pieces.put(pos, new Pawn(pieces, color, pos));
+        }
+    }
+
+    /**
+     * Returns whether the side to move may move src to dest
+     *
+     * @param src  Source
+     * @param dest Destination
+     * @return Validity of the move
+     */
+    boolean isLegalMove(Coordinates src, Coordinates dest) {
+        if (kingCaught || !src.isWithinRange() || !dest.isWithinRange()) return false;
+
+        Piece piece = pieces.get(src);
+
+        return piece != null && piece.color == turnColor && piece.getPossibleMovements(state).contains(dest);
+    }
+
+    /**
+     * List all moves of the side to move as {src, dest} pairs
+     *
+     * @return List of moves
+     */
+    List<Coordinates[]> legalMoves() {
+        List<Coordinates[]> result = new ArrayList<>(40);
+
+        if (kingCaught) return result;
+
+        for (Piece piece : pieces.values()) {
+            if (piece.color != turnColor) continue;
+
+            for (Coordinates dest : piece.getPossibleMovements(state)) {
+                result.add(new Coordinates[]{piece.pos, dest});
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * List all moves of the side to move, with promotions to each piece type
+     *
+     * @return List of moves
+     */
+    List<Move> legalMoveList() {
+        List<Move> result = new ArrayList<>(40);
+
+        if (kingCaught) return result;
+
+        MoveGenerationEvent event = new MoveGenerationEvent();
+        event.begin();
+
+        for (Piece piece : pieces.values()) {
+            if (piece.color != turnColor) continue;
+
+            for (Coordinates dest : piece.getPossibleMovements(state)) {
+                if (piece instanceof Pawn && (dest.row == 0 || dest.row == 7)) {
+                    for (ChessPieceType type : PROMOTION_TYPES) result.add(new Move(piece.pos, dest, type));
+                } else {
+                    result.add(new Move(piece.pos, dest));
+                }
+            }
+        }
+
+        if (event.shouldCommit()) {
+            event.pieceType = "";
+            event.moveCount = result.size();
+            event.commit();
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns whether a move would leave the mover's king capturable
+     * <p>
+     * The game itself allows such moves, but standard notation assumes they are not played.
+     *
+     * @param src  Source
+     * @param dest Destination
+     * @return Whether an opponent piece could capture the king after the move
+     */
+    boolean leavesKingAttacked(Coordinates src, Coordinates dest) {
+        Piece       moving   = pieces.remove(src);
+        Piece       captured = pieces.put(dest, moving);
+        Coordinates oldPos   = moving.pos;
+        moving.pos = dest;
+
+        Coordinates kingPos = null;
+        for (Piece piece : pieces.values()) {
+            if (piece instanceof King && piece.color == moving.color) kingPos = piece.pos;
+        }
+
+        boolean attacked = false;
+        if (kingPos != null) {
+            for (Piece piece : pieces.values()) {
+                if (piece.color != moving.color && piece.getPossibleMovements().contains(kingPos)) {
+                    attacked = true;
+                    break;
+                }
+            }
+        }
+
+        // Restore
+        moving.pos = oldPos;
+        pieces.put(src, moving);
+        if (captured != null) pieces.put(dest, captured);
+        else pieces.remove(dest);
+
+        return attacked;
+    }
+
+    /**
+     * Returns whether moving src to dest promotes a pawn
+     */
+    boolean isPromotion(Coordinates src, Coordinates dest) {
+        Piece piece = pieces.get(src);
+
+        return piece instanceof Pawn && (dest.row == 0 || dest.row == 7);
+    }
+
+    /**
+     * Apply a move and switch turns
+     *
+     * @param move Move
+     * @return Piece captured, null if none
+     */
+    Piece applyMove(Move move) {
+        return applyMove(move.src, move.dest, move.promotionCode());
+    }
+
+    /**
+     * Apply a move and switch turns
+     *
+     * @param src       Source
+     * @param dest      Destination
+     * @param promotion Promotion code as sent on the wire, 0 if none
+     * @return Piece captured, null if none
+     */
+    Piece applyMove(Coordinates src, Coordinates dest, int promotion) {
+        Piece   moving       = pieces.get(src);
+        Piece   captured     = isEnPassant(pieces, src, dest) ? pieces.get(enPassantSquare(src, dest)) : pieces.get(dest);
+        boolean irreversible = captured != null || moving instanceof Pawn;
+        history();
+
+        state = stateAfter(pieces, state, src, dest);
+        movePiece(pieces, src, dest, promotion);
+
+        if (captured instanceof King) kingCaught = true;
+
+        plyCount++;
+        if (turnColor == ChessColorType.White) {
+            turnColor = ChessColorType.Black;
+        } else {
+            turnCount++;
+            turnColor = ChessColorType.White;
+        }
+
+        history.add(Zobrist.hash(pieces, turnColor, state), irreversible);
+
+        return captured;
+    }
+
+    /**
+     * Positions of the game since its last irreversible move; the first call starts it with the current position,
+     * after which the board must only change through applyMove
+     *
+     * @return History of this board
+     */
+    PositionHistory history() {
+        if (history.isEmpty()) history.start(Zobrist.hash(pieces, turnColor, state));
+        return history;
+    }
+
+    /**
+     * @return Plies since the last capture or pawn move
+     */
+    int halfmoveClock() {
+        return history.halfmoveClock();
+    }
+
+    void setHalfmoveClock(int halfmoveClock) {
+        history.setHalfmoveClock(halfmoveClock);
+    }
+
+    /**
+     * @return Draw rule that ends the game in this position, null if none
+     */
+    String drawReason() {
+        return history().drawReason();
+    }
+
+    /**
+     * @return Castling rights kept by a move from or to a square, as a mask of state
+     */
+    static int castlingKept(int square) {
+        return CASTLING_KEPT[square];
+    }
+
+    /**
+     * @param state Castling rights and en passant file
+     * @return File of the pawn that can be captured en passant, -1 if none
+     */
+    static int enPassantFile(int state) {
+        return (state >>> EN_PASSANT_SHIFT) - 1;
+    }
+
+    /**
+     * Castling rights and en passant file after a move, computed before it is made
+     * <p>
+     * Moving the king or a rook, or capturing a rook on its start square, loses castling rights. A pawn advancing
+     * two squares sets the en passant file only if an enemy pawn stands next to it, so that positions which
+     * differ in nothing else hash the same.
+     *
+     * @param pieces Map of pieces before the move
+     * @param state  Castling rights and en passant file before the move
+     * @param src    Source
+     * @param dest   Destination
+     * @return State after the move
+     */
+    static int stateAfter(Map<Coordinates, Piece> pieces, int state, Coordinates src, Coordinates dest) {
+        int   castling = state & CASTLING_KEPT[src.square] & CASTLING_KEPT[dest.square];
+        Piece moving   = pieces.get(src);
+
+        if (moving instanceof Pawn && Math.abs(dest.row - src.row) == 2
+            && (isEnemyPawn(pieces, dest.row, dest.col - 1, moving.color)
+                || isEnemyPawn(pieces, dest.row, dest.col + 1, moving.color))) {
+            return castling | (dest.col + 1) << EN_PASSANT_SHIFT;
+        }
+        return castling;
+    }
+
+    /**
+     * @return Whether a pawn of the opponent of color stands on the square
+     */
+    private static boolean isEnemyPawn(Map<Coordinates, Piece> pieces, int row, int col, ChessColorType color) {
+        if (col < 0 || col > 7) return false;
+
+        Piece piece = pieces.get(Coordinates.of(row, col));
+        return piece instanceof Pawn && piece.color != color;
+    }
+
+    /**
+     * @return Whether moving src to dest castles: the king moves two squares towards a rook
+     */
+    static boolean isCastling(Map<Coordinates, Piece> pieces, Coordinates src, Coordinates dest) {
+        return pieces.get(src) instanceof King && Math.abs(dest.col - src.col) == 2;
+    }
+
+    /**
+     * @return Whether moving src to dest captures en passant: a pawn moves diagonally to an empty square
+     */
+    static boolean isEnPassant(Map<Coordinates, Piece> pieces, Coordinates src, Coordinates dest) {
+        return pieces.get(src) instanceof Pawn && dest.col != src.col && !pieces.containsKey(dest);
+    }
+
+    /**
+     * @return Square of the pawn captured en passant by moving src to dest
+     */
+    static Coordinates enPassantSquare(Coordinates src, Coordinates dest) {
+        return Coordinates.of(src.row, dest.col);
+    }
+
+    /**
+     * @param kingDest Destination of the king when castling
+     * @return Square of the rook that castles
+     */
+    static Coordinates castlingRookSource(Coordinates kingDest) {
+        return Coordinates.of(kingDest.row, kingDest.col > 4 ? 7 : 0);
+    }
+
+    /**
+     * @param kingDest Destination of the king when castling
+     * @return Square the rook moves to
+     */
+    static Coordinates castlingRookDest(Coordinates kingDest) {
+        return Coordinates.of(kingDest.row, kingDest.col > 4 ? 5 : 3);
+    }
+
+    /**
+     * Move a piece in the map, promoting it if requested, and move the rook when castling or remove the pawn
+     * captured en passant
+     *
+     * @param pieces    Map of pieces
+     * @param src       Source
+     * @param dest      Destination
+     * @param promotion Promotion code as sent on the wire, 0 if none
+     * @return Piece now placed at dest
+     */
+    static Piece movePiece(HashMap<Coordinates, Piece> pieces, Coordinates src, Coordinates dest, int promotion) {
+        if (isCastling(pieces, src, dest)) {
+            Piece rook = pieces.remove(castlingRookSource(dest));
+            rook.pos      = castlingRookDest(dest);
+            rook.hasMoved = true;
+            pieces.put(rook.pos, rook);
+        } else if (isEnPassant(pieces, src, dest)) {
+            pieces.remove(enPassantSquare(src, dest));
+        }
+
+        Piece srcPiece = pieces.remove(src);
+        pieces.remove(dest);
+
+        ChessPieceType promoteTo = ChessProtocol.promotionType(promotion);
+        if (promoteTo == null) {
+            srcPiece.pos      = dest;
+            srcPiece.hasMoved = true;
+            pieces.put(dest, srcPiece);
+            return srcPiece;
+        }
+
+        Piece newPiece = Piece.create(pieces, promoteTo, srcPiece.color, dest);
+        newPiece.id       = srcPiece.id;
+        newPiece.hasMoved = true;
+        pieces.put(dest, newPiece);
+        return newPiece;
+    }
+}
+
@@ -0,0 +1,153 @@
+import javax.swing.*;
+import java.util.Arrays;
+
+/**
+ * Board changes waiting to be drawn
+ * <p>
+ * Holds the board the engine wants shown and the squares changed since the last frame. The engine thread records
+ * each move as one diff; the first change after a frame schedules the next one, so at most one invokeLater is
+ * pending and a burst of moves is drawn as a single diff of the squares that ended up different.
+ */
+final class BoardUpdates {
+    private final BoardView view;
+
+    // Wanted state, guarded by this
+    private final byte[]  sprites     = new byte[64];
+    private final long[]  occupied    = new long[2];  // By color, White first
+    private       long    dirty       = 0;            // Squares changed since the last frame
+    private       long    enabled     = 0;
+    private       long    highlighted = 0;
+    private       boolean scheduled   = false;
+
+    // Copy for the frame being drawn, only used on the EDT
+    private final byte[] frameSprites = new byte[64];
+
+    BoardUpdates(BoardView view) {
+        this.view = view;
+    }
+
+    /**
+     * @return Bit of the square at coords
+     */
+    static long bit(Coordinates coords) {
+        return 1L << coords.square;
+    }
+
+    /**
+     * @param coords Collection of squares, may be null
+     * @return Bits of the squares
+     */
+    static long mask(Iterable<Coordinates> coords) {
+        long mask = 0;
+        if (coords != null) for (Coordinates pos : coords) mask |= bit(pos);
+        return mask;
+    }
+
+    /**
+     * Empty the board, and disable and unhighlight all squares
+     */
+    synchronized void clear() {
+        dirty |= occupied[0] | occupied[1];
+        Arrays.fill(sprites, (byte) 0);
+        occupied[0] = occupied[1] = 0;
+        enabled     = highlighted = 0;
+        schedule();
+    }
+
+    /**
+     * Put a piece on its square
+     */
+    synchronized void setPiece(Piece piece) {
+        put(piece.pos.square, BoardView.spriteIndex(piece));
+        schedule();
+    }
+
+    /**
+     * Show a move as one diff and disable its squares until the next turn enables them
+     *
+     * @param changed Squares changed by the move
+     * @param codes   Position piece code by square, 0 for empty; only the changed squares are read
+     */
+    synchronized void applyMove(long changed, byte[] codes) {
+        for (long bits = changed; bits != 0; bits &= bits - 1) {
+            int square = Long.numberOfTrailingZeros(bits);
+            put(square, codes[square]);
+        }
+        enabled &= ~changed;
+        schedule();
+    }
+
+    /**
+     * Enable exactly the squares holding pieces of a color
+     */
+    synchronized void enableColor(ChessColorType color) {
+        enabled = occupied[color == ChessColorType.White ? 0 : 1];
+        schedule();
+    }
+
+    synchronized void setEnabled(long mask) {
+        enabled = mask;
+        schedule();
+    }
+
+    synchronized long getEnabled() {
+        return enabled;
+    }
+
+    synchronized void setHighlighted(long mask) {
+        highlighted = mask;
+        schedule();
+    }
+
+    private void put(int square, int sprite) {
+        long bit = 1L << square;
+
+        occupied[0] &= ~bit;
+        occupied[1] &= ~bit;
+        if (sprite != 0) occupied[(sprite & Position.BLACK) != 0 ? 1 : 0] |= bit;
+
+        if (sprites[square] != sprite) dirty |= bit;
+        sprites[square] = (byte) sprite;
+    }
+
+    private void schedule() {
+        if (scheduled) return;
+
+        scheduled = true;
+        SwingUtilities.invokeLater(this::drawFrame);
+    }
+
+    /**
+     * Apply everything recorded since the last frame to the view
+     */
+    private void drawFrame() {
+        GuiRefreshEvent event = new GuiRefreshEvent();
+        event.begin();
+
+        long changed, frameEnabled, frameHighlighted;
+
+        synchronized (this) {
+            scheduled = false;
+            changed   = dirty;
+            dirty     = 0;
+            for (long bits = changed; bits != 0; bits &= bits - 1) {
+                int square = Long.numberOfTrailingZeros(bits);
+                frameSprites[square] = sprites[square];
+            }
+            frameEnabled     = enabled;
+            frameHighlighted = highlighted;
+        }
+
+        for (long bits = changed; bits != 0; bits &= bits - 1) {
+            int square = Long.numberOfTrailingZeros(bits);
+            view.setSprite(square / 8, square % 8, frameSprites[square]);
+        }
+        view.setEnabled(frameEnabled);
+        view.setHighlighted(frameHighlighted);
+
+        if (event.shouldCommit()) {
+            event.changedSquares = Long.bitCount(changed);
+            event.commit();
+        }
+    }
+}
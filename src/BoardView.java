@@ -0,0 +1,249 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Chess board drawn as one component
+ * <p>
+ * Pieces are drawn from sprites rendered once per square size and screen scale. Changing a square repaints
+ * only that square, and clicks are mapped to squares here instead of by one button per square.
+ */
+class BoardView extends JComponent {
+    // Colors
+    private final static Color colorLight        = new Color(161, 127, 114);
+    private final static Color colorDark         = new Color(119, 89, 72);
+    private final static Color colorDestinations = new Color(90, 109, 126);
+    private final static Color colorBlack        = new Color(21, 21, 21);
+    private final static Color colorWhite        = new Color(225, 225, 225);
+    private final static Color colorArrow        = new Color(40, 120, 200);
+
+    // Square states, by row * 8 + col
+    private final int[] sprites     = new int[64];  // Position piece codes, 0 if empty
+    private       long  enabled     = 0;            // Bit per square
+    private       long  highlighted = 0;            // Bit per square
+    private       int[] arrows      = new int[0];   // Move.code() values, best first
+
+    private final int squareSize;
+
+    // Sprites rendered for the current square size and scale, by piece code
+    private final BufferedImage[] spriteCache = new BufferedImage[Piece.ICONS.length];
+    private       double          spriteScale = 0;
+
+    /**
+     * @param squareSize Size of a square
+     * @param onClick    Receiver of clicks on enabled squares, null if the board is only shown
+     */
+    BoardView(int squareSize, Consumer<Coordinates> onClick) {
+        this.squareSize = squareSize;
+
+        setBorder(BorderFactory.createLineBorder(Color.black, 2));
+        setOpaque(true);
+
+        if (onClick != null) {
+            addMouseListener(new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    Coordinates pos = squareAt(e.getX(), e.getY());
+
+                    if (pos != null && (enabled & 1L << pos.square) != 0) onClick.accept(pos);
+                }
+            });
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        Insets insets = getInsets();
+        return new Dimension(squareSize * 8 + insets.left + insets.right, squareSize * 8 + insets.top + insets.bottom);
+    }
+
+    /**
+     * @param piece Piece
+     * @return Sprite of the piece, its Position piece code
+     */
+    static int spriteIndex(Piece piece) {
+        return Position.code(piece.color, piece.type);
+    }
+
+    /**
+     * @param sprite Position piece code, 0 to empty the square
+     */
+    void setSprite(int row, int col, int sprite) {
+        int square = row * 8 + col;
+        if (sprites[square] == sprite) return;
+
+        sprites[square] = sprite;
+        repaintSquare(square);
+    }
+
+    /**
+     * @param mask Bit per square that accepts clicks
+     */
+    void setEnabled(long mask) {
+        enabled = mask;
+    }
+
+    /**
+     * @param mask Bit per square to highlight
+     */
+    void setHighlighted(long mask) {
+        for (long changed = highlighted ^ mask; changed != 0; changed &= changed - 1) {
+            repaintSquare(Long.numberOfTrailingZeros(changed));
+        }
+        highlighted = mask;
+    }
+
+    /**
+     * Show ranked candidate moves as arrows, the first one boldest
+     *
+     * @param moves Move.code() values, best first
+     */
+    void setArrows(int[] moves) {
+        if (Arrays.equals(arrows, moves)) return;
+
+        repaintArrows();
+        arrows = moves.clone();
+        repaintArrows();
+    }
+
+    private void repaintArrows() {
+        Insets insets = getInsets();
+
+        for (int move : arrows) {
+            int src = move >>> 9 & 63, dest = move >>> 3 & 63;
+
+            int left   = insets.left + Math.min(src % 8, dest % 8) * squareSize;
+            int top    = insets.top + Math.min(src / 8, dest / 8) * squareSize;
+            int right  = insets.left + (Math.max(src % 8, dest % 8) + 1) * squareSize;
+            int bottom = insets.top + (Math.max(src / 8, dest / 8) + 1) * squareSize;
+            repaint(left, top, right - left, bottom - top);
+        }
+    }
+
+    /**
+     * @return Square at a point, null if outside the board
+     */
+    Coordinates squareAt(int x, int y) {
+        Insets insets = getInsets();
+        int    col    = Math.floorDiv(x - insets.left, squareSize);
+        int    row    = Math.floorDiv(y - insets.top, squareSize);
+
+        if (row < 0 || row > 7 || col < 0 || col > 7) return null;
+        return Coordinates.of(row, col);
+    }
+
+    private void repaintSquare(int square) {
+        Insets insets = getInsets();
+        repaint(insets.left + (square % 8) * squareSize, insets.top + (square / 8) * squareSize, squareSize, squareSize);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2     = (Graphics2D) g;
+        Insets     insets = getInsets();
+        Rectangle  clip   = g.getClipBounds();
+        if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+
+        updateSprites(g2.getTransform());
+
+        // Only squares within the dirty region
+        int firstCol = Math.max(0, (clip.x - insets.left) / squareSize);
+        int lastCol  = Math.min(7, (clip.x + clip.width - 1 - insets.left) / squareSize);
+        int firstRow = Math.max(0, (clip.y - insets.top) / squareSize);
+        int lastRow  = Math.min(7, (clip.y + clip.height - 1 - insets.top) / squareSize);
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                int square = row * 8 + col;
+                int x      = insets.left + col * squareSize;
+                int y      = insets.top + row * squareSize;
+
+                g.setColor((highlighted & 1L << square) != 0 ? colorDestinations : (row + col) % 2 == 0 ? colorLight : colorDark);
+                g.fillRect(x, y, squareSize, squareSize);
+
+                if (sprites[square] != 0) {
+                    g.drawImage(spriteCache[sprites[square]], x, y, squareSize, squareSize, null);
+                }
+            }
+        }
+
+        if (arrows.length > 0) paintArrows((Graphics2D) g.create(), insets);
+    }
+
+    private void paintArrows(Graphics2D g, Insets insets) {
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        // Worst first, so the best is on top
+        for (int rank = arrows.length - 1; rank >= 0; rank--) {
+            int    src   = arrows[rank] >>> 9 & 63;
+            int    dest  = arrows[rank] >>> 3 & 63;
+            double x1    = insets.left + (src % 8 + 0.5) * squareSize;
+            double y1    = insets.top + (src / 8 + 0.5) * squareSize;
+            double x2    = insets.left + (dest % 8 + 0.5) * squareSize;
+            double y2    = insets.top + (dest / 8 + 0.5) * squareSize;
+            double width = squareSize * Math.max(0.08, 0.2 - 0.04 * rank);
+            double head  = width * 2.2;
+
+            // Arrow along the x axis, rotated into place
+            AffineTransform saved  = g.getTransform();
+            double          length = Math.hypot(x2 - x1, y2 - y1);
+            g.translate(x1, y1);
+            g.rotate(Math.atan2(y2 - y1, x2 - x1));
+
+            Path2D.Double arrow = new Path2D.Double();
+            arrow.moveTo(0, -width / 2);
+            arrow.lineTo(length - head, -width / 2);
+            arrow.lineTo(length - head, -head / 2);
+            arrow.lineTo(length, 0);
+            arrow.lineTo(length - head, head / 2);
+            arrow.lineTo(length - head, width / 2);
+            arrow.lineTo(0, width / 2);
+            arrow.closePath();
+
+            g.setColor(new Color(colorArrow.getRed(), colorArrow.getGreen(), colorArrow.getBlue(),
+                                 Math.max(70, 190 - 40 * rank)));
+            g.fill(arrow);
+            g.setTransform(saved);
+        }
+
+        g.dispose();
+    }
+
+    /**
+     * Render the sprites again if the screen scale changed
+     */
+    private void updateSprites(AffineTransform transform) {
+        double scale = Math.max(transform.getScaleX(), 1);
+        if (scale == spriteScale) return;
+        spriteScale = scale;
+
+        int  size = (int) Math.ceil(squareSize * scale);
+        Font font = new Font("Monospaced", Font.PLAIN, (int) Math.round(size * 0.6));
+
+        for (int i = 0; i < Piece.ICONS.length; i++) {
+            if (Piece.ICONS[i] == null) continue;
+
+            BufferedImage sprite = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D    g      = sprite.createGraphics();
+
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+            g.setFont(font);
+            g.setColor((i & Position.BLACK) == 0 ? colorWhite : colorBlack);
+
+            FontMetrics metrics = g.getFontMetrics();
+            int         x       = (size - metrics.stringWidth(Piece.ICONS[i])) / 2;
+            int         y       = (size - metrics.getHeight()) / 2 + metrics.getAscent();
+            g.drawString(Piece.ICONS[i], x, y);
+            g.dispose();
+
+            spriteCache[i] = sprite;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulated online player
+ * <p>
+ * Joins a game like ChessEngine.joinOnlineGame and plays random or scripted moves at a fixed rate
+ * until the deadline passes, starting a new game whenever one ends.
+ */
+class BotClient implements Runnable {
+
+    /**
+     * Growable array of long samples
+     */
+    static class Samples {
+        private long[] values = new long[1024];
+        private int    size   = 0;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i < other.size; i++) add(other.values[i]);
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @param p Percentile between 0 and 100
+         * @return Value at the percentile, 0 if empty
+         */
+        long percentile(double p) {
+            if (size == 0) return 0;
+
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+
+            int index = (int) Math.ceil(p / 100.0 * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))];
+        }
+    }
+
+    private final String       host;
+    private final int          port;
+    private final long         thinkMillis;
+    private final int          maxPlies;
+    private final List<String> script;
+    private final long         deadline;
+    private final Random       random;
+
+    // Results, read after the thread finished
+    final Samples connectNanos   = new Samples();
+    final Samples roundTripNanos = new Samples();
+    int           gamesStarted   = 0;
+    int           gamesCompleted = 0;
+    int           gamesFlagged   = 0;
+    int           failures       = 0;
+    long          movesSent      = 0;
+
+    /**
+     * @param host        Server address
+     * @param port        Server port
+     * @param thinkMillis Delay before each own move
+     * @param maxPlies    Plies after which the bot leaves a game
+     * @param script      Games in coordinate notation ("e2e4 e7e5 ..."), null for random moves
+     * @param deadline    System.nanoTime() after which no new game is started
+     * @param seed        Random seed
+     */
+    BotClient(String host, int port, long thinkMillis, int maxPlies, List<String> script, long deadline, long seed) {
+        this.host        = host;
+        this.port        = port;
+        this.thinkMillis = thinkMillis;
+        this.maxPlies    = maxPlies;
+        this.script      = script;
+        this.deadline    = deadline;
+        this.random      = new Random(seed);
+    }
+
+    @Override
+    public void run() {
+        while (System.nanoTime() < deadline) {
+            try {
+                playGame();
+            } catch (IOException e) {
+                failures++;
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connect, play one game and disconnect
+     */
+    private void playGame() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream os = socket.getOutputStream();
+            InputStream  is = socket.getInputStream();
+
+            // Do not wait for an opponent past the deadline
+            long remainingMillis = (deadline - start) / 1_000_000;
+            socket.setSoTimeout((int) Math.max(1000, Math.min(Integer.MAX_VALUE, remainingMillis)));
+
+            byte[] handshake = is.readNBytes(ChessProtocol.HANDSHAKE_SIZE);
+            if (handshake.length < ChessProtocol.HANDSHAKE_SIZE)
+                throw new IOException("Connection closed before handshake");
+            socket.setSoTimeout(0);
+
+            connectNanos.add(System.nanoTime() - start);
+            gamesStarted++;
+
+            ChessColorType        myColor = ChessProtocol.joinerColor(handshake[0]);
+            GameClock.TimeControl control = ChessProtocol.decodeTimeControl(handshake);
+            GameClock             clock   = control == null ? null : new GameClock(control, null, null);
+            Board                 board   = Board.initial();
+            String[]       moves    = script == null ? null : script.get(random.nextInt(script.size())).trim().split("\\s+");
+            long                  sentAt  = 0;
+
+            if (clock != null) clock.start(ChessColorType.White);
+
+            while (!board.kingCaught && board.plyCount < maxPlies) {
+                if (board.turnColor == myColor) {
+                    if (thinkMillis > 0) Thread.sleep(thinkMillis);
+
+                    Coordinates[] move = chooseMove(board, moves);
+                    if (move == null) break;
+
+                    int     promotion  = board.isPromotion(move[0], move[1]) ? promotionOf(moves, board.plyCount) : 0;
+                    boolean kingCaught = board.pieces.get(move[1]) instanceof King;
+                    int     state      = Board.stateAfter(board.pieces, board.state, move[0], move[1]);
+
+                    long clockMillis = clock == null ? 0 : clock.press();
+
+                    os.write(ChessProtocol.encodeMove(move[0], move[1], kingCaught, promotion, state, clockMillis));
+                    os.flush();
+                    sentAt = System.nanoTime();
+                    movesSent++;
+
+                    board.applyMove(move[0], move[1], promotion);
+
+                } else {
+                    byte[] frame = is.readNBytes(ChessProtocol.MOVE_FRAME_SIZE);
+                    if (frame.length < ChessProtocol.MOVE_FRAME_SIZE) break;
+
+                    // Answer pings of a host; they are read only while waiting, so the host sees long round trips
+                    if (ChessProtocol.frameType(frame) == ChessProtocol.TYPE_PING) {
+                        os.write(ChessProtocol.encodePong(frame, System.currentTimeMillis()));
+                        continue;
+                    }
+
+                    if (ChessProtocol.frameType(frame) == ChessProtocol.TYPE_FLAG) {
+                        if (ChessProtocol.frameFlagged(frame) == myColor) gamesFlagged++;
+                        break;
+                    }
+
+                    if (sentAt != 0) roundTripNanos.add(System.nanoTime() - sentAt);
+
+                    board.applyMove(ChessProtocol.frameSrc(frame), ChessProtocol.frameDest(frame),
+                                    ChessProtocol.framePromotion(frame));
+                    if (clock != null) {
+                        clock.press();
+                        clock.setRemaining(myColor == ChessColorType.White ? ChessColorType.Black : ChessColorType.White,
+                                           ChessProtocol.frameClock(frame));
+                    }
+                }
+            }
+
+            gamesCompleted++;
+        }
+    }
+
+    /**
+     * Pick the scripted move for this ply if legal, a random move otherwise
+     *
+     * @return {src, dest}, null if no move is possible
+     */
+    private Coordinates[] chooseMove(Board board, String[] moves) {
+        if (moves != null && board.plyCount < moves.length && moves[board.plyCount].length() >= 4) {
+            String      move = moves[board.plyCount];
+            Coordinates src  = Coordinates.parse(move.substring(0, 2));
+            Coordinates dest = Coordinates.parse(move.substring(2, 4));
+
+            if (src != null && dest != null && board.isLegalMove(src, dest)) return new Coordinates[]{src, dest};
+        }
+
+        List<Coordinates[]> legalMoves = board.legalMoves();
+        if (legalMoves.isEmpty()) return null;
+
+        return legalMoves.get(random.nextInt(legalMoves.size()));
+    }
+
+    /**
+     * @return Promotion code of the scripted move, queen if unspecified
+     */
+    private static int promotionOf(String[] moves, int ply) {
+        if (moves != null && ply < moves.length && moves[ply].length() == 5) {
+            switch (moves[ply].charAt(4)) {
+                case 'r':
+                    return ChessProtocol.PROMOTE_ROOK;
+                case 'b':
+                    return ChessProtocol.PROMOTE_BISHOP;
+                case 'n':
+                    return ChessProtocol.PROMOTE_KNIGHT;
+            }
+        }
+
+        return ChessProtocol.PROMOTE_QUEEN;
+    }
+}
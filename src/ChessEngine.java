@@ -2,19 +2,47 @@ import javax.swing.*;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Game of the client
+ * <p>
+ * The game is only changed on the engine thread: the GUI hands it clicks and menu actions with execute(), and
+ * opponent frames are received on another thread and applied there. The engine shows moves through BoardUpdates,
+ * one diff per move, and runs dialogs on the EDT, waiting for them when it needs the answer.
+ */
 public class ChessEngine {
     // Chess GUI
     public ChessGUI GUI = new ChessGUI(this);
 
+    // Thread the game is changed on, and the one waiting for opponent frames
+    private final ExecutorService worker   = singleThread("Engine");
+    private final ExecutorService receiver = singleThread("OpponentWait");
+
     // Variables
-    public ChessColorType currentTurnColor;
-    public int            currentTurnCount;
-    public boolean        isGameRunning = false;
+    public          ChessColorType currentTurnColor;
+    public          int            currentTurnCount;
+    // Also read on the EDT
+    public volatile boolean        isGameRunning = false;
 
     public boolean          isPieceSelected;
     public Piece            selectedPiece;
@@ -23,18 +51,110 @@ public class ChessEngine {
     private King whiteKing;
     private King blackKing;
 
+    // Moves played since startBoard, for PGN export
+    public final List<Move> moveHistory = new ArrayList<>();
+    // Position the history starts from, null for the initial position
+    private Board           startBoard;
+    // PGN result of the game
+    private String          gameResult  = "*";
+    // Positions since the last capture or pawn move, for the draw rules
+    private final PositionHistory history = new PositionHistory();
+    // Castling rights and en passant file, as Board.state
+    private int                   state;
+
+    // Autosave journal of the running game, null if autosave failed
+    public static final Path JOURNAL_DIR = Paths.get(System.getProperty("user.home"), ".online-chess", "journal");
+    private MoveJournal      journal;
+
+    // Position database for opening queries, null if none is open
+    private PositionDb positionDb;
+
+    // Metrics of this client, exposed over JMX by registerMetrics()
+    final         Metrics           metrics        = new Metrics();
+    private final Metrics.Histogram saveTime       = metrics.histogram("SaveGame", "us", "Time to save a game");
+    private final Metrics.Histogram loadTime       = metrics.histogram("LoadGame", "us", "Time to load a game");
+    private final Metrics.Counter   framesSent     = metrics.counter("FramesSent", "Move and flag frames sent");
+    private final Metrics.Counter   framesReceived = metrics.counter("FramesReceived", "Move and flag frames received");
+    private final Metrics.Histogram opponentWait   = metrics.histogram(
+        "OpponentWait", "ms", "Time from waiting for the opponent to receiving their move");
+    private final Metrics.Histogram peerRoundTrip  = metrics.histogram(
+        "PeerRoundTrip", "us", "Ping round trip to the opponent or server");
+
+    // Time control for new games, null if untimed; read on the EDT like the clock and connection
+    public volatile GameClock.TimeControl timeControl;
+    public volatile GameClock             clock;
+
     // Variables for online games
-    public  boolean        isOnlineGame;
-    private Socket         socket;
-    private ServerSocket   server;
-    private ChessColorType myColor;
-    private ChessColorType opponentColor;
-    private OutputStream   os;
-    private InputStream    is;
+    public volatile boolean        isOnlineGame;
+    private         Socket         socket;
+    private         ServerSocket   server;
+    private         ChessColorType myColor;
+    private         ChessColorType opponentColor;
+    // Connection of the running online game, with its latency estimates
+    volatile        PeerLink       peer;
 
     // Map of pieces
     public HashMap<Coordinates, Piece> pieces;
 
+    private static ExecutorService singleThread(String name) {
+        return Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Run a task on the engine thread
+     */
+    public void execute(Runnable task) {
+        worker.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("Engine task failed", e);
+            }
+        });
+    }
+
+    /**
+     * Run a task on the engine thread and hand its result to a callback on the EDT
+     */
+    public <T> void execute(Supplier<T> task, Consumer<T> callback) {
+        execute(() -> {
+            T result = task.get();
+            SwingUtilities.invokeLater(() -> callback.accept(result));
+        });
+    }
+
+    /**
+     * Run a task on the engine thread and wait for its result; only from background threads, never the EDT
+     */
+    public <T> T call(Callable<T> task) throws InterruptedException, ExecutionException {
+        return worker.submit(task).get();
+    }
+
+    /**
+     * Run a GUI callback on the EDT and wait for it, e.g. a dialog whose answer the move needs
+     */
+    private <T> T onEdt(Callable<T> callback) {
+        FutureTask<T> task = new FutureTask<>(callback);
+        SwingUtilities.invokeLater(task);
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void onEdt(Runnable callback) {
+        onEdt(Executors.callable(callback));
+    }
+
     // Start new game
     public void newLocalGame() {
         if (isOnlineGame && isGameRunning) {
@@ -49,6 +169,8 @@ public class ChessEngine {
         isOnlineGame     = false;
         isPieceSelected  = false;
 
+        startClock(timeControl);
+
         GUI.setOpponentLabelText("Local game");
         GUI.enableButtonsForCurrentTurn();
         GUI.updateGameStatusLabels();
@@ -61,11 +183,10 @@ public class ChessEngine {
 
         try {
             server = new ServerSocket(port);
-            System.out.println("Listening on port " + port);
+            Log.info("Listening on port", port);
             socket = server.accept();
-            System.out.println("Connection accepted");
-            os = socket.getOutputStream();
-            is = socket.getInputStream();
+            Log.info("Connection accepted from", socket.getInetAddress());
+            peer = new PeerLink(socket, peerRoundTrip);
 
             GUI.setOpponentLabelText("Online game: " + socket.getInetAddress());
             GUI.disableAllButtons();
@@ -83,18 +204,20 @@ public class ChessEngine {
                 myColor       = ChessColorType.Black;
                 opponentColor = ChessColorType.White;
 
-                os.write(1);
+                peer.send(ChessProtocol.encodeHandshake(opponentColor, timeControl));
             } else {
                 myColor       = ChessColorType.White;
                 opponentColor = ChessColorType.Black;
 
-                os.write(0);
+                peer.send(ChessProtocol.encodeHandshake(opponentColor, timeControl));
             }
 
-            GUI.connectionEstablishedDialog(myColor);
+            peer.start();
+            startClock(timeControl);
+            onEdt(() -> GUI.connectionEstablishedDialog(myColor));
 
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Hosting failed", e);
         }
 
         return null;
@@ -107,8 +230,7 @@ public class ChessEngine {
 
         try {
             socket = new Socket(hostname, port);
-            os     = socket.getOutputStream();
-            is     = socket.getInputStream();
+            peer   = new PeerLink(socket, peerRoundTrip);
 
             GUI.setOpponentLabelText("Online game: " + socket.getInetAddress());
             GUI.disableAllButtons();
@@ -120,10 +242,12 @@ public class ChessEngine {
             currentTurnCount = 1;
             currentTurnColor = ChessColorType.White;
 
-            // Get my color
+            // Get my color and the time control of the host
             // 0: Black, 1: White
-            int color = is.read();
-            if (color == 0) {
+            byte[] handshake = peer.readHandshake();
+            peer.start();
+
+            if (ChessProtocol.joinerColor(handshake[0]) == ChessColorType.Black) {
                 myColor       = ChessColorType.Black;
                 opponentColor = ChessColorType.White;
             } else {
@@ -131,7 +255,8 @@ public class ChessEngine {
                 opponentColor = ChessColorType.Black;
             }
 
-            GUI.connectionEstablishedDialog(myColor);
+            startClock(ChessProtocol.decodeTimeControl(handshake));
+            onEdt(() -> GUI.connectionEstablishedDialog(myColor));
 
         } catch (IOException e) {
             return e.getClass().getName() + " " + e.getMessage();
@@ -148,6 +273,10 @@ public class ChessEngine {
         selectedPiece        = null;
         possibleDestinations = null;
 
+        moveHistory.clear();
+        startBoard = null;
+        gameResult = "*";
+
         // Black
         initFirstRow(ChessColorType.Black, 0);
         initPawns(ChessColorType.Black, 1);
@@ -156,12 +285,17 @@ public class ChessEngine {
         initFirstRow(ChessColorType.White, 7);
         initPawns(ChessColorType.White, 6);
 
+        state = Board.ALL_CASTLING;
+        history.setHalfmoveClock(0);
+        history.start(Zobrist.hash(pieces, ChessColorType.White, state));
 
         GUI.clearPieces();
         for (Piece piece : pieces.values()) {
             GUI.updatePiece(piece);
         }
         GUI.disableAllButtons();
+
+        startJournal();
     }
 
     /**
@@ -172,31 +306,31 @@ public class ChessEngine {
     private void initFirstRow(ChessColorType color, int row) {
         Coordinates pos;
 
-        pos = new Coordinates(row, 0);
+        pos = Coordinates.of(row, 0);
         pieces.put(pos, new Rook(pieces, color, pos));
 
-        pos = new Coordinates(row, 1);
+        pos = Coordinates.of(row, 1);
         pieces.put(pos, new Knight(pieces, color, pos));
 
-        pos = new Coordinates(row, 2);
+        pos = Coordinates.of(row, 2);
         pieces.put(pos, new Bishop(pieces, color, pos));
 
-        pos = new Coordinates(row, 3);
+        pos = Coordinates.of(row, 3);
         pieces.put(pos, new Queen(pieces, color, pos));
 
-        pos = new Coordinates(row, 4);
+        pos = Coordinates.of(row, 4);
         King newKing = new King(pieces, color, pos);
         if (color == ChessColorType.Black) blackKing = newKing;
         else whiteKing = newKing;
         pieces.put(pos, newKing);
 
-        pos = new Coordinates(row, 5);
+        pos = Coordinates.of(row, 5);
         pieces.put(pos, new Bishop(pieces, color, pos));
 
-        pos = new Coordinates(row, 6);
+        pos = Coordinates.of(row, 6);
         pieces.put(pos, new Knight(pieces, color, pos));
 
-        pos = new Coordinates(row, 7);
+        pos = Coordinates.of(row, 7);
         pieces.put(pos, new Rook(pieces, color, pos));
 
     }
@@ -210,7 +344,7 @@ public class ChessEngine {
         Coordinates pos;
 
         for (int col = 0; col < 8; col++) {
-            pos = new Coordinates(row, col);
+            pos = Coordinates.of(row, col);
             pieces.put(pos, new Pawn(pieces, color, pos));
         }
     }
@@ -221,13 +355,15 @@ public class ChessEngine {
      * @param pos Position of the button
      */
     public void selectPiece(Coordinates pos) {
+        // Clicks drawn before the board was disabled may still come in
+        if (!isGameRunning || isOnlineGame && currentTurnColor != myColor) return;
+
         Piece piece = pieces.get(pos);
 
         if (isPieceSelected) {
             // Move piece
             if (possibleDestinations != null && possibleDestinations.contains(pos)) {
                 // Selected button to move
-                GUI.movePiece(selectedPiece.pos, pos);
                 movePiece(selectedPiece.pos, pos);
                 GUI.clearActivatedDestinations();
 
@@ -241,7 +377,17 @@ public class ChessEngine {
         }
 
         // Select piece
-        Set<Coordinates> destinations = piece.getPossibleMovements();
+        if (piece == null || piece.color != currentTurnColor) return;
+
+        MoveGenerationEvent event = new MoveGenerationEvent();
+        event.begin();
+        Set<Coordinates> destinations = piece.getPossibleMovements(state);
+        event.end();
+        if (event.shouldCommit()) {
+            event.pieceType = piece.type.name();
+            event.moveCount = destinations.size();
+            event.commit();
+        }
 
         if (destinations.size() > 0) {
             possibleDestinations = destinations;
@@ -259,84 +405,104 @@ public class ChessEngine {
      * @param dest dest
      */
     private void movePiece(Coordinates src, Coordinates dest) {
-        byte[]         response    = new byte[6];
-        Piece          srcPiece    = pieces.get(src);
-        Piece          destPiece   = pieces.get(dest);
+        Piece   srcPiece     = pieces.get(src);
+        Piece   destPiece    = pieces.get(dest);
+        boolean kingCaught   = (destPiece == blackKing) || (destPiece == whiteKing);
+        boolean irreversible = destPiece != null || srcPiece.type == ChessPieceType.Pawn;
+        boolean castling     = Board.isCastling(pieces, src, dest);
+        boolean enPassant    = Board.isEnPassant(pieces, src, dest);
+        int     promotion    = ChessProtocol.PROMOTE_NONE;
+
+        // Ask for the promotion first, so that the move is shown as one diff
+        if (!kingCaught && srcPiece.type == ChessPieceType.Pawn && (dest.row == 0 || dest.row == 7)) {
+            ChessPieceType result = onEdt(() -> new ChessGUI.PawnPromotionDialog(GUI, dest, srcPiece.color).showDialog());
+            promotion = ChessProtocol.promotionCode(result);
+        }
+
+        state = Board.stateAfter(pieces, state, src, dest);
+        Board.movePiece(pieces, src, dest, promotion);
+        showMove(src, dest, castling, enPassant);
 
         // King dead - game over
-        if ((destPiece == blackKing) || (destPiece == whiteKing)) {
+        if (kingCaught) {
             isGameRunning = false;
-            GUI.gameEnded(currentTurnColor);
-            response[4] = 1;
+            gameResult    = resultFor(currentTurnColor);
+            if (clock != null) clock.stop();
+            endJournal();
+            onEdt(() -> GUI.gameEnded(currentTurnColor));
 
         } else {
-            // Move piece by changing key for the piece
-            srcPiece.hasMoved = true;
-            srcPiece.pos      = dest;
-
-            pieces.put(dest, srcPiece);
-            pieces.remove(src);
-
-            // Promote pawn if conditions met
-            if (srcPiece.type == ChessPieceType.Pawn) {
-                if (((Pawn) srcPiece).isPromotable()) {
-                    ChessGUI.PawnPromotionDialog dialog = new ChessGUI.PawnPromotionDialog(GUI, srcPiece.pos, srcPiece.color);
-                    ChessPieceType               result = dialog.showDialog();
-
-                    Piece newPiece;
-                    switch (result) {
-                        case Queen:
-                            newPiece = new Queen(pieces, srcPiece.color, srcPiece.pos);
-                            response[5] = 1;
-                            break;
-                        case Bishop:
-                            newPiece = new Bishop(pieces, srcPiece.color, srcPiece.pos);
-                            response[5] = 2;
-                            break;
-                        case Rook:
-                            newPiece = new Rook(pieces, srcPiece.color, srcPiece.pos);
-                            response[5] = 3;
-                            break;
-                        case Knight:
-                            newPiece = new Knight(pieces, srcPiece.color, srcPiece.pos);
-                            response[5] = 4;
-                            break;
-                        default:
-                            throw new RuntimeException("Unexpected promotion piece type " + result);
-                    }
-
-                    newPiece.id = srcPiece.id;
-                    pieces.remove(srcPiece.pos);
-                    pieces.put(newPiece.pos, newPiece);
-
-                    // Update button
-                    GUI.updatePiece(newPiece);
-                }
-            } else {
-                // No promotion
-                response[5] = 0;
-            }
-            response[4] = 0;
+            history.add(Zobrist.hash(pieces, opposite(currentTurnColor), state), irreversible);
+            endIfDrawn();
         }
 
-        response[0] = (byte) src.row;
-        response[1] = (byte) src.col;
-        response[2] = (byte) dest.row;
-        response[3] = (byte) dest.col;
+        recordMove(new Move(src, dest, ChessProtocol.promotionType(promotion)));
+
+        // Stop the clock of the mover
+        long clockMillis = (clock != null && isGameRunning) ? clock.press() : 0;
 
         if (isOnlineGame) {
+            try {
+                sendFrame(ChessProtocol.encodeMove(src, dest, kingCaught, promotion, state, clockMillis));
+
+                // The opponent's clock runs here while the move travels to them and their answer back
+                if (clock != null && isGameRunning) clock.addTime(opponentColor, peer.lagAllowanceMillis());
+            } catch (IOException e) {
+                onEdt(() -> GUI.gameEndedUnexpectedly(e.getMessage()));
+                Log.error("Move not sent", e);
+            }
+
             if (!isGameRunning) {
-                // Player wins
+                // Player wins or the game is drawn
                 endOnlineConnection();
             }
+        }
+    }
 
-            try {
-                os.write(response);
-            } catch (IOException e) {
-                GUI.gameEndedUnexpectedly(e.getMessage());
-                e.printStackTrace();
-            }
+    /**
+     * Show a move made on the pieces as one diff: its squares, the rook when castling and the pawn captured
+     * en passant
+     */
+    private void showMove(Coordinates src, Coordinates dest, boolean castling, boolean enPassant) {
+        long changed = BoardUpdates.bit(src) | BoardUpdates.bit(dest);
+
+        if (castling) {
+            changed |= BoardUpdates.bit(Board.castlingRookSource(dest)) | BoardUpdates.bit(Board.castlingRookDest(dest));
+        } else if (enPassant) {
+            changed |= BoardUpdates.bit(Board.enPassantSquare(src, dest));
+        }
+
+        byte[] codes = new byte[64];
+        for (long bits = changed; bits != 0; bits &= bits - 1) {
+            int   square = Long.numberOfTrailingZeros(bits);
+            Piece piece  = pieces.get(Coordinates.of(square));
+
+            if (piece != null) codes[square] = (byte) BoardView.spriteIndex(piece);
         }
+
+        GUI.showMove(changed, codes);
+    }
+
+    /**
+     * End the game if the position after the last move is drawn by repetition or the fifty-move rule
+     *
+     * @return Whether the game was drawn
+     */
+    private boolean endIfDrawn() {
+        String reason = history.drawReason();
+        if (reason == null) return false;
+
+        isGameRunning = false;
+        gameResult    = "1/2-1/2";
+        if (clock != null) clock.stop();
+        endJournal();
+        onEdt(() -> GUI.gameDrawn(reason));
+
+        return true;
+    }
+
+    private static ChessColorType opposite(ChessColorType color) {
+        return color == ChessColorType.White ? ChessColorType.Black : ChessColorType.White;
     }
 
     /**
@@ -388,85 +554,165 @@ public class ChessEngine {
             GUI.disableAllButtons();
             GUI.showWaitMessage();
 
-            SwingWorker<byte[], Void> sw = new SwingWorker<>() {
-                @Override
-                protected byte[] doInBackground() throws Exception {
-                    return is.readNBytes(6);
+            receiver.execute(() -> {
+                MoveFrameEvent event = new MoveFrameEvent();
+                long           start = System.nanoTime();
+                byte[]         frame;
+
+                event.begin();
+                try {
+                    frame = peer.receive();
+                } catch (InterruptedException e) {
+                    return;
                 }
+                event.end();
 
-                @Override
-                protected void done() {
-                    // Bytewise communication
-                    // [Src row][Src column][Dest row][Dest column][Caught king][Promote to]
-                    byte[] answer;
-
-                    try {
-                        // Move piece based on received data
-                        answer = get();
-
-                        Coordinates src        = new Coordinates(answer[0], answer[1]);
-                        Coordinates dest       = new Coordinates(answer[2], answer[3]);
-                        boolean     kingCaught = answer[4] == 1;
-                        int         promotion  = answer[5];
-
-                        // Make move based on answer
-                        Piece srcPiece = pieces.get(src);
-                        Piece newPiece = null;
-                        pieces.remove(src);
-                        pieces.remove(dest);
-
-                        switch (promotion) {
-                            case 0:
-                                pieces.put(dest, srcPiece);
-                                srcPiece.pos = dest;
-                                break;
-                            case 1:
-                                // To queen
-                                newPiece = new Queen(pieces, srcPiece.color, dest);
-                                pieces.put(dest, newPiece);
-                                break;
-                            case 2:
-                                // To bishop
-                                newPiece = new Bishop(pieces, srcPiece.color, dest);
-                                pieces.put(dest, newPiece);
-                                break;
-                            case 3:
-                                // To rook
-                                newPiece = new Rook(pieces, srcPiece.color, dest);
-                                pieces.put(dest, newPiece);
-                                break;
-                            case 4:
-                                // To knight
-                                newPiece = new Knight(pieces, srcPiece.color, dest);
-                                pieces.put(dest, newPiece);
-                                break;
-                        }
-
-                        if (kingCaught) {
-                            // Game end
-                            GUI.gameEnded(opponentColor);
-                            GUI.disableAllButtons();
-                            isGameRunning = false;
-                            endOnlineConnection();
-                        }
-
-                        // Update buttons
-                        if (newPiece != null)
-                            newPiece.id = srcPiece.id;
-                        GUI.removePiece(src);
-                        GUI.updatePiece(pieces.get(dest));
-
-                        switchTurn();
-
-                    } catch (InterruptedException | ExecutionException e) {
-                        GUI.gameEndedUnexpectedly(e.getMessage());
-                        e.printStackTrace();
-                    }
+                if (frame.length == ChessProtocol.MOVE_FRAME_SIZE) {
+                    framesReceived.increment();
+                    opponentWait.recordSince(start);
                 }
-            };
 
-            sw.execute();
+                if (event.shouldCommit()) {
+                    event.direction = "received";
+                    event.frameType = frame.length > 0 ? ChessProtocol.frameType(frame) : -1;
+                    event.bytes     = frame.length;
+                    event.commit();
+                }
+
+                execute(() -> opponentMoved(frame));
+            });
+        }
+    }
+
+    /**
+     * Apply a frame received from the opponent
+     *
+     * @param answer Move or flag frame, empty if the connection was closed
+     */
+    private void opponentMoved(byte[] answer) {
+        // Bytewise communication
+        // [Type][Src row][Src column][Dest row][Dest column][Caught king][Promote to][State][Clock (int)]
+        if (answer.length < ChessProtocol.MOVE_FRAME_SIZE) {
+            // Connection closed after the game ended locally
+            if (!isGameRunning) return;
+
+            isGameRunning = false;
+            onEdt(() -> GUI.gameEndedUnexpectedly("Connection closed by opponent"));
+            endOnlineConnection();
+            return;
+        }
+
+        if (ChessProtocol.frameType(answer) == ChessProtocol.TYPE_FLAG) {
+            flagFell(ChessProtocol.frameFlagged(answer), false);
+            return;
         }
+
+        Coordinates src          = ChessProtocol.frameSrc(answer);
+        Coordinates dest         = ChessProtocol.frameDest(answer);
+        boolean     kingCaught   = ChessProtocol.frameKingCaught(answer);
+        int         promotion    = ChessProtocol.framePromotion(answer);
+        boolean     irreversible = pieces.get(dest) != null || pieces.get(src) instanceof Pawn;
+        boolean     castling     = Board.isCastling(pieces, src, dest);
+        boolean     enPassant    = Board.isEnPassant(pieces, src, dest);
+        int         newState     = Board.stateAfter(pieces, state, src, dest);
+
+        if (ChessProtocol.frameState(answer) != newState) {
+            isGameRunning = false;
+            onEdt(() -> GUI.gameEndedUnexpectedly("Opponent disagrees on castling rights or en passant"));
+            endOnlineConnection();
+            return;
+        }
+
+        // Make move based on answer
+        Board.movePiece(pieces, src, dest, promotion);
+        state = newState;
+        showMove(src, dest, castling, enPassant);
+        recordMove(new Move(src, dest, ChessProtocol.promotionType(promotion)));
+
+        // Take over the clock of the opponent
+        if (clock != null) {
+            clock.press();
+            clock.setRemaining(opponentColor, ChessProtocol.frameClock(answer));
+        }
+
+        if (kingCaught) {
+            // Game end
+            isGameRunning = false;
+            if (clock != null) clock.stop();
+            gameResult = resultFor(opponentColor);
+            endJournal();
+            onEdt(() -> GUI.gameEnded(opponentColor));
+            endOnlineConnection();
+        } else {
+            // Both sides see the same draw, so the connection is closed without a frame
+            history.add(Zobrist.hash(pieces, myColor, state), irreversible);
+            if (endIfDrawn()) endOnlineConnection();
+        }
+
+        switchTurn();
+    }
+
+    /**
+     * Send a move or flag frame to the opponent
+     */
+    private void sendFrame(byte[] frame) throws IOException {
+        MoveFrameEvent event = new MoveFrameEvent();
+        event.begin();
+        peer.send(frame);
+        event.end();
+        framesSent.increment();
+
+        if (event.shouldCommit()) {
+            event.direction = "sent";
+            event.frameType = ChessProtocol.frameType(frame);
+            event.bytes     = frame.length;
+            event.commit();
+        }
+    }
+
+    /**
+     * Start the clock of White, or remove the clock for untimed games
+     *
+     * @param control Time control of the game
+     */
+    private void startClock(GameClock.TimeControl control) {
+        if (clock != null) clock.stop();
+
+        if (control == null) {
+            clock = null;
+            return;
+        }
+
+        clock = new GameClock(control, TimingWheel.shared(),
+                              flagged -> execute(() -> flagFell(flagged, true)));
+        clock.start(ChessColorType.White);
+    }
+
+    /**
+     * End the game on time
+     *
+     * @param flagged     Color whose flag fell
+     * @param detectedHere Whether this side's clock detected it, so the opponent must be told
+     */
+    private void flagFell(ChessColorType flagged, boolean detectedHere) {
+        if (!isGameRunning) return;
+
+        isGameRunning = false;
+        gameResult    = resultFor(flagged == ChessColorType.White ? ChessColorType.Black : ChessColorType.White);
+        if (clock != null) clock.stop();
+        endJournal();
+
+        if (isOnlineGame && detectedHere) {
+            try {
+                sendFrame(ChessProtocol.encodeFlag(flagged));
+            } catch (IOException e) {
+                Log.warn("Flag not sent", e);
+            }
+        }
+
+        onEdt(() -> GUI.gameEnded(flagged == ChessColorType.White ? ChessColorType.Black : ChessColorType.White));
+
+        if (isOnlineGame) endOnlineConnection();
     }
 
     /**
@@ -474,16 +720,14 @@ public class ChessEngine {
      */
     private void endOnlineConnection() {
         try {
-            os.close();
-            is.close();
-            socket.close();
+            peer.close();
             if (server != null) server.close();
 
             GUI.setOpponentLabelText("");
             GUI.hideWaitMessage();
 
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("Connection not closed cleanly", e);
         }
     }
 
@@ -491,35 +735,29 @@ public class ChessEngine {
     /**
      * Save game state
      * <p>
-     * Save file structure:
-     * turnCount(int), turnColor(ChessColorType), pairs of coordinates and piece(Coordinates, Piece),
-     * List of logger items
+     * See GameFile for the file structure
      *
      * @param gameFile File destination
      * @return "" if successful, error message if unsuccessful
      */
     public String saveGame(File gameFile) {
-        try (FileOutputStream fos = new FileOutputStream(gameFile);
-             BufferedOutputStream bos = new BufferedOutputStream(fos);
-             ObjectOutputStream oos = new ObjectOutputStream(bos)) {
-
-            bos.write(0x77);
-
-            oos.writeInt(currentTurnCount);
-            oos.writeObject(currentTurnColor);
-
-            oos.writeInt(pieces.size());
-            for (Map.Entry<Coordinates, Piece> entry : pieces.entrySet()) {
-                Coordinates key   = entry.getKey();
-                Piece       value = entry.getValue();
-                oos.writeObject(key);
-                oos.writeObject(value);
-            }
+        PersistenceEvent event = new PersistenceEvent();
+        long             start = System.nanoTime();
+        event.begin();
+        event.operation = "save";
 
+        try {
+            GameFile.write(gameFile, currentBoard());
         } catch (IOException e) {
+            event.commit();
             return e.getMessage();
         }
 
+        event.bytes   = GameFile.FILE_SIZE;
+        event.success = true;
+        event.commit();
+        saveTime.recordSince(start);
+
         return "";
     }
 
@@ -530,44 +768,49 @@ public class ChessEngine {
      * @return "" if successful, error message if unsuccessful
      */
     public String loadGame(File gameFile) {
-        int                                    turnCount;
-        ChessColorType                         turnColor;
-        int                                    piecesSize;
-        HashMap<Coordinates, Piece>            pieces;
-
-        Coordinates newPieceCoords;
-        Piece       newPiece;
-
-        try (FileInputStream fis = new FileInputStream(gameFile);
-             BufferedInputStream bis = new BufferedInputStream(fis);
-             ObjectInputStream ois = new ObjectInputStream(bis)) {
+        PersistenceEvent event = new PersistenceEvent();
+        long             start = System.nanoTime();
+        event.begin();
+        event.operation = "load";
 
-            if (bis.read() != 0x77) return "Not a valid game file!";
-
-            turnCount = ois.readInt();
-            turnColor = (ChessColorType) ois.readObject();
+        Board board;
+        try {
+            board = GameFile.read(gameFile);
+        } catch (IOException e) {
+            event.commit();
+            return e.getMessage();
+        }
 
-            piecesSize = ois.readInt();
-            pieces     = new HashMap<>(piecesSize);
-            for (int i = 0; i < piecesSize; i++) {
-                newPieceCoords = (Coordinates) ois.readObject();
-                newPiece       = (Piece) ois.readObject();
+        event.bytes   = gameFile.length();
+        event.success = true;
+        event.commit();
+        loadTime.recordSince(start);
 
-                newPiece.pieces = pieces;
+        loadBoard(board);
+        startBoard = Board.copyOf(board);
+        if (isGameRunning) startJournal();
 
-                pieces.put(newPieceCoords, newPiece);
-            }
+        return "";
+    }
 
-        } catch (IOException | ClassNotFoundException e) {
-            return e.getMessage();
+    /**
+     * Replace the current game with a board, as a local game
+     *
+     * @param board Board to load
+     */
+    private void loadBoard(Board board) {
+        if (isOnlineGame && isGameRunning) {
+            endOnlineConnection();
         }
 
         // Load new game state
         GUI.clearPieces();
 
-        this.pieces = pieces;
+        this.pieces = board.pieces;
+        this.state  = board.state;
+        history.copyFrom(board.history());
         for (Piece piece : this.pieces.values()) {
-            if (piece.type == ChessPieceType.King) {
+            if (piece instanceof King) {
                 if (piece.color == ChessColorType.Black) {
                     blackKing = (King) piece;
                 } else {
@@ -577,16 +820,370 @@ public class ChessEngine {
             GUI.updatePiece(piece);
         }
 
-        this.currentTurnColor = turnColor;
-        this.currentTurnCount = turnCount;
-        this.isGameRunning    = true;
+        // Loaded games carry no clock
+        startClock(null);
+        endJournal();
+
+        moveHistory.clear();
+        startBoard = null;
+        gameResult = "*";
+
+        this.currentTurnColor = board.turnColor;
+        this.currentTurnCount = board.turnCount;
+        this.isGameRunning    = !board.kingCaught;
         this.isOnlineGame     = false;
         this.isPieceSelected  = false;
+        this.selectedPiece    = null;
 
         GUI.setOpponentLabelText("Local game");
+        GUI.disableAllButtons();
         GUI.enableButtonsForCurrentTurn();
         GUI.updateGameStatusLabels();
+    }
+
+    /**
+     * Append the current game to a PGN file
+     *
+     * @param pgnFile File destination
+     * @return "" if successful, error message if unsuccessful
+     */
+    public String exportPgn(File pgnFile) {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("Event", isOnlineGame ? "Online game" : "Local game");
+        tags.put("Site", "Online Chess");
+        tags.put("Date", LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy.MM.dd")));
+        tags.put("Round", "-");
+        if (isOnlineGame) {
+            tags.put(myColor == ChessColorType.White ? "White" : "Black", "Me");
+            tags.put(myColor == ChessColorType.White ? "Black" : "White", "Opponent");
+        }
+
+        try (PgnWriter writer = new PgnWriter(Files.newBufferedWriter(
+            pgnFile.toPath(), StandardCharsets.ISO_8859_1, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+
+            writer.writeGame(tags, startBoard != null ? startBoard : Board.initial(), moveHistory, gameResult);
+
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+
+        return "";
+    }
+
+    /**
+     * Load a game from a PGN file
+     * <p>
+     * The file is streamed until the requested game, which is replayed from its start position.
+     *
+     * @param pgnFile    File source
+     * @param gameNumber Number of the game in the file, starting from 1
+     * @return "" if successful, error message if unsuccessful
+     */
+    public String importPgn(File pgnFile, int gameNumber) {
+        List<Move> moves    = new ArrayList<>();
+        Board[]    found    = new Board[1];
+        String[]   fen      = new String[1];
+        String[]   result   = new String[1];
+        boolean[]  complete = new boolean[1];
+
+        PgnReplay replay = new PgnReplay() {
+            private int games = 0;
+
+            @Override
+            protected void onMove(Board board, Move move) {
+                if (games + 1 == gameNumber) moves.add(move);
+            }
+
+            @Override
+            protected void onGameEnd(String gameResult, boolean valid) {
+                if (++games != gameNumber) return;
+
+                found[0]    = board;
+                fen[0]      = tags.get("FEN");
+                result[0]   = gameResult;
+                complete[0] = valid;
+            }
+        };
+
+        try (PgnReader reader = new PgnReader(pgnFile.toPath())) {
+            while (found[0] == null && reader.readGame(replay)) ;
+
+            if (found[0] == null) return "The file has only " + reader.getGamesRead() + " games.";
+
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+
+        loadBoard(found[0]);
+        if (fen[0] != null) {
+            try {
+                startBoard = Fen.parse(fen[0]);
+            } catch (IllegalArgumentException ignored) {
+                // The game was replayed from the initial position
+            }
+        }
+        moveHistory.addAll(moves);
+        gameResult = result[0];
+        if (isGameRunning) startJournal();
+
+        if (!complete[0]) return "Game " + gameNumber + " has a move that could not be replayed; loaded up to that move.";
+
+        return "";
+    }
+
+    /**
+     * @return Board at the start of the current game
+     */
+    public Board getStartBoard() {
+        return startBoard != null ? Board.copyOf(startBoard) : Board.initial();
+    }
+
+    /**
+     * Load a position from FEN as a new local game
+     *
+     * @param fen FEN
+     * @return "" if successful, error message if unsuccessful
+     */
+    public String loadFen(String fen) {
+        Board board;
+
+        try {
+            board = Fen.parse(fen.trim());
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+
+        loadBoard(board);
+        startBoard = Board.copyOf(board);
+        if (isGameRunning) startJournal();
+
+        return "";
+    }
+
+    /**
+     * @return FEN of the current position
+     */
+    public String toFen() {
+        Board board = currentBoard();
+        board.setHalfmoveClock(history.halfmoveClock());
+
+        return Fen.toFen(board);
+    }
+
+    /**
+     * Build a position database from a PGN file
+     * <p>
+     * Blocks until all games are loaded; call it off the event dispatch thread.
+     *
+     * @param pgnFile PGN source
+     * @param dbFile  Database destination
+     * @return "" if successful, error message if unsuccessful
+     */
+    public String buildPositionDb(File pgnFile, File dbFile) {
+        try {
+            PositionDb.build(pgnFile.toPath(), dbFile.toPath(), Runtime.getRuntime().availableProcessors());
+        } catch (IOException | InterruptedException e) {
+            return e.getMessage();
+        }
+
+        return "";
+    }
+
+    /**
+     * Open a position database for queries, closing the previous one
+     *
+     * @param dbFile Database source
+     * @return "" if successful, error message if unsuccessful
+     */
+    public String openPositionDb(File dbFile) {
+        try {
+            PositionDb db = PositionDb.open(dbFile.toPath());
+            if (positionDb != null) positionDb.close();
+            positionDb = db;
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+
+        return "";
+    }
+
+    /**
+     * @return Whether a position database is open
+     */
+    public boolean hasPositionDb() {
+        return positionDb != null;
+    }
+
+    /**
+     * List the moves played from the current position in the open position database
+     *
+     * @return Lines of SAN, games and results, most played first
+     */
+    public List<String[]> queryPositionDb() {
+        List<String[]> result = new ArrayList<>();
+        if (positionDb == null || pieces == null) return result;
+
+        Board board = currentBoard();
+        for (PositionDb.MoveStats stats : positionDb.query(board)) {
+            // Hash collisions may yield moves that are not possible here
+            if (!board.isLegalMove(stats.move.src, stats.move.dest)) continue;
+
+            result.add(new String[]{
+                San.toSan(board, stats.move), String.valueOf(stats.games),
+                String.valueOf(stats.whiteWins), String.valueOf(stats.draws), String.valueOf(stats.blackWins)
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * @return Copy of the current position
+     */
+    public Board getBoard() {
+        Board board = Board.copyOf(currentBoard());
+        board.kingCaught = !pieces.containsValue(whiteKing) || !pieces.containsValue(blackKing);
+        board.history().copyFrom(history);
+
+        return board;
+    }
+
+    /**
+     * @return Board sharing the pieces of the current game; must not be modified
+     */
+    private Board currentBoard() {
+        Board board = new Board();
+        board.pieces.putAll(pieces);
+        board.turnColor = currentTurnColor;
+        board.turnCount = currentTurnCount;
+        board.state     = state;
+
+        return board;
+    }
+
+    /**
+     * @return Journal of the most recent unfinished game, null if none
+     */
+    public Path findUnfinishedGame() {
+        try {
+            List<Path> journals = MoveJournal.list(JOURNAL_DIR);
+            return journals.isEmpty() ? null : journals.get(journals.size() - 1);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Continue an unfinished game from its journal, as a local game
+     * <p>
+     * Journals of other unfinished games are deleted.
+     *
+     * @param journalFile Journal of the game
+     * @return "" if successful, error message if unsuccessful
+     */
+    public String recoverGame(Path journalFile) {
+        MoveJournal.Recovery recovery;
+
+        try {
+            recovery = MoveJournal.recover(journalFile);
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+
+        loadBoard(recovery.board);
+        startBoard = recovery.start;
+        moveHistory.addAll(recovery.moves);
+
+        if (!isGameRunning) {
+            discardUnfinishedGames(null);
+            return "";
+        }
+
+        discardUnfinishedGames(journalFile);
+
+        try {
+            journal = MoveJournal.reopen(recovery, MoveJournal.Syncer.shared());
+        } catch (IOException e) {
+            Log.warn("Journal not reopened", e);
+        }
 
         return "";
     }
+
+    /**
+     * Delete the journals of all unfinished games
+     *
+     * @param keep Journal to keep, null for none
+     */
+    public void discardUnfinishedGames(Path keep) {
+        try {
+            for (Path file : MoveJournal.list(JOURNAL_DIR)) {
+                if (!file.equals(keep)) Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            Log.warn("Unfinished games not discarded", e);
+        }
+    }
+
+    /**
+     * Start the journal of the current game with its start position and the moves played so far
+     * <p>
+     * The journal of the previous game is deleted. If the journal cannot be written the game
+     * continues without autosave.
+     */
+    private void startJournal() {
+        endJournal();
+
+        Board start = startBoard != null ? startBoard : Board.initial();
+
+        try {
+            Files.createDirectories(JOURNAL_DIR);
+            journal = MoveJournal.create(JOURNAL_DIR.resolve("game-" + System.currentTimeMillis() + MoveJournal.EXTENSION),
+                                         start, MoveJournal.Syncer.shared());
+
+            for (Move move : moveHistory) journal.append(move);
+
+        } catch (IOException e) {
+            Log.warn("Journal not created", e);
+            endJournal();
+        }
+    }
+
+    /**
+     * Add a move to the history and the journal
+     */
+    private void recordMove(Move move) {
+        moveHistory.add(move);
+
+        if (journal == null) return;
+
+        try {
+            journal.append(move);
+        } catch (IOException e) {
+            Log.warn("Move not journaled", e);
+            endJournal();
+        }
+    }
+
+    /**
+     * Delete the journal, when the game has ended or is replaced
+     */
+    private void endJournal() {
+        if (journal == null) return;
+
+        try {
+            journal.delete();
+        } catch (IOException e) {
+            Log.warn("Journal not deleted", e);
+        }
+        journal = null;
+    }
+
+    /**
+     * @param winner Color of the winner
+     * @return PGN result
+     */
+    private static String resultFor(ChessColorType winner) {
+        return winner == ChessColorType.White ? "1-0" : "0-1";
+    }
 }
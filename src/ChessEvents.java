@@ -0,0 +1,94 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder events
+//
+// Recorded with -XX:StartFlightRecording. Stack traces are off and fields are primitives or short strings, so
+// leaving recording on costs little; without a recording, begin() and commit() do nothing.
+
+@Name("chess.MoveGeneration")
+@Label("Move Generation")
+@Description("Possible moves listed for a piece or a whole position")
+@Category({"Online Chess", "Engine"})
+@StackTrace(false)
+class MoveGenerationEvent extends Event {
+    @Label("Piece Type")
+    @Description("Type of the piece, empty for all pieces of the side to move")
+    String pieceType;
+
+    @Label("Move Count")
+    int moveCount;
+}
+
+@Name("chess.MoveFrame")
+@Label("Move Frame")
+@Description("Frame sent to or received from the opponent; the duration of a received frame is the wait for it")
+@Category({"Online Chess", "Network"})
+@StackTrace(false)
+class MoveFrameEvent extends Event {
+    @Label("Direction")
+    String direction;
+
+    @Label("Frame Type")
+    int frameType;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+}
+
+@Name("chess.Persistence")
+@Label("Persistence")
+@Description("Game saved, loaded or journaled")
+@Category({"Online Chess", "Persistence"})
+@StackTrace(false)
+class PersistenceEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Success")
+    boolean success;
+}
+
+@Name("chess.SearchIteration")
+@Label("Search Iteration")
+@Description("One iteration of iterative deepening")
+@Category({"Online Chess", "Engine"})
+@StackTrace(false)
+class SearchIterationEvent extends Event {
+    @Label("Depth")
+    int depth;
+
+    @Label("Lines")
+    int lines;
+
+    @Label("Score")
+    @Description("Score of the best line for the side to move, in centipawns")
+    int score;
+
+    @Label("Nodes")
+    long nodes;
+
+    @Label("Quiescence Nodes")
+    @Description("Part of the nodes searched by the quiescence search")
+    long quiescenceNodes;
+}
+
+@Name("chess.GuiRefresh")
+@Label("GUI Refresh")
+@Description("Frame of board changes applied on the event dispatch thread")
+@Category({"Online Chess", "GUI"})
+@StackTrace(false)
+class GuiRefreshEvent extends Event {
+    @Label("Changed Squares")
+    int changedSquares;
+}
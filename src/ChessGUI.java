@@ -1,10 +1,11 @@
 import javax.swing.*;
 import java.awt.*;
-import java.awt.event.ActionEvent;
+import java.awt.datatransfer.StringSelection;
 import java.io.File;
-import java.util.HashSet;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 
@@ -110,8 +111,8 @@ public class ChessGUI extends JFrame {
     private final static Color     colorBlack         = new Color(21, 21, 21);
     private final static Color     colorWhite         = new Color(225, 225, 225);
     private final static Color     colorDestinations  = new Color(90, 109, 126);
-    // Size of button
-    private final static Dimension sizeButton         = new Dimension(50, 50);
+    // Size of a square
+    private final static int       sizeSquare         = 50;
     // Font size of button
     private final static int       sizeButtonFont     = 30;
     // Size of window
@@ -130,16 +131,24 @@ public class ChessGUI extends JFrame {
     private final JPanel           panelMain               = new JPanel(new GridBagLayout());
     // Opponent indicator
     private final JLabel           labelOpponent           = new JLabel();
+    // Latency indicator
+    private final JLabel           labelLatency            = new JLabel();
     // Opponent wait indicator
     private final JLabel           labelWaitOpponent       = new JLabel();
     // Turn indicator
     private final JLabel           labelTurnColorIndicator = new JLabel();
     // Turn count indicator
     private final JLabel           labelTurnCountIndicator = new JLabel();
-    // Array of buttons
-    private final JButton[][]      buttons                 = new JButton[8][8];
-    // Activated buttons for destinations
-    private final Set<Coordinates> activatedDestinations   = new HashSet<>();
+    // Clock indicator
+    private final JLabel           labelClock              = new JLabel();
+    // Board
+    private final BoardView        board                   = new BoardView(sizeSquare, this::squareClickHandler);
+    // Board changes for the next frame
+    private final BoardUpdates     boardUpdates            = new BoardUpdates(board);
+    // Analysis sidebar
+    private final AnalysisPanel    analysisPanel           = new AnalysisPanel(board);
+    // Whether the sidebar is shown, read on the engine thread
+    private volatile boolean       analysisShown           = false;
 
 
     ChessGUI(ChessEngine engine) {
@@ -148,6 +157,8 @@ public class ChessGUI extends JFrame {
         // Draw board
         labelOpponent.setPreferredSize(new Dimension(opponentLabel));
         labelOpponent.setHorizontalAlignment(SwingConstants.LEFT);
+        labelLatency.setPreferredSize(new Dimension(opponentLabel));
+        labelLatency.setHorizontalAlignment(SwingConstants.RIGHT);
         labelWaitOpponent.setPreferredSize(new Dimension(opponentLabel));
         labelWaitOpponent.setHorizontalAlignment(SwingConstants.RIGHT);
         hideWaitMessage();
@@ -155,21 +166,27 @@ public class ChessGUI extends JFrame {
         labelTurnColorIndicator.setHorizontalAlignment(SwingConstants.LEFT);
         labelTurnCountIndicator.setPreferredSize(new Dimension(sizeIndicatorLabel));
         labelTurnCountIndicator.setHorizontalAlignment(SwingConstants.RIGHT);
+        labelClock.setPreferredSize(new Dimension(opponentLabel));
+        labelClock.setHorizontalAlignment(SwingConstants.RIGHT);
 
         // Add panels to grid
         addComponentToGrid(labelOpponent, 0, 0, 3, 1);
+        addComponentToGrid(labelLatency, 5, 0, 5, 1);
         addComponentToGrid(labelWaitOpponent, 0, 1, 4, 1);
+        addComponentToGrid(labelClock, 5, 1, 5, 1);
         addComponentToGrid(labelTurnColorIndicator, 0, 2, 3, 1);
         addComponentToGrid(labelTurnCountIndicator, 6, 2, 3, 1);
         addComponentToGrid(addNumberLabels(), 0, 4, 1, 8);
         addComponentToGrid(addAlphabetLabels(), 1, 3, 8, 1);
-        addComponentToGrid(addPieceButtons(), 1, 4, 8, 8);
+        addComponentToGrid(board, 1, 4, 8, 8);
         addComponentToGrid(addAlphabetLabels(), 1, 12, 8, 1);
         addComponentToGrid(addNumberLabels(), 9, 4, 1, 8);
 
         // Window settings
         panelMain.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
         add(panelMain);
+        analysisPanel.setVisible(false);
+        add(analysisPanel, BorderLayout.EAST);
         setJMenuBar(addMenuBar());
         setTitle("Online Chess");
         setSize(sizeWindow);
@@ -178,42 +195,16 @@ public class ChessGUI extends JFrame {
         setDefaultCloseOperation(EXIT_ON_CLOSE);
 
         pack();
+
+        // Refresh clocks and latency
+        new Timer(100, l -> {
+            updateClockLabel();
+            updateLatencyLabel();
+        }).start();
     }
 
     // Functions for drawing board
 
-    /**
-     * @return A JPanel with 8 x 8 buttons
-     */
-    private JPanel addPieceButtons() {
-        JButton btn;
-        JPanel  board = new JPanel(new GridLayout(8, 8));
-
-        for (int row = 0; row < 8; row++) {
-            for (int col = 0; col < 8; col++) {
-                btn = new JButton();
-
-                this.buttons[row][col] = btn;
-                btn.putClientProperty("pos", new Coordinates(row, col));
-                btn.addActionListener(this::buttonClickHandler);
-
-                btn.setMargin(new Insets(0, 0, 0, 0));
-                btn.setFont(new Font("Monospaced", Font.PLAIN, sizeButtonFont));
-                btn.setBackground((row + col) % 2 == 0 ? new Color(161, 127, 114) : new Color(119, 89, 72));
-                btn.setBorderPainted(false);
-                btn.setEnabled(false);
-                btn.setHorizontalAlignment(SwingConstants.CENTER);
-                btn.setPreferredSize(sizeButton);
-
-                board.add(btn);
-            }
-        }
-
-        board.setBorder(BorderFactory.createLineBorder(Color.black, 2));
-
-        return board;
-    }
-
     /**
      * @return A JPanel with vertical labels '8' to '1'
      */
@@ -259,8 +250,8 @@ public class ChessGUI extends JFrame {
             if (engine.isGameRunning) {
                 if (JOptionPane.showConfirmDialog(
                     this, "Discard current game?", "Discard Game", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE
-                ) == 0) engine.newLocalGame();
-            } else engine.newLocalGame();
+                ) == 0) engine.execute(engine::newLocalGame);
+            } else engine.execute(engine::newLocalGame);
         });
         newLocalGame.setName("NewLocalGame");
 
@@ -272,6 +263,24 @@ public class ChessGUI extends JFrame {
         joinOnlineGame.addActionListener(l -> joinOnlineGame());
         joinOnlineGame.setName("JoinOnlineGame");
 
+        JMenuItem timeControl = new JMenuItem("Time control...");
+        timeControl.addActionListener(l -> {
+            String current = engine.timeControl == null ? "" : engine.timeControl.toString();
+            String input   = (String) JOptionPane.showInputDialog(
+                this, "Minutes+increment seconds, optionally /delay seconds (e.g. 5+3, 10+0/2).\nLeave empty for no clock.",
+                "Time control", JOptionPane.QUESTION_MESSAGE, null, null, current);
+
+            if (input == null) return;
+
+            GameClock.TimeControl control = GameClock.TimeControl.parse(input);
+            if (control == null && !input.isBlank()) {
+                JOptionPane.showMessageDialog(this, "Invalid time control " + input, "Time control", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            engine.timeControl = control;
+        });
+        timeControl.setName("TimeControl");
+
         JMenuItem saveGame = new JMenuItem("Save game...");
         saveGame.addActionListener(l -> {
             if (engine.isGameRunning) {
@@ -284,13 +293,15 @@ public class ChessGUI extends JFrame {
                     destination = new File(destination.getAbsolutePath() + ".jcg");
 
                 // Valid file destination
-                String result = engine.saveGame(destination);
+                File target = destination;
 
-                if (Objects.equals(result, "")) {
-                    JOptionPane.showMessageDialog(this, "Successfully saved game.", "Save game", JOptionPane.INFORMATION_MESSAGE);
-                } else {
-                    JOptionPane.showMessageDialog(this, "Could not save game.\n\n" + result, "Save game", JOptionPane.ERROR_MESSAGE);
-                }
+                engine.execute(() -> engine.saveGame(target), result -> {
+                    if (Objects.equals(result, "")) {
+                        JOptionPane.showMessageDialog(this, "Successfully saved game.", "Save game", JOptionPane.INFORMATION_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(this, "Could not save game.\n\n" + result, "Save game", JOptionPane.ERROR_MESSAGE);
+                    }
+                });
             }
         });
         saveGame.setName("SaveGame");
@@ -313,15 +324,109 @@ public class ChessGUI extends JFrame {
             }
 
             // Valid file destination
-            String result = engine.loadGame(source);
+            engine.execute(() -> engine.loadGame(source), result -> {
+                if (Objects.equals(result, "")) {
+                    JOptionPane.showMessageDialog(this, "Successfully loaded game.", "Load game", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(this, "Could not load game.\n\n" + result, "Load game", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        });
+        loadGame.setName("LoadGame");
+
+        JMenuItem importPgn = new JMenuItem("Import PGN...");
+        importPgn.addActionListener(l -> {
+            File source = FileDialog.open(this, "Import PGN", "Portable game notation (*.pgn)", "pgn");
+
+            if (source == null) return;
+
+            String gameInput = (String) JOptionPane.showInputDialog(this, "Number of the game in the file:", "Import PGN", JOptionPane.QUESTION_MESSAGE, null, null, "1");
+            if (gameInput == null || gameInput.equals("")) return;
+
+            int gameNumber;
+            try {
+                gameNumber = Integer.parseInt(gameInput);
+                if (gameNumber < 1) throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                JOptionPane.showMessageDialog(this, "Invalid game number " + gameInput, "Import PGN", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            if (engine.isGameRunning) {
+                if (JOptionPane.showConfirmDialog(
+                    this, "Discard current game?", "Discard Game", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE
+                ) != 0) return;
+            }
+
+            engine.execute(() -> engine.importPgn(source, gameNumber), result -> {
+                if (Objects.equals(result, "")) {
+                    JOptionPane.showMessageDialog(this, "Successfully imported game.", "Import PGN", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(this, "Problem importing game.\n\n" + result, "Import PGN", JOptionPane.WARNING_MESSAGE);
+                }
+            });
+        });
+        importPgn.setName("ImportPgn");
+
+        JMenuItem exportPgn = new JMenuItem("Export PGN...");
+        exportPgn.addActionListener(l -> {
+            File destination = FileDialog.save(this, "Export PGN", "Portable game notation (*.pgn)", "pgn");
+
+            if (destination == null) return;
+
+            if (!destination.getAbsolutePath().endsWith(".pgn"))
+                destination = new File(destination.getAbsolutePath() + ".pgn");
+
+            // Games are appended to existing files
+            File target = destination;
+
+            engine.execute(() -> engine.exportPgn(target), result -> {
+                if (Objects.equals(result, "")) {
+                    JOptionPane.showMessageDialog(this, "Successfully exported game.", "Export PGN", JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(this, "Could not export game.\n\n" + result, "Export PGN", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        });
+        exportPgn.setName("ExportPgn");
+
+        JMenuItem replayGame = new JMenuItem("Replay game...");
+        replayGame.addActionListener(l -> engine.execute(() -> {
+            if (engine.pieces == null) return;
+
+            Board      start = engine.getStartBoard();
+            List<Move> moves = new ArrayList<>(engine.moveHistory);
+            SwingUtilities.invokeLater(() -> new ReplayViewer(this, start, moves).setVisible(true));
+        }));
+        replayGame.setName("ReplayGame");
+
+        JMenuItem copyFen = new JMenuItem("Copy FEN");
+        copyFen.addActionListener(l -> engine.execute(() -> engine.pieces == null ? null : engine.toFen(), fen -> {
+            if (fen == null) return;
+
+            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(new StringSelection(fen), null);
+        }));
+        copyFen.setName("CopyFen");
+
+        JMenuItem loadFen = new JMenuItem("Load FEN...");
+        loadFen.addActionListener(l -> {
+            String fen = JOptionPane.showInputDialog(this, "Enter a position in FEN:", "Load FEN", JOptionPane.QUESTION_MESSAGE);
+
+            if (fen == null || fen.isBlank()) return;
 
-            if (Objects.equals(result, "")) {
-                JOptionPane.showMessageDialog(this, "Successfully loaded game.", "Load game", JOptionPane.INFORMATION_MESSAGE);
-            } else {
-                JOptionPane.showMessageDialog(this, "Could not load game.\n\n" + result, "Load game", JOptionPane.ERROR_MESSAGE);
+            if (engine.isGameRunning) {
+                if (JOptionPane.showConfirmDialog(
+                    this, "Discard current game?", "Discard Game", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE
+                ) != 0) return;
             }
+
+            engine.execute(() -> engine.loadFen(fen), result -> {
+                if (!Objects.equals(result, "")) {
+                    JOptionPane.showMessageDialog(this, "Could not load position.\n\n" + result, "Load FEN", JOptionPane.ERROR_MESSAGE);
+                }
+            });
         });
-        loadGame.setName("LoadGame");
+        loadFen.setName("LoadFen");
 
         JMenuItem quitGame = new JMenuItem("Quit");
         quitGame.addActionListener(l -> {
@@ -333,12 +438,117 @@ public class ChessGUI extends JFrame {
         game.add(newLocalGame);
         game.add(hostOnlineGame);
         game.add(joinOnlineGame);
+        game.add(timeControl);
         game.add(new JSeparator());
         game.add(saveGame);
         game.add(loadGame);
+        game.add(importPgn);
+        game.add(exportPgn);
+        game.add(replayGame);
+        game.add(copyFen);
+        game.add(loadFen);
         game.add(new JSeparator());
         game.add(quitGame);
 
+        JMenu database = new JMenu("Database");
+
+        JMenuItem buildDb = new JMenuItem("Build from PGN...");
+        buildDb.addActionListener(l -> {
+            File source = FileDialog.open(this, "Build position database", "Portable game notation (*.pgn)", "pgn");
+            if (source == null) return;
+
+            File destination = FileDialog.save(this, "Save position database", "Position database (*.jpd)", "jpd");
+            if (destination == null) return;
+
+            if (!destination.getName().toLowerCase().endsWith(".jpd"))
+                destination = new File(destination.getAbsolutePath() + ".jpd");
+
+            File target = destination;
+            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+
+            new SwingWorker<String, Void>() {
+                @Override
+                protected String doInBackground() throws Exception {
+                    String result = engine.buildPositionDb(source, target);
+                    return result.equals("") ? engine.call(() -> engine.openPositionDb(target)) : result;
+                }
+
+                @Override
+                protected void done() {
+                    setCursor(Cursor.getDefaultCursor());
+
+                    String result;
+                    try {
+                        result = get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        result = e.getMessage();
+                    }
+
+                    if (Objects.equals(result, "")) {
+                        JOptionPane.showMessageDialog(ChessGUI.this, "Successfully built position database.", "Build position database", JOptionPane.INFORMATION_MESSAGE);
+                    } else {
+                        JOptionPane.showMessageDialog(ChessGUI.this, "Could not build position database.\n\n" + result, "Build position database", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }.execute();
+        });
+        buildDb.setName("BuildDb");
+
+        JMenuItem openDb = new JMenuItem("Open...");
+        openDb.addActionListener(l -> {
+            File source = FileDialog.open(this, "Open position database", "Position database (*.jpd)", "jpd");
+            if (source == null) return;
+
+            engine.execute(() -> engine.openPositionDb(source), result -> {
+                if (!Objects.equals(result, "")) {
+                    JOptionPane.showMessageDialog(this, "Could not open position database.\n\n" + result, "Open position database", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        });
+        openDb.setName("OpenDb");
+
+        JMenuItem queryDb = new JMenuItem("What was played here?");
+        queryDb.addActionListener(l -> engine.execute(() -> engine.hasPositionDb() ? engine.queryPositionDb() : null, lines -> {
+            if (lines == null) {
+                JOptionPane.showMessageDialog(this, "Open a position database first.", "Position database", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+
+            if (lines.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "This position is not in the database.", "Position database", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+
+            StringBuilder sb = new StringBuilder("<html><table><tr><th>Move</th><th>Games</th><th>White wins</th><th>Draws</th><th>Black wins</th></tr>");
+            for (String[] line : lines) {
+                sb.append("<tr>");
+                for (String cell : line) sb.append("<td align=right>").append(cell).append("</td>");
+                sb.append("</tr>");
+            }
+            sb.append("</table></html>");
+
+            JOptionPane.showMessageDialog(this, sb.toString(), "Position database", JOptionPane.PLAIN_MESSAGE);
+        }));
+        queryDb.setName("QueryDb");
+
+        database.add(buildDb);
+        database.add(openDb);
+        database.add(new JSeparator());
+        database.add(queryDb);
+
+        JMenu view = new JMenu("View");
+
+        JCheckBoxMenuItem showAnalysis = new JCheckBoxMenuItem("Analysis");
+        showAnalysis.addActionListener(l -> {
+            analysisShown = showAnalysis.isSelected();
+            analysisPanel.setVisible(analysisShown);
+            engine.execute(this::updateAnalysis);
+            pack();
+        });
+        showAnalysis.setName("ShowAnalysis");
+
+        view.add(showAnalysis);
+
         JMenu help = new JMenu("Help");
 
         JMenuItem aboutGame = new JMenuItem("About");
@@ -351,6 +561,8 @@ public class ChessGUI extends JFrame {
         help.add(aboutGame);
 
         menu.add(game);
+        menu.add(database);
+        menu.add(view);
         menu.add(help);
 
         return menu;
@@ -377,39 +589,31 @@ public class ChessGUI extends JFrame {
     }
 
     // Button click listener
-    private void buttonClickHandler(ActionEvent l) {
-        engine.selectPiece((Coordinates) ((JButton) l.getSource()).getClientProperty("pos"));
+    private void squareClickHandler(Coordinates pos) {
+        engine.execute(() -> engine.selectPiece(pos));
     }
 
+    // Labels and the board may be updated from the engine thread
+
     public void setOpponentLabelText(String text) {
-        labelOpponent.setText(text);
+        SwingUtilities.invokeLater(() -> labelOpponent.setText(text));
     }
 
     // Manipulate board
 
     public void showWaitMessage() {
-        labelWaitOpponent.setText("Waiting for opponent to move...");
+        SwingUtilities.invokeLater(() -> labelWaitOpponent.setText("Waiting for opponent to move..."));
     }
 
     public void hideWaitMessage() {
-        labelWaitOpponent.setText("");
+        SwingUtilities.invokeLater(() -> labelWaitOpponent.setText(""));
     }
 
     /**
      * Clear all pieces on board
      */
     public void clearPieces() {
-        for (int row = 0; row < 8; row++) {
-            for (int col = 0; col < 8; col++) {
-                JButton btn = buttons[row][col];
-
-                btn.setBackground((row + col) % 2 == 0
-                                  ? new Color(161, 127, 114)
-                                  : new Color(119, 89, 72));
-                btn.setText("");
-                btn.setEnabled(false);
-            }
-        }
+        boardUpdates.clear();
     }
 
     /**
@@ -418,103 +622,138 @@ public class ChessGUI extends JFrame {
      * @param piece A piece to add
      */
     public void updatePiece(Piece piece) {
-        JButton btn = buttons[piece.pos.row][piece.pos.col];
-
-        btn.setText(piece.icon);
-        btn.setForeground(piece.color == ChessColorType.Black ? colorBlack : colorWhite);
+        boardUpdates.setPiece(piece);
     }
 
     /**
-     * Activate buttons for movement
+     * Activate squares for movement
      */
     public void activateDestinations() {
-        clearActivatedDestinations();
-
-        if (engine.possibleDestinations != null) {
-            for (Coordinates coords : engine.possibleDestinations) {
-                activatedDestinations.add(coords);
+        long destinations = BoardUpdates.mask(engine.possibleDestinations);
 
-                JButton btn = buttons[coords.row][coords.col];
-
-                btn.setEnabled(true);
-                btn.setBackground(colorDestinations);
-            }
-        }
+        clearActivatedDestinations();
+        boardUpdates.setHighlighted(destinations);
+        boardUpdates.setEnabled(boardUpdates.getEnabled() | destinations);
     }
 
     /**
-     * Clear activated buttons for movement and restore original state
+     * Clear activated squares for movement and restore original state
      */
     public void clearActivatedDestinations() {
-        for (Coordinates coords : activatedDestinations) {
-            JButton btn = buttons[coords.row][coords.col];
-
-            btn.setEnabled(false);
-            // Restore original color
-            btn.setBackground((coords.row + coords.col) % 2 == 0
-                              ? new Color(161, 127, 114)
-                              : new Color(119, 89, 72));
-        }
-
-        activatedDestinations.clear();
-        enableButtonsForCurrentTurn();
+        boardUpdates.setHighlighted(0);
+        if (engine.isGameRunning) enableButtonsForCurrentTurn();
+        else disableAllButtons();
     }
 
     /**
-     * Enable the buttons of specific colors when the game is running
+     * Enable the squares of specific colors when the game is running
      */
     public void enableButtonsForCurrentTurn() {
-        if (engine.isGameRunning) {
-            engine.pieces.forEach((coords, piece) -> buttons[piece.pos.row][piece.pos.col]
-                .setEnabled(piece.color == engine.currentTurnColor));
-        }
+        if (engine.isGameRunning) boardUpdates.enableColor(engine.currentTurnColor);
     }
 
     /**
-     * Disable all buttons
+     * Disable all squares
      */
     public void disableAllButtons() {
-        for (int row = 0; row < 8; row++)
-            for (int col = 0; col < 8; col++)
-                 buttons[row][col].setEnabled(false);
+        boardUpdates.setEnabled(0);
     }
 
     /**
-     * Move a piece on board
+     * Show the squares changed by a move
      *
-     * @param src  Coordinates of the piece to move
-     * @param dest Destination
+     * @param changed Squares changed by the move
+     * @param codes   Position piece code by square, 0 for empty; only the changed squares are read
      */
-    public void movePiece(Coordinates src, Coordinates dest) {
-        JButton srcButton  = buttons[src.row][src.col];
-        JButton destButton = buttons[dest.row][dest.col];
+    public void showMove(long changed, byte[] codes) {
+        boardUpdates.applyMove(changed, codes);
+    }
 
-        destButton.setText(srcButton.getText());
-        destButton.setForeground(srcButton.getForeground());
+    /**
+     * Update JLabels; called on the engine thread
+     */
+    public void updateGameStatusLabels() {
+        String turnCount = "Turn " + engine.currentTurnCount;
+        String turnColor = engine.currentTurnColor.toString() + " Turn";
 
-        srcButton.setText("");
-        srcButton.setEnabled(false);
-        destButton.setEnabled(true);
+        SwingUtilities.invokeLater(() -> {
+            labelTurnColorIndicator.setText(turnCount);
+            labelTurnCountIndicator.setText(turnColor);
+        });
+        updateAnalysis();
     }
 
     /**
-     * Remove a piece from board
-     *
-     * @param coords coordinates of button to remove
+     * Analyze the current position if the analysis sidebar is shown; called on the engine thread
      */
-    public void removePiece(Coordinates coords) {
-        JButton btn = buttons[coords.row][coords.col];
+    private void updateAnalysis() {
+        Board position = analysisShown && engine.pieces != null ? engine.getBoard() : null;
 
-        btn.setText("");
-        btn.setEnabled(false);
+        SwingUtilities.invokeLater(() -> analysisPanel.setPosition(position));
     }
 
     /**
-     * Update JLabels
+     * Update the clock label from the engine's clock
      */
-    public void updateGameStatusLabels() {
-        labelTurnColorIndicator.setText("Turn " + engine.currentTurnCount);
-        labelTurnCountIndicator.setText(engine.currentTurnColor.toString() + " Turn");
+    private void updateClockLabel() {
+        GameClock clock = engine.clock;
+
+        if (clock == null) {
+            labelClock.setText("");
+            return;
+        }
+
+        String white = GameClock.format(clock.remaining(ChessColorType.White));
+        String black = GameClock.format(clock.remaining(ChessColorType.Black));
+
+        if (clock.getRunning() == ChessColorType.White) white = "<b>" + white + "</b>";
+        if (clock.getRunning() == ChessColorType.Black) black = "<b>" + black + "</b>";
+
+        labelClock.setText("<html>White " + white + " &nbsp; Black " + black + "</html>");
+    }
+
+    /**
+     * Update the latency label from the connection of the online game
+     */
+    private void updateLatencyLabel() {
+        PeerLink peer = engine.isOnlineGame && engine.isGameRunning ? engine.peer : null;
+
+        if (peer == null) {
+            labelLatency.setText("");
+            labelLatency.setToolTipText(null);
+            return;
+        }
+
+        if (!peer.hasEstimate()) {
+            labelLatency.setText("Ping ...");
+            return;
+        }
+
+        labelLatency.setText(String.format("Ping %.0f ms \u00B1%.0f", peer.roundTripMillis(), peer.jitterMillis()));
+        labelLatency.setToolTipText(String.format(
+            "<html>Round trip %.1f ms<br>Jitter %.1f ms<br>Clock offset %+.0f ms<br>Lag allowance %d ms</html>",
+            peer.roundTripMillis(), peer.jitterMillis(), peer.clockOffsetMillis(), peer.lagAllowanceMillis()));
+    }
+
+    /**
+     * Offer to continue a game that was not finished when the program last exited
+     */
+    public void offerUnfinishedGame() {
+        Path journal = engine.findUnfinishedGame();
+        if (journal == null) return;
+
+        if (JOptionPane.showConfirmDialog(
+            this, "An unfinished game was found. Continue it?", "Unfinished game", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE
+        ) != 0) {
+            engine.discardUnfinishedGames(null);
+            return;
+        }
+
+        engine.execute(() -> engine.recoverGame(journal), result -> {
+            if (!Objects.equals(result, "")) {
+                JOptionPane.showMessageDialog(this, "Could not continue game.\n\n" + result, "Unfinished game", JOptionPane.ERROR_MESSAGE);
+            }
+        });
     }
 
     /**
@@ -531,11 +770,22 @@ public class ChessGUI extends JFrame {
                                       "Game ended!\n\n" + endedBy + " wins!",
                                       "Game ended", JOptionPane.INFORMATION_MESSAGE);
 
-        engine.isGameRunning = false;
-
         // TODO: Close connection
     }
 
+    /**
+     * Game drawn trigger
+     *
+     * @param reason Draw rule, e.g. "threefold repetition"
+     */
+    public void gameDrawn(String reason) {
+        disableAllButtons();
+
+        JOptionPane.showMessageDialog(this,
+                                      "Game ended!\n\nDraw by " + reason + ".",
+                                      "Game ended", JOptionPane.INFORMATION_MESSAGE);
+    }
+
     /**
      * Game ended unexpectedly due to error
      *
@@ -588,8 +838,8 @@ public class ChessGUI extends JFrame {
         SwingWorker<String, Integer> sw = new SwingWorker<>() {
 
             @Override
-            protected String doInBackground() {
-                return engine.hostOnlineGame(port);
+            protected String doInBackground() throws Exception {
+                return engine.call(() -> engine.hostOnlineGame(port));
             }
 
             @Override
@@ -601,16 +851,16 @@ public class ChessGUI extends JFrame {
                         JOptionPane.showMessageDialog(ChessGUI.this, "Error while joining game\n\n" + result, "Host an online game", JOptionPane.ERROR_MESSAGE);
                     } else {
                         // Successful connection
-                        System.out.println("CONNECTED Host");
+                        Log.info("Connected as host");
                         dialog.dispose();
-                        engine.onlineGameStart();
+                        engine.execute(engine::onlineGameStart);
                     }
 
                 } catch (InterruptedException | CancellationException ignored) {
-                    System.out.println("Cancelled");
+                    Log.info("Hosting cancelled");
 
                 } catch (ExecutionException e) {
-                    e.printStackTrace();
+                    Log.error("Hosting failed", e);
                 }
             }
         };
@@ -663,8 +913,8 @@ public class ChessGUI extends JFrame {
                 SwingWorker<String, Integer> sw = new SwingWorker<>() {
 
                     @Override
-                    protected String doInBackground() {
-                        return engine.joinOnlineGame(hostname, port);
+                    protected String doInBackground() throws Exception {
+                        return engine.call(() -> engine.joinOnlineGame(hostname, port));
                     }
 
                     @Override
@@ -676,15 +926,15 @@ public class ChessGUI extends JFrame {
                                 JOptionPane.showMessageDialog(ChessGUI.this, "Error while joining game\n\n" + result, "Join an online game", JOptionPane.ERROR_MESSAGE);
                             } else {
                                 // Successful connection
-                                System.out.println("CONNECTED Client");
+                                Log.info("Connected to host");
                             }
                             dialog.dispose();
-                            engine.onlineGameStart();
+                            engine.execute(engine::onlineGameStart);
 
                         } catch (InterruptedException ignored) {
 
                         } catch (ExecutionException e) {
-                            e.printStackTrace();
+                            Log.error("Joining failed", e);
                         }
 
                     }
@@ -3,6 +3,10 @@ public class ChessLauncher {
     public static void main(String[] args) {
         // Game launcher
         ChessEngine game = new ChessEngine();
+        game.metrics.register("Client");
         game.GUI.setVisible(true);
+
+        // Continue a game interrupted by a crash or exit
+        game.GUI.offerUnfinishedGame();
     }
 }
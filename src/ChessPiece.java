@@ -2,15 +2,21 @@ import java.io.Serializable;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 // Pieces
 abstract class Piece implements Serializable {
+    // Fixed so that version 1 save files stay readable
+    private static final long serialVersionUID = 4166164696210026602L;
+
+    // Icons by Position piece code, null for no piece; BoardView draws its sprites from them
+    static final String[] ICONS = {
+        null, "♖", "♘", "♗", "♕", "♔", "♙", null,
+        null, "♜", "♞", "♝", "♛", "♚", "♟", null
+    };
 
     protected transient HashMap<Coordinates, Piece> pieces;
     protected           ChessColorType              color;
     protected           Coordinates                 pos;
-    protected           String                      icon;
     protected           ChessPieceType              type;
     protected boolean hasMoved = false;
     protected int     id;  // Unique id given by the start position
@@ -19,7 +25,7 @@ abstract class Piece implements Serializable {
         this.pieces = pieces;
         this.color  = color;
         this.pos    = pos;
-        this.id     = pos.hashCode();
+        this.id     = pos.square;
     }
 
     /**
@@ -36,6 +42,34 @@ abstract class Piece implements Serializable {
         return this.id;
     }
 
+    /**
+     * Create a new piece of the given type
+     *
+     * @param pieces Map of pieces
+     * @param type   Type of the piece
+     * @param color  Color of the piece
+     * @param pos    Position of the piece
+     * @return New piece
+     */
+    static Piece create(HashMap<Coordinates, Piece> pieces, ChessPieceType type, ChessColorType color, Coordinates pos) {
+        switch (type) {
+            case Rook:
+                return new Rook(pieces, color, pos);
+            case Knight:
+                return new Knight(pieces, color, pos);
+            case Bishop:
+                return new Bishop(pieces, color, pos);
+            case Queen:
+                return new Queen(pieces, color, pos);
+            case King:
+                return new King(pieces, color, pos);
+            case Pawn:
+                return new Pawn(pieces, color, pos);
+            default:
+                throw new RuntimeException("Unexpected piece type " + type);
+        }
+    }
+
     /**
      * A set of all possible movements a piece can make
      *
@@ -43,6 +77,16 @@ abstract class Piece implements Serializable {
      */
     abstract public Set<Coordinates> getPossibleMovements();
 
+    /**
+     * A set of all possible movements, with castling and en passant, which depend on the state of the position
+     *
+     * @param state Castling rights and en passant file, as Board.state
+     * @return A set of destinations
+     */
+    public Set<Coordinates> getPossibleMovements(int state) {
+        return getPossibleMovements();
+    }
+
     /**
      * Returns whether a new movement is valid
      * Valid movement: destination within board
@@ -65,7 +109,7 @@ abstract class Piece implements Serializable {
         Coordinates      coords;
 
         for (int row = pos.row + d_row, col = pos.col + d_col; ((row >= 0) && (row < 8)) && ((col >= 0) && (col < 8)); row += d_row, col += d_col) {
-            coords = new Coordinates(row, col);
+            coords = Coordinates.of(row, col);
 
             if (isValidMove(coords)) {
                 result.add(coords);
@@ -78,21 +122,53 @@ abstract class Piece implements Serializable {
         return result;
     }
 
-    protected Set<Coordinates> moveOnceAll(Set<Coordinates> coords) {
-        return coords.stream().map(pos::add).filter(this::isValidMove).collect(Collectors.toSet());
+    /**
+     * @param targets Squares reached from each square, as built by Coordinates.targets()
+     * @return Squares reached from this piece that are empty or hold an enemy
+     */
+    protected Set<Coordinates> moveOnceAll(Coordinates[][] targets) {
+        Set<Coordinates> result = new HashSet<>(16);
+
+        for (Coordinates coords : targets[pos.square]) {
+            if (isValidMove(coords)) result.add(coords);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns whether a piece of the opponent could move to a square, capturing anything there
+     *
+     * @param square Square
+     * @return Whether the square is attacked
+     */
+    protected boolean isAttacked(Coordinates square) {
+        for (Piece piece : pieces.values()) {
+            if (piece.color == this.color) continue;
+
+            if (piece.type == ChessPieceType.Pawn) {
+                // Pawns move straight but capture diagonally
+                int d_row = piece.color == ChessColorType.Black ? 1 : -1;
+                if (square.row == piece.pos.row + d_row && Math.abs(square.col - piece.pos.col) == 1) return true;
+
+            } else if (piece.getPossibleMovements().contains(square)) return true;
+        }
+
+        return false;
     }
 }
 
 class Rook extends Piece {
+    private static final long serialVersionUID = -1018442593670498225L;
+
     Rook(HashMap<Coordinates, Piece> pieces, ChessColorType color, Coordinates pos) {
         super(pieces, color, pos);
-        this.icon = (this.color == ChessColorType.Black ? "♜" : "♖");
         this.type = ChessPieceType.Rook;
     }
 
     @Override
     public Set<Coordinates> getPossibleMovements() {
-        // TODO: Implement Castling
+        // Castling is a move of the king
         Set<Coordinates> result = new HashSet<>(14);
 
         result.addAll(keepMoving(-1, 0));
@@ -105,33 +181,28 @@ class Rook extends Piece {
 }
 
 class Knight extends Piece {
-    private final Set<Coordinates> knightMovesSet = Set.of(
-        new Coordinates(-2, -1),
-        new Coordinates(-2, 1),
-        new Coordinates(2, -1),
-        new Coordinates(2, 1),
-        new Coordinates(-1, -2),
-        new Coordinates(-1, 2),
-        new Coordinates(1, -2),
-        new Coordinates(1, 2)
-    );
+    private static final long serialVersionUID = -8186912882930909782L;
+
+    private static final Coordinates[][] KNIGHT_TARGETS = Coordinates.targets(new int[][]{
+        {-2, -1}, {-2, 1}, {2, -1}, {2, 1}, {-1, -2}, {-1, 2}, {1, -2}, {1, 2}
+    });
 
     Knight(HashMap<Coordinates, Piece> pieces, ChessColorType color, Coordinates pos) {
         super(pieces, color, pos);
-        this.icon = (this.color == ChessColorType.Black ? "♞" : "♘");
         this.type = ChessPieceType.Knight;
     }
 
     @Override
     public Set<Coordinates> getPossibleMovements() {
-        return moveOnceAll(knightMovesSet);
+        return moveOnceAll(KNIGHT_TARGETS);
     }
 }
 
 class Bishop extends Piece {
+    private static final long serialVersionUID = 6231950850195942219L;
+
     Bishop(HashMap<Coordinates, Piece> pieces, ChessColorType color, Coordinates pos) {
         super(pieces, color, pos);
-        this.icon = (this.color == ChessColorType.Black ? "♝" : "♗");
         this.type = ChessPieceType.Bishop;
     }
 
@@ -149,9 +220,10 @@ class Bishop extends Piece {
 }
 
 class Queen extends Piece {
+    private static final long serialVersionUID = 3803624480766624750L;
+
     Queen(HashMap<Coordinates, Piece> pieces, ChessColorType color, Coordinates pos) {
         super(pieces, color, pos);
-        this.icon = (this.color == ChessColorType.Black ? "♛" : "♕");
         this.type = ChessPieceType.Queen;
     }
 
@@ -173,34 +245,55 @@ class Queen extends Piece {
 }
 
 class King extends Piece {
-    private final Set<Coordinates> kingMovesSet = Set.of(
-        new Coordinates(-1, -1),
-        new Coordinates(-1, 0),
-        new Coordinates(-1, 1),
-        new Coordinates(0, -1),
-        new Coordinates(0, 0),
-        new Coordinates(0, 1),
-        new Coordinates(1, -1),
-        new Coordinates(1, 0),
-        new Coordinates(1, 1)
-    );
+    private static final long serialVersionUID = -422179874679271610L;
+
+    private static final Coordinates[][] KING_TARGETS = Coordinates.targets(new int[][]{
+        {-1, -1}, {-1, 0}, {-1, 1}, {0, -1}, {0, 1}, {1, -1}, {1, 0}, {1, 1}
+    });
 
     King(HashMap<Coordinates, Piece> pieces, ChessColorType color, Coordinates pos) {
         super(pieces, color, pos);
-        this.icon = (this.color == ChessColorType.Black ? "♚" : "♔");
-        this.type = ChessPieceType.Queen;
+        this.type = ChessPieceType.King;
     }
 
     @Override
     public Set<Coordinates> getPossibleMovements() {
-        return moveOnceAll(kingMovesSet);
+        return moveOnceAll(KING_TARGETS);
+    }
+
+    @Override
+    public Set<Coordinates> getPossibleMovements(int state) {
+        Set<Coordinates> result = getPossibleMovements();
+        int              row    = this.color == ChessColorType.Black ? 0 : 7;
+
+        if (pos.row != row || pos.col != 4) return result;
+
+        // Castling: king and rook unmoved, squares between them empty, king not passing an attacked square.
+        // Rights of Black are shifted onto the bits of White.
+        int rights = this.color == ChessColorType.Black ? state >>> 2 : state;
+        if ((rights & Board.WHITE_KINGSIDE) != 0 && canCastle(row, 7, 5)) result.add(Coordinates.of(row, 6));
+        if ((rights & Board.WHITE_QUEENSIDE) != 0 && canCastle(row, 0, 3)) result.add(Coordinates.of(row, 2));
+
+        return result;
+    }
+
+    private boolean canCastle(int row, int rookCol, int passedCol) {
+        Piece rook = pieces.get(Coordinates.of(row, rookCol));
+        if (rook == null || rook.type != ChessPieceType.Rook || rook.color != this.color) return false;
+
+        for (int col = Math.min(rookCol, 4) + 1; col < Math.max(rookCol, 4); col++) {
+            if (pieces.containsKey(Coordinates.of(row, col))) return false;
+        }
+
+        return !isAttacked(pos) && !isAttacked(Coordinates.of(row, passedCol));
     }
 }
 
 class Pawn extends Piece {
+    private static final long serialVersionUID = 2356774217932580564L;
+
     Pawn(HashMap<Coordinates, Piece> pieces, ChessColorType color, Coordinates pos) {
         super(pieces, color, pos);
-        this.icon = (this.color == ChessColorType.Black ? "♟" : "♙");
         this.type = ChessPieceType.Pawn;
     }
 
@@ -211,43 +304,50 @@ class Pawn extends Piece {
     }
 
     private boolean isWithinRangeAndEmpty(Coordinates coords) {
-        return coords.isWithinRange() && (pieces.get(coords) == null);
+        return coords != null && (pieces.get(coords) == null);
     }
 
     private boolean isWithinRangeAndHasEnemy(Coordinates coords) {
-        return coords.isWithinRange() && ((pieces.get(coords) != null) && (pieces.get(coords).color != this.color));
+        if (coords == null) return false;
+
+        Piece piece = pieces.get(coords);
+        return piece != null && piece.color != this.color;
     }
 
     @Override
     public Set<Coordinates> getPossibleMovements() {
-        // TODO: Implement en passant
         Set<Coordinates> result = new HashSet<>(4);
 
-        // Vertical move
-        if (color == ChessColorType.Black) {
-            // Move down
-            if (isWithinRangeAndEmpty(pos.add(1, 0))) {
-                result.add(pos.add(1, 0));
+        // Vertical move, down for Black and up for White
+        int         d_row = color == ChessColorType.Black ? 1 : -1;
+        Coordinates one   = pos.offset(d_row, 0);
+        if (isWithinRangeAndEmpty(one)) {
+            result.add(one);
 
-                if (!hasMoved) {
-                    if (isWithinRangeAndEmpty(pos.add(2, 0))) result.add(pos.add(2, 0));
-                }
-            }
-        } else {
-            // Move up
-            if (isWithinRangeAndEmpty(pos.add(-1, 0))) {
-                result.add(pos.add(-1, 0));
-
-                if (!hasMoved) {
-                    if (isWithinRangeAndEmpty(pos.add(-2, 0))) result.add(pos.add(-2, 0));
-                }
+            if (!hasMoved) {
+                Coordinates two = pos.offset(2 * d_row, 0);
+                if (isWithinRangeAndEmpty(two)) result.add(two);
             }
         }
 
         // Diagonal move
-        int d_row = color == ChessColorType.Black ? 1 : -1;
-        if (isWithinRangeAndHasEnemy(pos.add(d_row, -1))) result.add(pos.add(d_row, -1));
-        if (isWithinRangeAndHasEnemy(pos.add(d_row, 1))) result.add(pos.add(d_row, 1));
+        Coordinates left = pos.offset(d_row, -1), right = pos.offset(d_row, 1);
+        if (isWithinRangeAndHasEnemy(left)) result.add(left);
+        if (isWithinRangeAndHasEnemy(right)) result.add(right);
+
+        return result;
+    }
+
+    @Override
+    public Set<Coordinates> getPossibleMovements(int state) {
+        Set<Coordinates> result = getPossibleMovements();
+        int              file   = Board.enPassantFile(state);
+
+        // En passant: a pawn that just advanced two squares is captured as if it had advanced one
+        int row = color == ChessColorType.Black ? 4 : 3;
+        if (file >= 0 && pos.row == row && Math.abs(file - pos.col) == 1) {
+            result.add(Coordinates.of(row + (color == ChessColorType.Black ? 1 : -1), file));
+        }
 
         return result;
     }
@@ -0,0 +1,284 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Wire protocol of online games
+ * <p>
+ * Handshake: the host sends one byte with the color of the joining side (0: Black, 1: White),
+ * followed by the time control as three ints (base, increment, delay in milliseconds; all 0 if untimed).
+ * <p>
+ * Frames are sent bytewise:
+ * [Type][Src row][Src column][Dest row][Dest column][Caught king][Promote to][State][Clock (int)]
+ * <p>
+ * State is the castling rights and en passant file after the move, as Board.state, so that both sides and the
+ * server can check they agree on them. Clock is the remaining time of the mover after the move. A flag frame
+ * carries the color whose flag fell in place of the source row.
+ * <p>
+ * Ping and pong frames may be sent at any time and are answered by whoever is on the other end, a peer or the server:
+ * [Ping][Sequence (int)][Round trip of the sender in microseconds (int)][0][0][0]
+ * [Pong][Sequence of the ping (int)][Wall clock of the answering side in milliseconds (6 bytes)]
+ */
+final class ChessProtocol {
+    // Size of the handshake and of a frame
+    static final int HANDSHAKE_SIZE  = 13;
+    static final int MOVE_FRAME_SIZE = 12;
+
+    // Frame types
+    static final int TYPE_MOVE = 0;
+    static final int TYPE_FLAG = 1;
+    static final int TYPE_PING = 2;
+    static final int TYPE_PONG = 3;
+
+    // Color byte sent by the host
+    static final int COLOR_BLACK = 0;
+    static final int COLOR_WHITE = 1;
+
+    // Promotion codes
+    static final int PROMOTE_NONE   = 0;
+    static final int PROMOTE_QUEEN  = 1;
+    static final int PROMOTE_BISHOP = 2;
+    static final int PROMOTE_ROOK   = 3;
+    static final int PROMOTE_KNIGHT = 4;
+
+    private ChessProtocol() {
+    }
+
+    /**
+     * Build the handshake sent by the host
+     *
+     * @param joinerColor Color of the joining side
+     * @param control     Time control, null if untimed
+     * @return Handshake
+     */
+    static byte[] encodeHandshake(ChessColorType joinerColor, GameClock.TimeControl control) {
+        ByteBuffer buf = ByteBuffer.allocate(HANDSHAKE_SIZE);
+
+        buf.put((byte) colorByte(joinerColor));
+        buf.putInt(control == null ? 0 : control.baseMillis);
+        buf.putInt(control == null ? 0 : control.incrementMillis);
+        buf.putInt(control == null ? 0 : control.delayMillis);
+
+        return buf.array();
+    }
+
+    /**
+     * @param handshake Handshake received from the host
+     * @return Time control of the game, null if untimed
+     */
+    static GameClock.TimeControl decodeTimeControl(byte[] handshake) {
+        ByteBuffer buf  = ByteBuffer.wrap(handshake, 1, HANDSHAKE_SIZE - 1);
+        int        base = buf.getInt();
+
+        return base > 0 ? new GameClock.TimeControl(base, buf.getInt(), buf.getInt()) : null;
+    }
+
+    /**
+     * Build a move frame
+     *
+     * @param src         Source
+     * @param dest        Destination
+     * @param kingCaught  Whether the move captures a king
+     * @param promotion   Promotion code
+     * @param state       Castling rights and en passant file after the move
+     * @param clockMillis Remaining time of the mover, 0 if untimed
+     * @return Move frame
+     */
+    static byte[] encodeMove(Coordinates src, Coordinates dest, boolean kingCaught, int promotion, int state,
+                             long clockMillis) {
+        ByteBuffer buf = ByteBuffer.allocate(MOVE_FRAME_SIZE);
+
+        buf.put((byte) TYPE_MOVE);
+        buf.put((byte) src.row);
+        buf.put((byte) src.col);
+        buf.put((byte) dest.row);
+        buf.put((byte) dest.col);
+        buf.put((byte) (kingCaught ? 1 : 0));
+        buf.put((byte) promotion);
+        buf.put((byte) state);
+        buf.putInt((int) clockMillis);
+
+        return buf.array();
+    }
+
+    /**
+     * Build a flag frame
+     *
+     * @param flagged Color whose flag fell
+     * @return Flag frame
+     */
+    static byte[] encodeFlag(ChessColorType flagged) {
+        byte[] frame = new byte[MOVE_FRAME_SIZE];
+
+        frame[0] = TYPE_FLAG;
+        frame[1] = (byte) flagged.ordinal();
+
+        return frame;
+    }
+
+    /**
+     * Build a ping frame
+     *
+     * @param sequence        Number to match the pong with
+     * @param roundTripMicros Smoothed round trip of the sender, 0 if not known yet
+     * @return Ping frame
+     */
+    static byte[] encodePing(int sequence, int roundTripMicros) {
+        ByteBuffer buf = ByteBuffer.allocate(MOVE_FRAME_SIZE);
+
+        buf.put((byte) TYPE_PING);
+        buf.putInt(sequence);
+        buf.putInt(roundTripMicros);
+
+        return buf.array();
+    }
+
+    /**
+     * Build the answer to a ping
+     *
+     * @param ping       Ping frame
+     * @param wallMillis Wall clock of the answering side
+     * @return Pong frame
+     */
+    static byte[] encodePong(byte[] ping, long wallMillis) {
+        ByteBuffer buf = ByteBuffer.allocate(MOVE_FRAME_SIZE);
+
+        buf.put((byte) TYPE_PONG);
+        buf.putInt(frameSequence(ping));
+        buf.putShort((short) (wallMillis >>> 32));
+        buf.putInt((int) wallMillis);
+
+        return buf.array();
+    }
+
+    static int frameType(byte[] frame) {
+        return frame[0];
+    }
+
+    static Coordinates frameSrc(byte[] frame) {
+        return Coordinates.of(frame[1], frame[2]);
+    }
+
+    static Coordinates frameDest(byte[] frame) {
+        return Coordinates.of(frame[3], frame[4]);
+    }
+
+    static boolean frameKingCaught(byte[] frame) {
+        return frame[5] == 1;
+    }
+
+    static int framePromotion(byte[] frame) {
+        return frame[6];
+    }
+
+    /**
+     * @return Move.code() of a move frame, -1 if a square or the promotion code is out of range
+     */
+    static int frameMove(byte[] frame) {
+        int promotion = framePromotion(frame);
+
+        if (!Coordinates.isValid(frame[1], frame[2]) || !Coordinates.isValid(frame[3], frame[4])
+            || promotion < PROMOTE_NONE || promotion > PROMOTE_KNIGHT) return -1;
+
+        return (frame[1] * 8 + frame[2]) << 9 | (frame[3] * 8 + frame[4]) << 3 | promotion;
+    }
+
+    static int frameState(byte[] frame) {
+        return frame[7] & 0xFF;
+    }
+
+    static int frameClock(byte[] frame) {
+        return ByteBuffer.wrap(frame, 8, 4).getInt();
+    }
+
+    /**
+     * Overwrite the clock of a move frame
+     */
+    static void setFrameClock(byte[] frame, long clockMillis) {
+        ByteBuffer.wrap(frame, 8, 4).putInt((int) clockMillis);
+    }
+
+    /**
+     * @return Sequence of a ping or pong frame
+     */
+    static int frameSequence(byte[] frame) {
+        return ByteBuffer.wrap(frame, 1, 4).getInt();
+    }
+
+    /**
+     * @return Round trip reported by the sender of a ping frame, in microseconds
+     */
+    static int frameRoundTrip(byte[] frame) {
+        return ByteBuffer.wrap(frame, 5, 4).getInt();
+    }
+
+    /**
+     * @return Wall clock of the answering side of a pong frame, in milliseconds
+     */
+    static long frameWallClock(byte[] frame) {
+        ByteBuffer buf = ByteBuffer.wrap(frame, 5, 6);
+
+        return (buf.getShort() & 0xFFFFL) << 32 | (buf.getInt() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return Color whose flag fell in a flag frame
+     */
+    static ChessColorType frameFlagged(byte[] frame) {
+        return ChessColorType.values()[frame[1] & 1];
+    }
+
+    /**
+     * @param code Promotion code
+     * @return Piece type of the code, null if no promotion
+     */
+    static ChessPieceType promotionType(int code) {
+        switch (code) {
+            case PROMOTE_QUEEN:
+                return ChessPieceType.Queen;
+            case PROMOTE_BISHOP:
+                return ChessPieceType.Bishop;
+            case PROMOTE_ROOK:
+                return ChessPieceType.Rook;
+            case PROMOTE_KNIGHT:
+                return ChessPieceType.Knight;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param type Piece type to promote to
+     * @return Promotion code of the type
+     */
+    static int promotionCode(ChessPieceType type) {
+        if (type == null) return PROMOTE_NONE;
+
+        switch (type) {
+            case Queen:
+                return PROMOTE_QUEEN;
+            case Bishop:
+                return PROMOTE_BISHOP;
+            case Rook:
+                return PROMOTE_ROOK;
+            case Knight:
+                return PROMOTE_KNIGHT;
+            default:
+                throw new RuntimeException("Unexpected promotion piece type " + type);
+        }
+    }
+
+    /**
+     * @param joinerColor Color of the joining side
+     * @return Color byte the host sends
+     */
+    static int colorByte(ChessColorType joinerColor) {
+        return joinerColor == ChessColorType.White ? COLOR_WHITE : COLOR_BLACK;
+    }
+
+    /**
+     * @param colorByte Color byte received from the host
+     * @return Color of the joining side
+     */
+    static ChessColorType joinerColor(int colorByte) {
+        return colorByte == COLOR_BLACK ? ChessColorType.Black : ChessColorType.White;
+    }
+}
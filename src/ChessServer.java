@@ -0,0 +1,534 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless game server
+ * <p>
+ * Accepts any number of clients on one port, pairs them into games and relays moves between them.
+ * To each client the server looks like a host, so ChessGUI's "Join an online game..." connects to it as is.
+ * Every move is validated on a server-side GameState before it is relayed. A game keeps only that compact state;
+ * moves are checked and made on one Position shared by all games, on the selector thread.
+ * <p>
+ * In timed games the server keeps the authoritative clocks. All clocks share one TimingWheel, so a game
+ * costs no thread or executor task of its own. Clients ping the server, and each move is credited with the round
+ * trip the mover last reported, up to GameClock.MAX_LAG_MILLIS, for the time it spent on the network.
+ * <p>
+ * With a journal directory every game appends its moves to a MoveJournal, synced by one shared Syncer.
+ * Games left unfinished by a crash are written to recovered.pgn in that directory on the next start.
+ */
+public class ChessServer implements Runnable {
+
+    /**
+     * A connected client
+     */
+    private static class Connection {
+        final SocketChannel     channel;
+        final SelectionKey      key;
+        final ByteBuffer        in      = ByteBuffer.allocate(ChessProtocol.MOVE_FRAME_SIZE);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        Game                    game;
+        ChessColorType          color;
+        boolean                 closeAfterFlush = false;
+        long                    moveSentNanos   = 0;  // When the opponent's last move was relayed, 0 if none
+        int                     roundTripMicros = 0;  // Round trip reported in the client's last ping
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key     = key;
+        }
+    }
+
+    /**
+     * A game between two connections
+     */
+    private static class Game {
+        final GameState  state = GameState.initial();
+        final Connection white;
+        final Connection black;
+        GameClock        clock;
+        MoveJournal      journal;
+
+        Game(Connection white, Connection black) {
+            this.white = white;
+            this.black = black;
+        }
+
+        Connection opponentOf(Connection conn) {
+            return conn == white ? black : white;
+        }
+    }
+
+    private final Selector              selector;
+    private final ServerSocketChannel   server;
+    private final GameClock.TimeControl timeControl;
+    private volatile boolean            running = true;
+
+    // Flag falls reported by the timing wheel, handled on the selector thread
+    private final ConcurrentLinkedQueue<Game> flaggedGames = new ConcurrentLinkedQueue<>();
+
+    // Moves of all games are checked and made here, on the selector thread
+    private final Position position = new Position();
+    private final int[]    moves    = new int[Position.MAX_MOVES];
+
+    // Client waiting for an opponent
+    private Connection waiting;
+
+    // Journals of running games, null if not journaled
+    private Path               journalDir;
+    private MoveJournal.Syncer syncer;
+    private long               journalCount;
+
+    // Statistics
+    private volatile int               activeGames;
+    private volatile int               activeConnections;
+    private final    Metrics           metrics             = new Metrics();
+    private final    Metrics.Counter   acceptedConnections = metrics.counter("ConnectionsAccepted", "Connections accepted");
+    private final    Metrics.Counter   startedGames        = metrics.counter("GamesStarted", "Games paired");
+    private final    Metrics.Counter   relayedMoves        = metrics.counter("MovesRelayed", "Moves validated and relayed");
+    private final    Metrics.Counter   rejectedMoves       = metrics.counter("MovesRejected", "Frames failing validation");
+    private final    Metrics.Histogram moveRoundTrip       = metrics.histogram(
+        "MoveRoundTrip", "us", "Time from relaying a move to a player to receiving their reply");
+    private final    Metrics.Histogram moveProcessing      = metrics.histogram(
+        "MoveProcessing", "us", "Time to validate, journal and relay a move");
+    private final    Metrics.Histogram journalCreate       = metrics.histogram(
+        "JournalCreate", "us", "Time to create the journal of a new game");
+    private final    Metrics.Histogram journalAppend       = metrics.histogram(
+        "JournalAppend", "us", "Time to append a move to a journal");
+    private final    Metrics.Histogram clientRoundTrip     = metrics.histogram(
+        "ClientRoundTrip", "us", "Ping round trip reported by clients");
+    private final    Metrics.Histogram lagCredit           = metrics.histogram(
+        "LagCredit", "ms", "Time credited to a mover's clock for network lag");
+
+    /**
+     * @param port        Port to listen on, 0 for any free port
+     * @param timeControl Time control of all games, null if untimed
+     */
+    ChessServer(int port, GameClock.TimeControl timeControl) throws IOException {
+        this.timeControl = timeControl;
+
+        selector = Selector.open();
+        server   = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        metrics.gauge("ActiveGames", "Games running", () -> activeGames);
+        metrics.gauge("ActiveConnections", "Open client connections", () -> activeConnections);
+        metrics.rate("MovesPerSecond", relayedMoves, "Moves relayed per second");
+    }
+
+    public static void main(String[] args) throws IOException {
+        int                   port    = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        GameClock.TimeControl control = args.length > 1 ? GameClock.TimeControl.parse(args[1]) : null;
+
+        Log.setName("server");
+        ChessServer chessServer = new ChessServer(port, control);
+        String      registered  = chessServer.registerMetrics();
+        if (!registered.equals("")) System.out.println("Metrics not available over JMX: " + registered);
+
+        if (args.length > 2) {
+            int recovered = chessServer.setJournalDirectory(Paths.get(args[2]));
+            if (recovered > 0) System.out.println("Recovered " + recovered + " unfinished games to recovered.pgn");
+        }
+
+        System.out.println("Listening on port " + chessServer.getPort()
+                           + (control != null ? ", time control " + control : ""));
+        chessServer.run();
+    }
+
+    /**
+     * Journal the moves of all games started from now on
+     * <p>
+     * Journals left in dir by a previous run are replayed, appended to recovered.pgn and deleted.
+     * Must be called before run.
+     *
+     * @param dir Directory of the journals
+     * @return Number of recovered games
+     */
+    int setJournalDirectory(Path dir) throws IOException {
+        Files.createDirectories(dir);
+
+        int recovered = 0;
+        for (Path file : MoveJournal.list(dir)) {
+            MoveJournal.Recovery recovery = MoveJournal.recover(file);
+
+            Map<String, String> tags = new LinkedHashMap<>();
+            tags.put("Event", "Recovered game");
+            tags.put("Site", "Online Chess server");
+            tags.put("Journal", file.getFileName().toString());
+
+            try (PgnWriter writer = new PgnWriter(Files.newBufferedWriter(
+                dir.resolve("recovered.pgn"), StandardCharsets.ISO_8859_1, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND))) {
+                writer.writeGame(tags, recovery.start, recovery.moves, "*");
+            }
+
+            Files.delete(file);
+            recovered++;
+        }
+
+        journalDir = dir;
+        syncer     = new MoveJournal.Syncer(Long.getLong("chess.journal.syncMillis", 200), TimeUnit.MILLISECONDS,
+                                            "ServerJournalSyncer");
+
+        return recovered;
+    }
+
+    /**
+     * @return Port the server is bound to
+     */
+    int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    int getActiveGames() {
+        return activeGames;
+    }
+
+    int getActiveConnections() {
+        return activeConnections;
+    }
+
+    long getRelayedMoves() {
+        return relayedMoves.get();
+    }
+
+    long getRejectedMoves() {
+        return rejectedMoves.get();
+    }
+
+    /**
+     * Expose the server's metrics over JMX as OnlineChess:type=Server
+     *
+     * @return "" if successful, error message if unsuccessful
+     */
+    String registerMetrics() {
+        return metrics.register("Server");
+    }
+
+    /**
+     * Stop the server and close all connections
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                Game flagged;
+                while ((flagged = flaggedGames.poll()) != null) flagFell(flagged);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) flush(conn);
+                        if (key.isValid() && key.isReadable()) read(conn);
+                    } catch (IOException e) {
+                        close(conn);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Selector loop failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        SelectionKey key  = channel.register(selector, SelectionKey.OP_READ);
+        Connection   conn = new Connection(channel, key);
+        key.attach(conn);
+        activeConnections++;
+        acceptedConnections.increment();
+
+        if (waiting == null) {
+            waiting = conn;
+            return;
+        }
+
+        // Pair with the waiting client, colors chosen randomly
+        Connection other = waiting;
+        waiting = null;
+
+        Game game = ThreadLocalRandom.current().nextBoolean() ? new Game(other, conn) : new Game(conn, other);
+        game.white.game  = game;
+        game.white.color = ChessColorType.White;
+        game.black.game  = game;
+        game.black.color = ChessColorType.Black;
+        activeGames++;
+        startedGames.increment();
+
+        if (journalDir != null) {
+            long start = System.nanoTime();
+            try {
+                game.journal = MoveJournal.create(journalDir.resolve("game-" + (++journalCount) + "-"
+                                                                     + System.currentTimeMillis() + MoveJournal.EXTENSION),
+                                                  Board.initial(), syncer);
+                journalCreate.recordSince(start);
+            } catch (IOException e) {
+                // Play on without a journal
+                Log.warn("Journal not created", e);
+            }
+        }
+
+        send(game.white, ChessProtocol.encodeHandshake(ChessColorType.White, timeControl));
+        send(game.black, ChessProtocol.encodeHandshake(ChessColorType.Black, timeControl));
+
+        if (timeControl != null) {
+            game.clock = new GameClock(timeControl, TimingWheel.shared(), color -> {
+                flaggedGames.add(game);
+                selector.wakeup();
+            });
+            game.clock.start(ChessColorType.White);
+        }
+    }
+
+    private void read(Connection conn) throws IOException {
+        int n = conn.channel.read(conn.in);
+
+        if (n < 0) {
+            close(conn);
+            return;
+        }
+
+        if (conn.in.hasRemaining()) return;
+
+        // Full frame received
+        long   received = System.nanoTime();
+        byte[] frame    = conn.in.array().clone();
+        conn.in.clear();
+
+        // Answer pings of waiting and playing clients; the server sends none, so pongs are unexpected
+        if (ChessProtocol.frameType(frame) == ChessProtocol.TYPE_PING) {
+            conn.roundTripMicros = Math.max(0, ChessProtocol.frameRoundTrip(frame));
+            if (conn.roundTripMicros > 0) clientRoundTrip.record(conn.roundTripMicros);
+            send(conn, ChessProtocol.encodePong(frame, System.currentTimeMillis()));
+            return;
+        }
+
+        Game game = conn.game;
+        if (game == null || !isValidMove(game, conn, frame)) {
+            rejectedMoves.increment();
+            close(conn);
+            return;
+        }
+
+        // isValidMove() made the move on position
+        game.state.moved(position);
+        relayedMoves.increment();
+        if (conn.moveSentNanos != 0) moveRoundTrip.record((received - conn.moveSentNanos) / 1000);
+
+        if (game.journal != null) {
+            try {
+                long start = System.nanoTime();
+                game.journal.append(Move.ofCode(ChessProtocol.frameMove(frame)));
+                journalAppend.recordSince(start);
+            } catch (IOException e) {
+                Log.warn("Move not journaled", e);
+                closeJournal(game, false);
+            }
+        }
+
+        // Server clock is authoritative
+        if (game.clock != null) {
+            long remaining = game.clock.press();
+            long lag       = Math.min(conn.roundTripMicros / 1000, GameClock.MAX_LAG_MILLIS);
+
+            if (lag > 0 && !game.state.kingCaught) {
+                game.clock.addTime(conn.color, lag);
+                remaining += lag;
+                lagCredit.record(lag);
+            }
+            ChessProtocol.setFrameClock(frame, remaining);
+        }
+
+        Connection opponent = game.opponentOf(conn);
+        send(opponent, frame);
+        opponent.moveSentNanos = System.nanoTime();
+        moveProcessing.recordSince(received);
+
+        if (game.state.kingCaught || game.state.drawReason() != null) {
+            // Game over - close both after the last move is delivered; clients detect the draw themselves
+            finishGame(game);
+        }
+    }
+
+    /**
+     * Tell both players whose flag fell and end the game
+     */
+    private void flagFell(Game game) {
+        if (game.white.game != game) return;
+
+        byte[] frame = ChessProtocol.encodeFlag(game.clock.getFlagged());
+        try {
+            send(game.white, frame);
+            send(game.black, frame.clone());
+            finishGame(game);
+        } catch (IOException e) {
+            endGame(game);
+            closeChannel(game.white);
+            closeChannel(game.black);
+        }
+    }
+
+    /**
+     * End a game and close both connections after pending frames are delivered
+     */
+    private void finishGame(Game game) throws IOException {
+        endGame(game);
+        game.white.closeAfterFlush = true;
+        game.black.closeAfterFlush = true;
+        flush(game.white);
+        flush(game.black);
+    }
+
+    /**
+     * Returns whether a frame is a valid move of conn in game, and if so make it on position
+     */
+    private boolean isValidMove(Game game, Connection conn, byte[] frame) {
+        if (ChessProtocol.frameType(frame) != ChessProtocol.TYPE_MOVE) return false;
+        if (game.state.turnColor() != conn.color) return false;
+
+        // Legal moves include each promotion of a pawn reaching the last row, and only those
+        int move = ChessProtocol.frameMove(frame);
+        if (move < 0 || !game.state.isLegalMove(move, position, moves)) return false;
+
+        boolean catchesKing = (position.captured(move) & 7) == Position.KING;
+        if (catchesKing != ChessProtocol.frameKingCaught(frame)) return false;
+
+        position.make(move);
+        return ChessProtocol.frameState(frame) == position.state;
+    }
+
+    private void send(Connection conn, byte[] data) throws IOException {
+        if (!conn.channel.isOpen()) return;
+
+        conn.out.add(ByteBuffer.wrap(data));
+        flush(conn);
+    }
+
+    private void flush(Connection conn) throws IOException {
+        while (!conn.out.isEmpty()) {
+            ByteBuffer buf = conn.out.peek();
+            conn.channel.write(buf);
+
+            if (buf.hasRemaining()) {
+                // Socket buffer full - wait until writable
+                conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            conn.out.poll();
+        }
+
+        if (conn.closeAfterFlush) {
+            closeChannel(conn);
+        } else if (conn.key.isValid()) {
+            conn.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void endGame(Game game) {
+        if (game.white.game == null) return;
+
+        if (game.clock != null) game.clock.stop();
+        game.white.game = null;
+        game.black.game = null;
+        activeGames--;
+
+        // Games ended while the server runs need no recovery
+        closeJournal(game, true);
+    }
+
+    /**
+     * Close the journal of a game
+     *
+     * @param game   Game
+     * @param delete Whether to delete the journal
+     */
+    private void closeJournal(Game game, boolean delete) {
+        if (game.journal == null) return;
+
+        try {
+            if (delete) game.journal.delete();
+            else game.journal.close();
+        } catch (IOException e) {
+            Log.warn("Journal not closed", e);
+        }
+        game.journal = null;
+    }
+
+    /**
+     * Close a connection and the connection of its opponent
+     */
+    private void close(Connection conn) {
+        if (waiting == conn) waiting = null;
+
+        Game game = conn.game;
+        closeChannel(conn);
+
+        if (game != null) {
+            endGame(game);
+            closeChannel(game.opponentOf(conn));
+        }
+    }
+
+    private void closeChannel(Connection conn) {
+        if (!conn.channel.isOpen()) return;
+
+        conn.key.cancel();
+        activeConnections--;
+        try {
+            conn.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
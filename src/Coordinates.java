@@ -1,43 +1,116 @@
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * Coordinates for pieces
+ * <p>
+ * Squares of the board are 64 canonical immutable instances, taken with of() instead of being allocated, so
+ * that equal squares are usually the same object. A square also packs into an int, row * 8 + col, which is its
+ * hash code. Off-board coordinates only come from unchecked input and are allocated.
  */
-public class Coordinates implements Serializable {
-    int row, col;
+public final class Coordinates implements Serializable {
+    // Fixed so that version 1 save files stay readable
+    private static final long serialVersionUID = -9104539661572826745L;
 
-    Coordinates() {
-        this.row = 0;
-        this.col = 0;
+    // Canonical instances by square
+    private static final Coordinates[] SQUARES = new Coordinates[64];
+
+    static {
+        for (int square = 0; square < 64; square++) SQUARES[square] = new Coordinates(square / 8, square % 8);
     }
 
-    Coordinates(int row, int col) {
-        this.row = row;
-        this.col = col;
+    final int row, col;
+
+    // row * 8 + col, restored by readResolve() in deserialized instances
+    final transient int square;
+
+    private Coordinates(int row, int col) {
+        this.row    = row;
+        this.col    = col;
+        this.square = row * 8 + col;
     }
 
-    Coordinates(Coordinates coords) {
-        if (coords == null) {
-            throw new NullPointerException("coords not null");
-        }
+    /**
+     * @return Canonical instance of the square, or new off-board coordinates
+     */
+    static Coordinates of(int row, int col) {
+        return isValid(row, col) ? SQUARES[row * 8 + col] : new Coordinates(row, col);
+    }
 
-        this.row = coords.row;
-        this.col = coords.col;
+    /**
+     * @param square Square, row * 8 + col
+     * @return Canonical instance of the square
+     */
+    static Coordinates of(int square) {
+        return SQUARES[square];
     }
 
-    Coordinates add(Coordinates coords) {
-        return new Coordinates(this.row + coords.row, this.col + coords.col);
+    /**
+     * @return Whether row and col are on the board
+     */
+    static boolean isValid(int row, int col) {
+        return ((row | col) & ~7) == 0;
+    }
+
+    /**
+     * @return Square moved by the offset, null if off the board
+     */
+    Coordinates offset(int d_row, int d_col) {
+        int row = this.row + d_row, col = this.col + d_col;
+
+        return isValid(row, col) ? SQUARES[row * 8 + col] : null;
     }
 
-    Coordinates add(int row, int col) {
-        return new Coordinates(this.row + row, this.col + col);
+    /**
+     * Precompute the squares reached from each square by a set of offsets
+     *
+     * @param offsets {d_row, d_col} pairs
+     * @return Squares on the board reached from each square, by square
+     */
+    static Coordinates[][] targets(int[][] offsets) {
+        Coordinates[][] result = new Coordinates[64][];
+
+        for (int square = 0; square < 64; square++) {
+            Coordinates[] reached = new Coordinates[offsets.length];
+            int           count   = 0;
+
+            for (int[] offset : offsets) {
+                Coordinates target = SQUARES[square].offset(offset[0], offset[1]);
+                if (target != null) reached[count++] = target;
+            }
+
+            result[square] = Arrays.copyOf(reached, count);
+        }
+
+        return result;
     }
 
     /**
      * @return Whether this coordinate is in a valid range
      */
     boolean isWithinRange() {
-        return ((row >= 0) && (row < 8)) && ((col >= 0) && (col < 8));
+        return isValid(row, col);
+    }
+
+    /**
+     * Parse a square in algebraic notation such as "e4"
+     *
+     * @param square Square name
+     * @return Coordinates of the square, null if invalid
+     */
+    static Coordinates parse(String square) {
+        if (square == null || square.length() != 2) return null;
+
+        int row = '8' - square.charAt(1), col = square.charAt(0) - 'a';
+
+        return isValid(row, col) ? SQUARES[row * 8 + col] : null;
+    }
+
+    /**
+     * Replace squares read from version 1 save files by their canonical instance
+     */
+    private Object readResolve() {
+        return of(row, col);
     }
 
     /**
@@ -48,13 +121,12 @@ public class Coordinates implements Serializable {
     }
 
     public int hashCode() {
-        return this.row << 4 | this.col;
+        return this.square;
     }
 
     public boolean equals(Object obj) {
         assert obj instanceof Coordinates;
 
-        return (this.row == ((Coordinates) obj).row) && (this.col == ((Coordinates) obj).col);
+        return this == obj || (this.row == ((Coordinates) obj).row) && (this.col == ((Coordinates) obj).col);
     }
 }
-
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Static evaluation of positions
+ * <p>
+ * Scores are material plus a piece-square bonus, in centipawns. All weights live in one parameter table so they can
+ * be replaced or tuned without touching the code.
+ */
+class Evaluator {
+    // Parameter table layout: material by type ordinal, then piece-square bonuses by type ordinal and square as seen
+    // by White (row 0 is the eighth rank)
+    static final int MATERIAL    = 0;
+    static final int PSQT        = 6;
+    static final int PARAM_COUNT = PSQT + 6 * 64;
+
+    final int[] params;
+
+    // Score by piece code and square for White, negated for Black, from params
+    private final int[][] table = new int[16][64];
+
+    Evaluator() {
+        this(defaultParams());
+    }
+
+    /**
+     * @param params Parameter table of PARAM_COUNT values; copied
+     */
+    Evaluator(int[] params) {
+        if (params.length != PARAM_COUNT) {
+            throw new IllegalArgumentException("Expected " + PARAM_COUNT + " parameters, got " + params.length);
+        }
+        this.params = params.clone();
+
+        for (int type = 0; type < 6; type++) {
+            for (int square = 0; square < 64; square++) {
+                int mirrored = (7 - square / 8) * 8 + square % 8;
+
+                table[type + 1][square]                  = params[MATERIAL + type] + params[PSQT + type * 64 + square];
+                table[type + 1 + Position.BLACK][square] = -(params[MATERIAL + type] + params[PSQT + type * 64 + mirrored]);
+            }
+        }
+    }
+
+    /**
+     * Evaluator of the game: the network in the file named by the chess.nnue system property, else the hand-set
+     * parameter table
+     */
+    static Evaluator standard() {
+        String network = System.getProperty("chess.nnue");
+        if (network == null || network.isBlank()) return new Evaluator();
+
+        try {
+            return network(Path.of(network));
+        } catch (IOException e) {
+            Log.warn("Network " + network + " not loaded, using the parameter table", e);
+            return new Evaluator();
+        }
+    }
+
+    /**
+     * Load a network with Nnue, which is only compiled with the Vector API module and is therefore found by name
+     *
+     * @param path Network file
+     * @return Evaluator of the network
+     * @throws IOException if the file is invalid, or Nnue is not compiled in or runs without the module
+     */
+    static Evaluator network(Path path) throws IOException {
+        try {
+            return (Evaluator) Class.forName("Nnue").getDeclaredMethod("open", Path.class).invoke(null, path);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("NNUE evaluation needs --add-modules jdk.incubator.vector", e.getCause());
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled in, or its Vector API classes not found without the module
+            throw new IOException("NNUE evaluation needs nnue/Nnue.java compiled and run with --add-modules "
+                                  + "jdk.incubator.vector", e);
+        }
+    }
+
+    /**
+     * @return Evaluator with the same weights for the search of another thread
+     */
+    Evaluator copy() {
+        return this;
+    }
+
+    /**
+     * @param position Position
+     * @return Score for the side to move
+     */
+    int evaluate(Position position) {
+        int score = 0;
+
+        for (int square = 0; square < 64; square++) score += table[position.squares[square]][square];
+
+        return position.side == 0 ? score : -score;
+    }
+
+    /**
+     * @param piece Piece code
+     * @return Material value of the piece
+     */
+    int material(int piece) {
+        return params[MATERIAL + (piece & 7) - 1];
+    }
+
+    /**
+     * Read a parameter table written by writeParams
+     * <p>
+     * Lines starting with '#' are comments; all other tokens are the PARAM_COUNT values in table order.
+     *
+     * @param path Parameter file
+     * @return Parameters
+     */
+    static int[] readParams(Path path) throws IOException {
+        int[] params = new int[PARAM_COUNT];
+        int   count  = 0;
+
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (line.isBlank() || line.trim().startsWith("#")) continue;
+
+            for (String token : line.trim().split("\\s+")) {
+                if (count == PARAM_COUNT) throw new IOException("More than " + PARAM_COUNT + " parameters in " + path);
+                try {
+                    params[count++] = Integer.parseInt(token);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid parameter " + token + " in " + path);
+                }
+            }
+        }
+        if (count < PARAM_COUNT) throw new IOException("Expected " + PARAM_COUNT + " parameters, got " + count);
+
+        return params;
+    }
+
+    /**
+     * Write a parameter table: material, then one 8x8 piece-square table per type, eighth rank first
+     *
+     * @param path   Parameter file
+     * @param params Parameters
+     */
+    static void writeParams(Path path, int[] params) throws IOException {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("# Material: Rook Knight Bishop Queen King Pawn\n");
+        for (int type = 0; type < 6; type++) sb.append(type > 0 ? " " : "").append(params[MATERIAL + type]);
+        sb.append('\n');
+
+        for (ChessPieceType type : ChessPieceType.values()) {
+            sb.append("# ").append(type).append(" piece-square table, as seen by White\n");
+            for (int row = 0; row < 8; row++) {
+                for (int col = 0; col < 8; col++) {
+                    sb.append(String.format(col > 0 ? " %4d" : "%4d", params[PSQT + type.ordinal() * 64 + row * 8 + col]));
+                }
+                sb.append('\n');
+            }
+        }
+
+        Files.writeString(path, sb, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Hand-set parameters
+     */
+    static int[] defaultParams() {
+        int[] params = new int[PARAM_COUNT];
+
+        // Rook, Knight, Bishop, Queen, King, Pawn
+        int[] material = {500, 320, 330, 900, 0, 100};
+        System.arraycopy(material, 0, params, MATERIAL, 6);
+
+        for (int square = 0; square < 64; square++) {
+            int row = square / 8, col = square % 8;
+            // Distance from the center, 0 to 6
+            int edge = Math.max(3 - row, row - 4) + Math.max(3 - col, col - 4);
+
+            params[PSQT + ChessPieceType.Rook.ordinal() * 64 + square]   = row == 1 ? 20 : (col == 3 || col == 4) ? 5 : 0;
+            params[PSQT + ChessPieceType.Knight.ordinal() * 64 + square] = 20 - 10 * edge;
+            params[PSQT + ChessPieceType.Bishop.ordinal() * 64 + square] = 10 - 5 * edge;
+            params[PSQT + ChessPieceType.Queen.ordinal() * 64 + square]  = 5 - 2 * edge;
+            params[PSQT + ChessPieceType.King.ordinal() * 64 + square]   = row == 7 ? (col == 3 || col == 4 ? 0 : 20) : -10 * (7 - row);
+            params[PSQT + ChessPieceType.Pawn.ordinal() * 64 + square]   = row == 0 || row == 7 ? 0 : (6 - row) * 8 + (col == 3 || col == 4 ? 10 : 0);
+        }
+
+        return params;
+    }
+}
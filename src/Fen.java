@@ -0,0 +1,248 @@
+import java.util.Map;
+
+/**
+ * Forsyth-Edwards Notation (FEN) of positions
+ * <p>
+ * The parser reads a FEN in one pass and puts pieces straight into a Board, without splitting the string
+ * or building intermediate collections.
+ */
+final class Fen {
+    // Start position
+    static final String INITIAL = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+
+    // FEN letters of White pieces by ChessPieceType ordinal
+    private static final char[]           LETTERS = {'R', 'N', 'B', 'Q', 'K', 'P'};
+    private static final ChessPieceType[] TYPES   = ChessPieceType.values();
+
+    private Fen() {
+    }
+
+    /**
+     * Parse a FEN
+     *
+     * @param fen FEN
+     * @return Board of the position
+     * @throws IllegalArgumentException if the FEN is invalid
+     */
+    static Board parse(CharSequence fen) {
+        Board board = new Board();
+        parseInto(fen, board);
+        return board;
+    }
+
+    /**
+     * Parse a FEN into an empty board
+     * <p>
+     * Pawns off their start row are marked as moved. Castling rights and the en passant file go into the board
+     * state; the en passant square is kept only if a pawn of the side to move can capture there.
+     *
+     * @param fen   FEN
+     * @param board Empty board to fill
+     * @throws IllegalArgumentException if the FEN is invalid
+     */
+    static void parseInto(CharSequence fen, Board board) {
+        int length = fen.length();
+        int i      = 0;
+
+        // Piece placement
+        int row = 0, col = 0;
+        for (; i < length; i++) {
+            char c = fen.charAt(i);
+
+            if (c == ' ') break;
+
+            if (c == '/') {
+                if (col != 8) throw invalid(fen, "row " + (8 - row) + " does not have 8 squares");
+                row++;
+                col = 0;
+            } else if (c >= '1' && c <= '8') {
+                col += c - '0';
+            } else {
+                ChessPieceType type = pieceType(c);
+                if (type == null) throw invalid(fen, "unknown piece " + c);
+                if (row > 7 || col > 7) throw invalid(fen, "too many squares");
+
+                ChessColorType color = Character.isUpperCase(c) ? ChessColorType.White : ChessColorType.Black;
+                Coordinates    pos   = Coordinates.of(row, col);
+                Piece          piece = Piece.create(board.pieces, type, color, pos);
+
+                // Only pawns on their start row may move two squares
+                if (type == ChessPieceType.Pawn) piece.hasMoved = row != (color == ChessColorType.White ? 6 : 1);
+                else piece.hasMoved = true;
+
+                board.pieces.put(pos, piece);
+                col++;
+            }
+
+            if (col > 8) throw invalid(fen, "row " + (8 - row) + " has more than 8 squares");
+        }
+        if (row != 7 || col != 8) throw invalid(fen, "board does not have 8 rows");
+
+        // Side to move
+        i = skipSpaces(fen, i);
+        if (i >= length) throw invalid(fen, "missing side to move");
+        switch (fen.charAt(i++)) {
+            case 'w':
+                board.turnColor = ChessColorType.White;
+                break;
+            case 'b':
+                board.turnColor = ChessColorType.Black;
+                break;
+            default:
+                throw invalid(fen, "invalid side to move");
+        }
+
+        // Castling rights
+        i = skipSpaces(fen, i);
+        int castling = 0;
+        for (; i < length && fen.charAt(i) != ' '; i++) {
+            switch (fen.charAt(i)) {
+                case 'K':
+                    castling |= Board.WHITE_KINGSIDE;
+                    break;
+                case 'Q':
+                    castling |= Board.WHITE_QUEENSIDE;
+                    break;
+                case 'k':
+                    castling |= Board.BLACK_KINGSIDE;
+                    break;
+                case 'q':
+                    castling |= Board.BLACK_QUEENSIDE;
+                    break;
+                case '-':
+                    break;
+                default:
+                    throw invalid(fen, "invalid castling rights");
+            }
+        }
+
+        board.state = castling;
+
+        // En passant square
+        i = skipSpaces(fen, i);
+        if (i < length && fen.charAt(i) != '-') {
+            if (i + 1 >= length) throw invalid(fen, "invalid en passant square");
+
+            int file = fen.charAt(i) - 'a', rank = fen.charAt(i + 1) - '0';
+            if (file < 0 || file > 7 || rank != (board.turnColor == ChessColorType.White ? 6 : 3)) {
+                throw invalid(fen, "invalid en passant square");
+            }
+
+            // Kept only if it can be captured, as in Board.stateAfter()
+            Coordinates pawn = Coordinates.of(board.turnColor == ChessColorType.White ? 3 : 4, file);
+            if (canCaptureEnPassant(board, pawn)) board.state |= (file + 1) << Board.EN_PASSANT_SHIFT;
+        }
+        for (; i < length && fen.charAt(i) != ' '; i++) ;
+
+        // Halfmove clock
+        i = skipSpaces(fen, i);
+        int halfmoveClock = 0;
+        for (; i < length && fen.charAt(i) != ' '; i++) {
+            char c = fen.charAt(i);
+            if (c < '0' || c > '9') throw invalid(fen, "invalid halfmove clock");
+            halfmoveClock = Math.min(halfmoveClock * 10 + (c - '0'), PositionHistory.FIFTY_MOVES);
+        }
+        board.setHalfmoveClock(halfmoveClock);
+
+        // Fullmove number
+        i = skipSpaces(fen, i);
+        int turnCount = 0;
+        for (; i < length && fen.charAt(i) != ' '; i++) {
+            char c = fen.charAt(i);
+            if (c < '0' || c > '9') throw invalid(fen, "invalid fullmove number");
+            turnCount = turnCount * 10 + (c - '0');
+        }
+        board.turnCount = Math.max(1, turnCount);
+    }
+
+    /**
+     * @param board Board
+     * @return FEN of the board
+     */
+    static String toFen(Board board) {
+        Map<Coordinates, Piece> pieces    = board.pieces;
+        ChessColorType          turnColor = board.turnColor;
+
+        char[] squares = new char[64];
+        for (Piece piece : pieces.values()) {
+            char letter = LETTERS[piece.type.ordinal()];
+            squares[piece.pos.square] =
+                piece.color == ChessColorType.White ? letter : Character.toLowerCase(letter);
+        }
+
+        StringBuilder sb = new StringBuilder(90);
+
+        // Piece placement
+        for (int row = 0; row < 8; row++) {
+            int empty = 0;
+
+            for (int col = 0; col < 8; col++) {
+                char c = squares[row * 8 + col];
+
+                if (c == 0) {
+                    empty++;
+                    continue;
+                }
+                if (empty > 0) sb.append((char) ('0' + empty));
+                empty = 0;
+                sb.append(c);
+            }
+
+            if (empty > 0) sb.append((char) ('0' + empty));
+            if (row < 7) sb.append('/');
+        }
+
+        // Side to move
+        sb.append(turnColor == ChessColorType.White ? " w " : " b ");
+
+        // Castling rights
+        int length = sb.length();
+        if ((board.state & Board.WHITE_KINGSIDE) != 0) sb.append('K');
+        if ((board.state & Board.WHITE_QUEENSIDE) != 0) sb.append('Q');
+        if ((board.state & Board.BLACK_KINGSIDE) != 0) sb.append('k');
+        if ((board.state & Board.BLACK_QUEENSIDE) != 0) sb.append('q');
+        if (sb.length() == length) sb.append('-');
+
+        // En passant
+        int file = Board.enPassantFile(board.state);
+        if (file >= 0) sb.append(' ').append((char) ('a' + file)).append(turnColor == ChessColorType.White ? '6' : '3');
+        else sb.append(" -");
+
+        // Halfmove clock, fullmove number
+        sb.append(' ').append(board.halfmoveClock()).append(' ').append(board.turnCount);
+
+        return sb.toString();
+    }
+
+    /**
+     * @return Whether a pawn of the side to move stands next to the enemy pawn at pos
+     */
+    private static boolean canCaptureEnPassant(Board board, Coordinates pos) {
+        Piece pawn = board.pieces.get(pos);
+        if (!(pawn instanceof Pawn) || pawn.color == board.turnColor) return false;
+
+        for (int col = pos.col - 1; col <= pos.col + 1; col += 2) {
+            Piece piece = board.pieces.get(Coordinates.of(pos.row, col));
+            if (piece instanceof Pawn && piece.color == board.turnColor) return true;
+        }
+        return false;
+    }
+
+    private static ChessPieceType pieceType(char c) {
+        char upper = Character.toUpperCase(c);
+
+        for (int i = 0; i < LETTERS.length; i++) {
+            if (LETTERS[i] == upper) return TYPES[i];
+        }
+        return null;
+    }
+
+    private static int skipSpaces(CharSequence fen, int i) {
+        while (i < fen.length() && fen.charAt(i) == ' ') i++;
+        return i;
+    }
+
+    private static IllegalArgumentException invalid(CharSequence fen, String reason) {
+        return new IllegalArgumentException("Invalid FEN \"" + fen + "\": " + reason);
+    }
+}
@@ -15,7 +15,7 @@ public class FileDialog {
 
         // Valid file selection
         if (uc == JFileChooser.APPROVE_OPTION) {
-            System.out.println(fc.getSelectedFile());
+            Log.debug("Save file selected", fc.getSelectedFile());
             return fc.getSelectedFile();
         } else {
             return null;
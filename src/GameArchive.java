@@ -0,0 +1,641 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed game archive (*.jca)
+ * <p>
+ * A move is stored as its index in the sorted list of moves possible in its position, which takes one byte.
+ * Positions with more than 256 possible moves use two bytes. Games are grouped into blocks of about 64 KiB
+ * that are compressed on their own, so any game is found by reading one block, and blocks decode in parallel.
+ * <p>
+ * Layout: magic "JCA" and version(byte), codec(byte), then the blocks, then the block index and a trailer.
+ * <ul>
+ *   <li>Block: raw size(int), stored size(int), then the stored bytes</li>
+ *   <li>Block index: per block offset(long), first game(long), games(int)</li>
+ *   <li>Trailer: index offset(long), blocks(int), magic "JCA!"</li>
+ *   <li>Game: length(varint), tags(byte count, then name and value strings), start(byte 0 for the initial
+ *       position, 1 followed by a FEN string), result(byte), plies(varint), move indices</li>
+ * </ul>
+ * Strings are a varint length and UTF-8 bytes.
+ */
+final class GameArchive {
+
+    /**
+     * A game read from an archive
+     */
+    static final class Game {
+        final Map<String, String> tags;
+        final String              fen;     // null for the initial position
+        final List<Move>          moves;
+        final String              result;
+
+        Game(Map<String, String> tags, String fen, List<Move> moves, String result) {
+            this.tags   = tags;
+            this.fen    = fen;
+            this.moves  = moves;
+            this.result = result;
+        }
+
+        /**
+         * @return Board at the start of the game
+         */
+        Board startBoard() {
+            return fen != null ? Fen.parse(fen) : Board.initial();
+        }
+    }
+
+    // Compression of blocks
+    static final int CODEC_NONE    = 0;
+    static final int CODEC_HUFFMAN = 1;  // Entropy coding only
+    static final int CODEC_DEFLATE = 2;  // LZ77 and entropy coding
+
+    // File layout; version 2 indexes moves in lists with castling and en passant
+    static final int VERSION      = 2;
+    static final int HEADER_SIZE  = 5;
+    static final int TRAILER_SIZE = 8 + 4 + 4;
+    static final int INDEX_ENTRY  = 8 + 8 + 4;
+    static final int BLOCK_SIZE   = 64 * 1024;
+    private static final byte[] MAGIC         = {'J', 'C', 'A'};
+    private static final byte[] TRAILER_MAGIC = {'J', 'C', 'A', '!'};
+
+    private static final String[] RESULTS = {"*", "1-0", "0-1", "1/2-1/2"};
+
+    private GameArchive() {
+    }
+
+    /**
+     * Writes games into an archive, one block at a time
+     */
+    static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final Deflater    deflater;
+        private final ByteSink    block     = new ByteSink(BLOCK_SIZE + 4096);
+        private final ByteSink    game      = new ByteSink(1024);
+        private final ByteSink    index     = new ByteSink(4096);
+        private       byte[]      stored    = new byte[BLOCK_SIZE];
+        private       int[]       codes     = new int[256];
+        private       long        games     = 0;
+        private       long        firstGame = 0;
+        private       int         blocks    = 0;
+
+        /**
+         * @param path  Archive destination, replaced if it exists
+         * @param codec One of the CODEC_ constants
+         */
+        Writer(Path path, int codec) throws IOException {
+            if (codec < CODEC_NONE || codec > CODEC_DEFLATE) throw new IllegalArgumentException("Unknown codec " + codec);
+
+            this.deflater = codec == CODEC_NONE ? null : new Deflater(Deflater.BEST_COMPRESSION, true);
+            if (codec == CODEC_HUFFMAN) deflater.setStrategy(Deflater.HUFFMAN_ONLY);
+
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                       StandardOpenOption.TRUNCATE_EXISTING);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC).put((byte) VERSION).put((byte) codec).flip();
+            write(header);
+        }
+
+        /**
+         * @return Number of games written
+         */
+        long getGames() {
+            return games;
+        }
+
+        /**
+         * Add a game
+         *
+         * @param tags   Tags of the game
+         * @param start  Board at the start of the game; not modified
+         * @param moves  Moves of the game, all of which must be possible
+         * @param result Game termination marker
+         */
+        void add(Map<String, String> tags, Board start, List<Move> moves, String result) throws IOException {
+            game.size = 0;
+
+            // Tags
+            game.put(Math.min(tags.size(), 255));
+            int count = 0;
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                if (count++ == 255) break;
+                game.putString(tag.getKey());
+                game.putString(tag.getValue());
+            }
+
+            // Start position
+            String fen = Fen.toFen(start);
+            if (fen.equals(Fen.INITIAL)) {
+                game.put(0);
+            } else {
+                game.put(1);
+                game.putString(fen);
+            }
+
+            int resultCode = Arrays.asList(RESULTS).indexOf(result);
+            game.put(Math.max(resultCode, 0));
+            game.putVarint(moves.size());
+
+            // Moves as indices
+            Board board = Board.copyOf(start);
+            for (Move move : moves) {
+                int size = sortedCodes(board);
+                int code = move.code();
+                int i    = Arrays.binarySearch(codes, 0, size, code);
+                if (i < 0) throw new IllegalArgumentException("Move " + move + " is not possible");
+
+                if (size > 256) game.put(i >>> 8);
+                game.put(i);
+
+                board.applyMove(move);
+            }
+
+            // Length prefix, so games can be skipped without replaying them
+            block.putVarint(game.size);
+            block.putBytes(game.data, game.size);
+
+            games++;
+            if (block.size >= BLOCK_SIZE) flushBlock();
+        }
+
+        /**
+         * Put the codes of all moves of the side to move into codes, sorted
+         *
+         * @return Number of moves
+         */
+        private int sortedCodes(Board board) {
+            List<Move> moves = board.legalMoveList();
+            if (moves.size() > codes.length) codes = new int[moves.size()];
+
+            for (int i = 0; i < moves.size(); i++) codes[i] = moves.get(i).code();
+            Arrays.sort(codes, 0, moves.size());
+
+            return moves.size();
+        }
+
+        private void flushBlock() throws IOException {
+            if (block.size == 0) return;
+
+            byte[] out;
+            int    storedSize;
+            if (deflater == null) {
+                out        = block.data;
+                storedSize = block.size;
+            } else {
+                if (stored.length < block.size + 1024) stored = new byte[block.size + 1024];
+
+                deflater.reset();
+                deflater.setInput(block.data, 0, block.size);
+                deflater.finish();
+                storedSize = deflater.deflate(stored);
+                while (!deflater.finished()) {
+                    stored      = Arrays.copyOf(stored, stored.length * 2);
+                    storedSize += deflater.deflate(stored, storedSize, stored.length - storedSize);
+                }
+                out = stored;
+            }
+
+            index.putLong(channel.position());
+            index.putLong(firstGame);
+            index.putInt((int) (games - firstGame));
+
+            ByteBuffer head = ByteBuffer.allocate(8);
+            head.putInt(block.size).putInt(storedSize).flip();
+            write(head);
+            write(ByteBuffer.wrap(out, 0, storedSize));
+
+            blocks++;
+            firstGame  = games;
+            block.size = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!channel.isOpen()) return;
+
+            try {
+                flushBlock();
+
+                long indexOffset = channel.position();
+                write(ByteBuffer.wrap(index.data, 0, index.size));
+
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+                trailer.putLong(indexOffset).putInt(blocks).put(TRAILER_MAGIC).flip();
+                write(trailer);
+            } finally {
+                if (deflater != null) deflater.end();
+                channel.close();
+            }
+        }
+
+        private void write(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) channel.write(buf);
+        }
+    }
+
+    /**
+     * Reads games from an archive
+     * <p>
+     * Blocks are read with positional reads, so one Reader may be used by several threads.
+     */
+    static final class Reader implements Closeable {
+        private final FileChannel channel;
+        private final int         codec;
+        private final long[]      blockOffsets;
+        private final long[]      firstGames;
+        private final long        games;
+
+        Reader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+
+            try {
+                ByteBuffer header = readFully(0, HEADER_SIZE);
+                if (header.get() != MAGIC[0] || header.get() != MAGIC[1] || header.get() != MAGIC[2]) {
+                    throw new IOException("Not a valid game archive!");
+                }
+                int version = header.get();
+                if (version == 1) {
+                    throw new IOException("Game archive of version 1 lists moves without castling and en passant; "
+                                          + "re-pack it from its PGN");
+                }
+                if (version != VERSION) throw new IOException("Unsupported game archive version " + version);
+                codec = header.get();
+
+                long size = channel.size();
+                if (size < HEADER_SIZE + TRAILER_SIZE) throw new IOException("Not a valid game archive!");
+
+                ByteBuffer trailer     = readFully(size - TRAILER_SIZE, TRAILER_SIZE);
+                long       indexOffset = trailer.getLong();
+                int        blocks      = trailer.getInt();
+                for (byte b : TRAILER_MAGIC) {
+                    if (trailer.get() != b) throw new IOException("Game archive is incomplete!");
+                }
+                if (blocks < 0 || indexOffset + (long) blocks * INDEX_ENTRY != size - TRAILER_SIZE) {
+                    throw new IOException("Not a valid game archive!");
+                }
+
+                ByteBuffer index = readFully(indexOffset, blocks * INDEX_ENTRY);
+                blockOffsets = new long[blocks];
+                firstGames   = new long[blocks + 1];
+                for (int i = 0; i < blocks; i++) {
+                    blockOffsets[i] = index.getLong();
+                    firstGames[i]   = index.getLong();
+                    firstGames[i + 1] = firstGames[i] + index.getInt();
+                }
+                games = firstGames[blocks];
+
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return Number of games in the archive
+         */
+        long getGames() {
+            return games;
+        }
+
+        /**
+         * @return Number of blocks in the archive
+         */
+        int getBlocks() {
+            return blockOffsets.length;
+        }
+
+        /**
+         * Read one game, decoding only its block
+         *
+         * @param number Number of the game, starting from 0
+         * @return Game
+         */
+        Game read(long number) throws IOException {
+            if (number < 0 || number >= games) throw new IndexOutOfBoundsException("No game " + number);
+
+            int block = Arrays.binarySearch(firstGames, 0, blockOffsets.length, number);
+            if (block < 0) block = -block - 2;
+            // Skip empty blocks that start at the same game
+            while (firstGames[block + 1] <= number) block++;
+
+            ByteBuffer data = readBlock(block);
+            for (long i = firstGames[block]; i < number; i++) skipGame(data);
+
+            return decodeGame(data);
+        }
+
+        /**
+         * Decode all games of a block
+         *
+         * @param block Number of the block
+         * @return Games of the block, in order
+         */
+        List<Game> readBlockGames(int block) throws IOException {
+            ByteBuffer data  = readBlock(block);
+            int        count = (int) (firstGames[block + 1] - firstGames[block]);
+            List<Game> games = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) games.add(decodeGame(data));
+
+            return games;
+        }
+
+        /**
+         * Decode all games with several threads
+         * <p>
+         * Each thread decodes whole blocks. Games are passed to action in archive order, on the calling thread.
+         *
+         * @param threads Number of decoding threads
+         * @param action  Receiver of the games
+         */
+        void forEach(int threads, Consumer<Game> action) throws IOException, InterruptedException {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+            try {
+                // Keep a bounded number of blocks in flight
+                int                      window  = threads * 4;
+                List<Future<List<Game>>> pending = new ArrayList<>(window);
+                int                      next    = 0;
+
+                while (next < blockOffsets.length || !pending.isEmpty()) {
+                    while (next < blockOffsets.length && pending.size() < window) {
+                        int block = next++;
+                        pending.add(pool.submit(() -> readBlockGames(block)));
+                    }
+
+                    for (Game game : pending.remove(0).get()) action.accept(game);
+                }
+
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        private ByteBuffer readBlock(int block) throws IOException {
+            ByteBuffer head       = readFully(blockOffsets[block], 8);
+            int        rawSize    = head.getInt();
+            int        storedSize = head.getInt();
+            ByteBuffer stored     = readFully(blockOffsets[block] + 8, storedSize);
+
+            if (codec == CODEC_NONE) return stored;
+
+            Inflater inflater = new Inflater(true);
+            try {
+                byte[] raw = new byte[rawSize];
+                inflater.setInput(stored);
+                int n = inflater.inflate(raw);
+                if (n != rawSize) throw new IOException("Corrupt block " + block);
+                return ByteBuffer.wrap(raw);
+
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block " + block, e);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        private ByteBuffer readFully(long position, int size) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(size);
+
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) throw new IOException("Unexpected end of archive");
+            }
+
+            return buf.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static Game decodeGame(ByteBuffer data) throws IOException {
+        getVarint(data);  // Length
+
+        Map<String, String> tags  = new LinkedHashMap<>();
+        int                 count = data.get() & 0xFF;
+        for (int i = 0; i < count; i++) tags.put(getString(data), getString(data));
+
+        String fen    = data.get() != 0 ? getString(data) : null;
+        int    result = data.get();
+        int    plies  = getVarint(data);
+        if (result < 0 || result >= RESULTS.length) throw new IOException("Corrupt game");
+
+        Board board;
+        try {
+            board = fen != null ? Fen.parse(fen) : Board.initial();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt game", e);
+        }
+
+        List<Move> moves = new ArrayList<>(plies);
+        int[]      codes = new int[256];
+        for (int ply = 0; ply < plies; ply++) {
+            List<Move> possible = board.legalMoveList();
+            if (possible.size() > codes.length) codes = new int[possible.size()];
+            for (int i = 0; i < possible.size(); i++) codes[i] = possible.get(i).code();
+            Arrays.sort(codes, 0, possible.size());
+
+            int index = data.get() & 0xFF;
+            if (possible.size() > 256) index = index << 8 | data.get() & 0xFF;
+            if (index >= possible.size()) throw new IOException("Corrupt game");
+
+            Move move = Move.ofCode(codes[index]);
+            moves.add(move);
+            board.applyMove(move);
+        }
+
+        return new Game(tags, fen, moves, RESULTS[result]);
+    }
+
+    /**
+     * Skip a game without replaying it
+     */
+    private static void skipGame(ByteBuffer data) {
+        int length = getVarint(data);
+        data.position(data.position() + length);
+    }
+
+    private static String getString(ByteBuffer data) {
+        int    length = getVarint(data);
+        String value  = new String(data.array(), data.arrayOffset() + data.position(), length, StandardCharsets.UTF_8);
+        data.position(data.position() + length);
+        return value;
+    }
+
+    private static int getVarint(ByteBuffer data) {
+        int value = 0, shift = 0, b;
+        do {
+            b      = data.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    /**
+     * Growable byte array
+     */
+    private static final class ByteSink {
+        byte[] data;
+        int    size;
+
+        ByteSink(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void put(int b) {
+            if (size == data.length) data = Arrays.copyOf(data, data.length * 2);
+            data[size++] = (byte) b;
+        }
+
+        void putVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                put(value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            put(value);
+        }
+
+        void putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarint(bytes.length);
+            putBytes(bytes, bytes.length);
+        }
+
+        void putBytes(byte[] bytes, int length) {
+            if (size + length > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, size + length));
+            System.arraycopy(bytes, 0, data, size, length);
+            size += length;
+        }
+
+        void putInt(int value) {
+            put(value >>> 24);
+            put(value >>> 16);
+            put(value >>> 8);
+            put(value);
+        }
+
+        void putLong(long value) {
+            putInt((int) (value >>> 32));
+            putInt((int) value);
+        }
+    }
+
+    /**
+     * Convert between PGN and archives from the command line
+     * <p>
+     * GameArchive pack GAMES.pgn OUT.jca [none|huffman|deflate]
+     * GameArchive unpack ARCHIVE.jca OUT.pgn [THREADS]
+     * GameArchive get ARCHIVE.jca NUMBER
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length >= 3 && args[0].equals("pack")) {
+            int codec = CODEC_DEFLATE;
+            if (args.length > 3) codec = Arrays.asList("none", "huffman", "deflate").indexOf(args[3]);
+
+            long start = System.nanoTime();
+            long games = pack(Path.of(args[1]), Path.of(args[2]), codec);
+
+            System.out.printf("Packed %d games, %d -> %d bytes in %.1f s%n", games, Files.size(Path.of(args[1])),
+                              Files.size(Path.of(args[2])), (System.nanoTime() - start) / 1e9);
+
+        } else if (args.length >= 3 && args[0].equals("unpack")) {
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+            long start = System.nanoTime();
+            try (Reader reader = new Reader(Path.of(args[1]));
+                 PgnWriter writer = new PgnWriter(Files.newBufferedWriter(Path.of(args[2]), StandardCharsets.ISO_8859_1))) {
+                IOException[] failure = new IOException[1];
+
+                reader.forEach(threads, game -> {
+                    try {
+                        if (failure[0] == null) writer.writeGame(game.tags, game.startBoard(), game.moves, game.result);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+                if (failure[0] != null) throw failure[0];
+
+                System.out.printf("Unpacked %d games in %.1f s%n", reader.getGames(), (System.nanoTime() - start) / 1e9);
+            }
+
+        } else if (args.length >= 3 && args[0].equals("get")) {
+            try (Reader reader = new Reader(Path.of(args[1]));
+                 PgnWriter writer = new PgnWriter(new BufferedWriter(new OutputStreamWriter(System.out)))) {
+                Game game = reader.read(Long.parseLong(args[2]));
+                writer.writeGame(game.tags, game.startBoard(), game.moves, game.result);
+            }
+
+        } else {
+            System.err.println("Usage: GameArchive pack GAMES.pgn OUT.jca [none|huffman|deflate]"
+                               + " | unpack ARCHIVE.jca OUT.pgn [THREADS] | get ARCHIVE.jca NUMBER");
+        }
+    }
+
+    /**
+     * Pack the games of a PGN file into an archive
+     * <p>
+     * Games with a move that cannot be replayed are stored up to that move.
+     *
+     * @param pgn   PGN source
+     * @param path  Archive destination
+     * @param codec One of the CODEC_ constants
+     * @return Number of games packed
+     */
+    static long pack(Path pgn, Path path, int codec) throws IOException {
+        try (Writer writer = new Writer(path, codec); PgnReader reader = new PgnReader(pgn)) {
+            List<Move>    moves   = new ArrayList<>(128);
+            IOException[] failure = new IOException[1];
+
+            reader.readAll(new PgnReplay() {
+                private Board start;
+
+                @Override
+                protected void onMove(Board board, Move move) {
+                    if (moves.isEmpty()) start = Board.copyOf(board);
+                    moves.add(move);
+                }
+
+                @Override
+                protected void onGameEnd(String result, boolean valid) {
+                    try {
+                        if (failure[0] == null) writer.add(tags, moves.isEmpty() ? board : start, moves, result);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                    moves.clear();
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+
+            return writer.getGames();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Chess clock for both players
+ * <p>
+ * Supports an increment added after every move and a delay during which a player's time does not run.
+ * Flag fall is detected by a timeout on a TimingWheel, so a clock holds no thread or executor task of its own.
+ */
+class GameClock {
+    // Most time credited to a player for network lag per move
+    static final int MAX_LAG_MILLIS = 500;
+
+    /**
+     * Time control of a game
+     */
+    static final class TimeControl {
+        final int baseMillis;
+        final int incrementMillis;
+        final int delayMillis;
+
+        TimeControl(int baseMillis, int incrementMillis, int delayMillis) {
+            this.baseMillis      = baseMillis;
+            this.incrementMillis = incrementMillis;
+            this.delayMillis     = delayMillis;
+        }
+
+        /**
+         * Parse a time control such as "5+3" or "5+0/2"
+         * <p>
+         * Format: minutes[+increment seconds][/delay seconds]
+         *
+         * @param text Time control
+         * @return Time control, null if empty or invalid
+         */
+        static TimeControl parse(String text) {
+            if (text == null || text.isBlank()) return null;
+
+            try {
+                String rest = text.trim();
+                double delay = 0, increment = 0, minutes;
+
+                int slash = rest.indexOf('/');
+                if (slash >= 0) {
+                    delay = Double.parseDouble(rest.substring(slash + 1));
+                    rest  = rest.substring(0, slash);
+                }
+
+                int plus = rest.indexOf('+');
+                if (plus >= 0) {
+                    increment = Double.parseDouble(rest.substring(plus + 1));
+                    rest      = rest.substring(0, plus);
+                }
+                minutes = Double.parseDouble(rest);
+
+                if (minutes <= 0 || increment < 0 || delay < 0) return null;
+
+                return new TimeControl((int) (minutes * 60_000), (int) (increment * 1000), (int) (delay * 1000));
+
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        public String toString() {
+            String result = number(baseMillis / 60_000.0) + "+" + number(incrementMillis / 1000.0);
+            if (delayMillis > 0) result += "/" + number(delayMillis / 1000.0);
+            return result;
+        }
+
+        // Whole numbers without ".0"
+        private static String number(double value) {
+            return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+        }
+    }
+
+    private final TimeControl              control;
+    private final TimingWheel              wheel;
+    private final Consumer<ChessColorType> onFlag;
+
+    // Remaining time of White and Black, excluding the running move
+    private final long[]           remaining = new long[2];
+    private       ChessColorType   running;
+    private       long             turnStart;
+    private       ChessColorType   flagged;
+    private       TimingWheel.Timeout flagTimeout;
+
+    /**
+     * @param control Time control
+     * @param wheel   Wheel for flag detection, null to check flags only when queried
+     * @param onFlag  Called with the color whose flag fell, on the wheel thread
+     */
+    GameClock(TimeControl control, TimingWheel wheel, Consumer<ChessColorType> onFlag) {
+        this.control = control;
+        this.wheel   = wheel;
+        this.onFlag  = onFlag;
+
+        remaining[0] = control.baseMillis;
+        remaining[1] = control.baseMillis;
+    }
+
+    TimeControl getTimeControl() {
+        return control;
+    }
+
+    /**
+     * Start the clock of a player
+     *
+     * @param color Player to move
+     */
+    synchronized void start(ChessColorType color) {
+        running   = color;
+        turnStart = now();
+        scheduleFlag();
+    }
+
+    /**
+     * End the move of the running player and start the opponent's clock
+     *
+     * @return Remaining time of the player who moved, in milliseconds
+     */
+    synchronized long press() {
+        if (running == null || flagged != null) return remaining(running);
+
+        ChessColorType mover = running;
+        long           time  = remainingAt(mover, now());
+
+        remaining[mover.ordinal()] = time + control.incrementMillis;
+
+        start(mover == ChessColorType.White ? ChessColorType.Black : ChessColorType.White);
+
+        return remaining[mover.ordinal()];
+    }
+
+    /**
+     * Overwrite the remaining time of a player, e.g. with the value received from the server
+     */
+    synchronized void setRemaining(ChessColorType color, long millis) {
+        remaining[color.ordinal()] = millis;
+        if (color == running) scheduleFlag();
+    }
+
+    /**
+     * Give a player extra time, e.g. to make up for network lag
+     */
+    synchronized void addTime(ChessColorType color, long millis) {
+        if (flagged != null) return;
+
+        remaining[color.ordinal()] += millis;
+        if (color == running) scheduleFlag();
+    }
+
+    /**
+     * Stop both clocks
+     */
+    synchronized void stop() {
+        if (running != null) remaining[running.ordinal()] = remainingAt(running, now());
+        running = null;
+
+        if (flagTimeout != null) flagTimeout.cancel();
+    }
+
+    /**
+     * @param color Player
+     * @return Remaining time in milliseconds, including the running move
+     */
+    synchronized long remaining(ChessColorType color) {
+        if (color == null) return 0;
+        return remainingAt(color, now());
+    }
+
+    /**
+     * @return Color whose flag fell, null if none
+     */
+    synchronized ChessColorType getFlagged() {
+        if (flagged == null && running != null && remainingAt(running, now()) <= 0) flagged = running;
+        return flagged;
+    }
+
+    synchronized ChessColorType getRunning() {
+        return running;
+    }
+
+    private long remainingAt(ChessColorType color, long now) {
+        long time = remaining[color.ordinal()];
+
+        if (color == running) {
+            long elapsed = now - turnStart - control.delayMillis;
+            if (elapsed > 0) time -= elapsed;
+        }
+
+        return Math.max(0, time);
+    }
+
+    private void scheduleFlag() {
+        if (flagTimeout != null) flagTimeout.cancel();
+        if (wheel == null || running == null) return;
+
+        long untilFlag = remaining[running.ordinal()] + control.delayMillis - (now() - turnStart);
+        flagTimeout = wheel.schedule(untilFlag, TimeUnit.MILLISECONDS, this::checkFlag);
+    }
+
+    private void checkFlag() {
+        ChessColorType color;
+
+        synchronized (this) {
+            // Timeout may fire a tick early or after a press
+            if (flagged != null || running == null) return;
+            if (remainingAt(running, now()) > 0) {
+                scheduleFlag();
+                return;
+            }
+
+            flagged = running;
+            color   = running;
+            remaining[running.ordinal()] = 0;
+            running = null;
+        }
+
+        onFlag.accept(color);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Format a time as m:ss, or s.t below ten seconds
+     */
+    static String format(long millis) {
+        if (millis < 10_000) return String.format("%d.%d", millis / 1000, (millis % 1000) / 100);
+
+        long seconds = (millis + 999) / 1000;
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+}
@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Game save file (*.jcg)
+ * <p>
+ * Version 3 files have a fixed layout of 74 bytes:
+ * magic "JCG" and version(byte), 64 squares row by row(byte each), turnColor(byte), turnCount(int), state(byte)
+ * <p>
+ * A square holds 0 if empty, otherwise the piece type ordinal + 1 in bits 0-2, bit 3 set for Black and
+ * bit 4 set if the piece has moved. The state byte holds the castling rights and en passant file as Board.state.
+ * <p>
+ * Version 2 files have the same layout with an unused flags byte; their castling rights are taken from whether
+ * kings and rooks have moved. Version 1 files are Java serialization streams written by older versions. They are
+ * still read, but only the game classes are accepted from them.
+ */
+final class GameFile {
+    // File layout
+    static final int  VERSION    = 3;
+    static final int  BOARD_SIZE = 64;
+    static final int  STATE_SIZE = BOARD_SIZE + 1 + 4 + 1;
+    static final int  FILE_SIZE  = 4 + STATE_SIZE;
+    private static final byte[] MAGIC = {'J', 'C', 'G'};
+
+    // Piece codes
+    static final int CODE_TYPE_MASK = 0x07;
+    static final int CODE_BLACK     = 0x08;
+    static final int CODE_MOVED     = 0x10;
+
+    // Classes allowed in version 1 files
+    private static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config.createFilter(
+        "maxdepth=6;maxrefs=1024;maxbytes=65536;maxarray=16;"
+        + "Coordinates;Piece;Rook;Knight;Bishop;Queen;King;Pawn;ChessColorType;ChessPieceType;java.lang.Enum;"
+        // Move sets of knights and kings
+        + "java.util.CollSer;java.util.ImmutableCollections$Set12;java.util.ImmutableCollections$SetN;"
+        + "java.lang.Object;!*"
+    );
+
+    private GameFile() {
+    }
+
+    /**
+     * Write a game file
+     *
+     * @param gameFile File destination
+     * @param board    Board to save
+     */
+    static void write(File gameFile, Board board) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(FILE_SIZE);
+
+        buf.put(MAGIC);
+        buf.put((byte) VERSION);
+        writeState(buf, board);
+        buf.flip();
+
+        try (FileChannel channel = FileChannel.open(gameFile.toPath(), StandardOpenOption.WRITE,
+                                                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) channel.write(buf);
+        }
+    }
+
+    /**
+     * Read a game file of any version
+     *
+     * @param gameFile File source
+     * @return Board with the saved state
+     */
+    static Board read(File gameFile) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(FILE_SIZE);
+
+        try (FileChannel channel = FileChannel.open(gameFile.toPath(), StandardOpenOption.READ)) {
+            while (buf.hasRemaining() && channel.read(buf) >= 0) ;
+        }
+        buf.flip();
+
+        // Java serialization stream magic
+        if (buf.remaining() >= 2 && (buf.get(0) & 0xFF) == 0xAC && (buf.get(1) & 0xFF) == 0xED) {
+            return readLegacy(gameFile);
+        }
+
+        if (buf.remaining() < FILE_SIZE || buf.get() != MAGIC[0] || buf.get() != MAGIC[1] || buf.get() != MAGIC[2]) {
+            throw new IOException("Not a valid game file!");
+        }
+
+        int version = buf.get();
+        if (version != VERSION && version != 2) throw new IOException("Unsupported game file version " + version);
+
+        return readState(buf, version == VERSION);
+    }
+
+    /**
+     * Write the game state after the version: 64 squares, turnColor, turnCount and state
+     */
+    static void writeState(ByteBuffer buf, Board board) {
+        writeBoard(buf, board.pieces);
+        buf.put((byte) board.turnColor.ordinal());
+        buf.putInt(board.turnCount);
+        buf.put((byte) board.state);
+    }
+
+    /**
+     * Read the game state written by writeState
+     *
+     * @param hasState Whether the last byte is the state, false for the unused flags byte of older versions
+     */
+    static Board readState(ByteBuffer buf, boolean hasState) throws IOException {
+        Board board = new Board();
+        readBoard(buf, board.pieces);
+
+        int color = buf.get();
+        if (color != 0 && color != 1) throw new IOException("Not a valid game file!");
+        board.turnColor = ChessColorType.values()[color];
+        board.turnCount = buf.getInt();
+
+        int state = buf.get() & 0xFF;
+        board.state = hasState ? state : castlingOfUnmoved(board.pieces);
+        if (Board.enPassantFile(board.state) > 7) throw new IOException("Not a valid game file!");
+
+        return board;
+    }
+
+    /**
+     * Castling rights of files that recorded them only as kings and rooks that have not moved
+     */
+    static int castlingOfUnmoved(Map<Coordinates, Piece> pieces) {
+        int[][] rights = {
+            {7, 7, Board.WHITE_KINGSIDE}, {7, 0, Board.WHITE_QUEENSIDE},
+            {0, 7, Board.BLACK_KINGSIDE}, {0, 0, Board.BLACK_QUEENSIDE}
+        };
+        int castling = 0;
+
+        for (int[] right : rights) {
+            ChessColorType color = right[0] == 7 ? ChessColorType.White : ChessColorType.Black;
+            Piece          king  = pieces.get(Coordinates.of(right[0], 4));
+            Piece          rook  = pieces.get(Coordinates.of(right[0], right[1]));
+
+            if (king instanceof King && king.color == color && !king.hasMoved
+                && rook instanceof Rook && rook.color == color && !rook.hasMoved) {
+                castling |= right[2];
+            }
+        }
+        return castling;
+    }
+
+    /**
+     * Write 64 squares, row by row
+     */
+    static void writeBoard(ByteBuffer buf, Map<Coordinates, Piece> pieces) {
+        byte[] squares = new byte[BOARD_SIZE];
+
+        for (Piece piece : pieces.values()) {
+            squares[piece.pos.square] = encodePiece(piece);
+        }
+
+        buf.put(squares);
+    }
+
+    /**
+     * Read 64 squares, row by row, into a map of pieces
+     */
+    static void readBoard(ByteBuffer buf, HashMap<Coordinates, Piece> pieces) throws IOException {
+        for (int square = 0; square < BOARD_SIZE; square++) {
+            int code = buf.get();
+            if (code == 0) continue;
+
+            Coordinates pos   = Coordinates.of(square);
+            Piece       piece = decodePiece(pieces, code, pos);
+            if (piece == null) throw new IOException("Invalid piece code " + code + " at " + pos);
+
+            pieces.put(pos, piece);
+        }
+    }
+
+    /**
+     * @param piece Piece
+     * @return Square code of the piece
+     */
+    static byte encodePiece(Piece piece) {
+        int code = piece.type.ordinal() + 1;
+
+        if (piece.color == ChessColorType.Black) code |= CODE_BLACK;
+        if (piece.hasMoved) code |= CODE_MOVED;
+
+        return (byte) code;
+    }
+
+    /**
+     * @param pieces Map the piece belongs to
+     * @param code   Square code
+     * @param pos    Position of the piece
+     * @return New piece, null if the code is invalid
+     */
+    static Piece decodePiece(HashMap<Coordinates, Piece> pieces, int code, Coordinates pos) {
+        int type = (code & CODE_TYPE_MASK) - 1;
+        if (type < 0 || type >= ChessPieceType.values().length || (code & ~0x1F) != 0) return null;
+
+        ChessColorType color = (code & CODE_BLACK) != 0 ? ChessColorType.Black : ChessColorType.White;
+        Piece          piece = Piece.create(pieces, ChessPieceType.values()[type], color, pos);
+        piece.hasMoved = (code & CODE_MOVED) != 0;
+
+        return piece;
+    }
+
+    /**
+     * Read a version 1 file
+     * <p>
+     * Structure: magic(0x77), turnCount(int), turnColor(ChessColorType), number of pieces(int),
+     * pairs of coordinates and piece(Coordinates, Piece)
+     */
+    private static Board readLegacy(File gameFile) throws IOException {
+        try (FileInputStream fis = new FileInputStream(gameFile);
+             BufferedInputStream bis = new BufferedInputStream(fis);
+             ObjectInputStream ois = new ObjectInputStream(bis)) {
+
+            ois.setObjectInputFilter(LEGACY_FILTER);
+
+            if (bis.read() != 0x77) throw new IOException("Not a valid game file!");
+
+            Board board = new Board();
+            board.turnCount = ois.readInt();
+            board.turnColor = (ChessColorType) ois.readObject();
+
+            int piecesSize = ois.readInt();
+            if (piecesSize < 0 || piecesSize > BOARD_SIZE) throw new IOException("Not a valid game file!");
+
+            for (int i = 0; i < piecesSize; i++) {
+                Coordinates pos   = (Coordinates) ois.readObject();
+                Piece       piece = (Piece) ois.readObject();
+
+                if (!pos.isWithinRange()) throw new IOException("Not a valid game file!");
+
+                // Older versions saved kings with the wrong type
+                if (piece instanceof King) piece.type = ChessPieceType.King;
+
+                piece.pieces = board.pieces;
+                piece.pos    = pos;
+                board.pieces.put(pos, piece);
+            }
+            board.state = castlingOfUnmoved(board.pieces);
+
+            return board;
+
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Not a valid game file!", e);
+        }
+    }
+}
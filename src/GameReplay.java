@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Seekable replay of a game
+ * <p>
+ * Stores the full position every interval plies as a keyframe in the GameFile state layout, and the moves in
+ * between as packed move codes. Seeking to a ply restores the keyframe before it and applies at most
+ * interval - 1 moves, however long the game is.
+ */
+final class GameReplay {
+    // Plies between keyframes
+    static final int DEFAULT_INTERVAL = 16;
+
+    private final int    interval;
+    private       byte[] keyframes;  // STATE_SIZE bytes each
+    private       int[]  moves;
+    private       int    plies;
+
+    // Position after the last move, for appending
+    private final Board last;
+
+    /**
+     * @param start    Board at the start of the game; not modified
+     * @param moves    Moves of the game
+     * @param interval Plies between keyframes
+     */
+    GameReplay(Board start, List<Move> moves, int interval) {
+        if (interval < 1) throw new IllegalArgumentException("Invalid keyframe interval " + interval);
+
+        this.interval  = interval;
+        this.keyframes = new byte[GameFile.STATE_SIZE * (moves.size() / interval + 1)];
+        this.moves     = new int[Math.max(moves.size(), 16)];
+        this.last      = Board.copyOf(start);
+        this.last.plyCount = 0;
+
+        putKeyframe(0);
+        for (Move move : moves) append(move);
+    }
+
+    /**
+     * @return Number of plies in the game
+     */
+    int getPlies() {
+        return plies;
+    }
+
+    /**
+     * @return Plies between keyframes
+     */
+    int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Add the next move of the game
+     *
+     * @param move Move played in the position after the last move
+     */
+    void append(Move move) {
+        if (plies == moves.length) moves = Arrays.copyOf(moves, plies * 2);
+        moves[plies++] = move.code();
+
+        last.applyMove(move);
+        if (plies % interval == 0) putKeyframe(plies / interval);
+    }
+
+    /**
+     * @param ply Ply, starting from 0
+     * @return Move played in the position at ply
+     */
+    Move moveAt(int ply) {
+        if (ply < 0 || ply >= plies) throw new IndexOutOfBoundsException("No move at ply " + ply);
+
+        return Move.ofCode(moves[ply]);
+    }
+
+    /**
+     * Restore the position at a ply
+     *
+     * @param ply Number of moves played, 0 for the start position
+     * @return New board of the position
+     */
+    Board positionAt(int ply) {
+        if (ply < 0 || ply > plies) throw new IndexOutOfBoundsException("No ply " + ply);
+
+        int   keyframe = ply / interval;
+        Board board;
+        try {
+            board = GameFile.readState(ByteBuffer.wrap(keyframes, keyframe * GameFile.STATE_SIZE, GameFile.STATE_SIZE),
+                                       true);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt keyframe " + keyframe, e);
+        }
+        board.plyCount = keyframe * interval;
+
+        while (board.plyCount < ply) board.applyMove(Move.ofCode(moves[board.plyCount]));
+        if (ply == plies) board.kingCaught = last.kingCaught;
+
+        return board;
+    }
+
+    private void putKeyframe(int keyframe) {
+        int offset = keyframe * GameFile.STATE_SIZE;
+        if (offset + GameFile.STATE_SIZE > keyframes.length) keyframes = Arrays.copyOf(keyframes, keyframes.length * 2);
+
+        GameFile.writeState(ByteBuffer.wrap(keyframes, offset, GameFile.STATE_SIZE), last);
+    }
+}
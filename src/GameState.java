@@ -0,0 +1,127 @@
+import java.util.Arrays;
+
+/**
+ * Compact state of a running game, for servers holding many games
+ * <p>
+ * Where a Board holds 32 Piece objects in a HashMap, a game state is 64 bytes of Position piece codes and a few
+ * primitive fields, about 200 bytes with the hashes kept for repetitions. Moves are checked and made on a Position
+ * shared by all games of a thread and copied back. Icons are not stored; BoardView draws piece codes with
+ * glyphs from Piece.ICONS.
+ */
+final class GameState {
+    // Hashes allocated at first; the array grows when more plies pass without a capture or pawn move
+    private static final int INITIAL_HASHES = 8;
+
+    private static final GameState INITIAL = new GameState();
+
+    static {
+        INITIAL.copy(Position.of(Board.initial()));
+    }
+
+    // Piece code by square, as Position.squares
+    final byte[] squares = new byte[64];
+
+    long    unmovedPawns;   // Pawns that may still advance two squares
+    long    hash;           // Same as Zobrist.hash of the Board
+    int     plyCount;
+    int     halfmoveClock;  // Plies since the last capture or pawn move
+    int     state;          // Castling rights and en passant file, as Board.state
+    int     side;           // 0 for White, 1 for Black to move
+    boolean kingCaught;
+
+    // Hashes of the positions since the last capture or pawn move, the current one last
+    private long[] hashes;
+    private int    count;
+
+    /**
+     * @return A game state at the start position
+     */
+    static GameState initial() {
+        GameState game = new GameState();
+
+        game.copy(INITIAL);
+        game.hashes = new long[INITIAL_HASHES];
+        game.hashes[0] = INITIAL.hash;
+        game.count     = 1;
+
+        return game;
+    }
+
+    /**
+     * @return Color of the side to move
+     */
+    ChessColorType turnColor() {
+        return side == 0 ? ChessColorType.White : ChessColorType.Black;
+    }
+
+    /**
+     * Returns whether the side to move may make a move, as in Board.isLegalMove()
+     *
+     * @param move     Move.code()
+     * @param position Position to check the move on, which then holds this game
+     * @param moves    Buffer of Position.MAX_MOVES moves
+     * @return Validity of the move
+     */
+    boolean isLegalMove(int move, Position position, int[] moves) {
+        position.set(this);
+        if (kingCaught) return false;
+
+        int count = position.generate(moves);
+
+        for (int i = 0; i < count; i++) {
+            if (moves[i] == move) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take over the position after a move made on it
+     *
+     * @param position Position set from this game, with one move made
+     */
+    void moved(Position position) {
+        copy(position);
+        plyCount++;
+
+        if (halfmoveClock == 0) count = 0;
+        if (count == hashes.length) hashes = Arrays.copyOf(hashes, count * 2);
+        hashes[count++] = hash;
+    }
+
+    /**
+     * @return Rule that draws the game in the current position, null if none, as PositionHistory.drawReason()
+     */
+    String drawReason() {
+        if (halfmoveClock >= PositionHistory.FIFTY_MOVES) return "fifty-move rule";
+
+        // Only positions with the same side to move
+        int repetitions = 0;
+        for (int back = 4; back < count; back += 2) {
+            if (hashes[count - 1 - back] == hash) repetitions++;
+        }
+        return repetitions >= 2 ? "threefold repetition" : null;
+    }
+
+    private void copy(Position position) {
+        for (int square = 0; square < 64; square++) squares[square] = (byte) position.squares[square];
+
+        unmovedPawns  = position.unmovedPawns;
+        hash          = position.hash;
+        halfmoveClock = position.halfmoveClock;
+        state         = position.state;
+        side          = position.side;
+        kingCaught    = position.kingCaught;
+    }
+
+    private void copy(GameState other) {
+        System.arraycopy(other.squares, 0, squares, 0, 64);
+
+        unmovedPawns  = other.unmovedPawns;
+        hash          = other.hash;
+        plyCount      = other.plyCount;
+        halfmoveClock = other.halfmoveClock;
+        state         = other.state;
+        side          = other.side;
+        kingCaught    = other.kingCaught;
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Load generator for online games
+ * <p>
+ * Starts N bot clients that join games over loopback and reports connection setup time,
+ * move round-trip latency percentiles and throughput.
+ * <p>
+ * Usage: java LoadGenerator [--clients N] [--host HOST] [--port PORT] [--rate MOVES_PER_SEC]
+ * [--duration SECONDS] [--plies MAX_PLIES] [--script FILE] [--time-control MINUTES+INCREMENT]
+ * <p>
+ * Without --port an embedded ChessServer is started on a free port, using the given time control.
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int          clients  = 100;
+        String       host     = "localhost";
+        int          port     = -1;
+        double       rate     = 2;
+        int          duration = 30;
+        int          plies    = 200;
+        List<String> script   = null;
+
+        GameClock.TimeControl timeControl = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+
+            switch (args[i]) {
+                case "--clients":
+                    clients = Integer.parseInt(value);
+                    break;
+                case "--host":
+                    host = value;
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "--plies":
+                    plies = Integer.parseInt(value);
+                    break;
+                case "--script":
+                    script = Files.readAllLines(Path.of(value));
+                    script.removeIf(String::isBlank);
+                    if (script.isEmpty()) script = null;
+                    break;
+                case "--time-control":
+                    timeControl = GameClock.TimeControl.parse(value);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        // Embedded server if no target given
+        ChessServer server = null;
+        if (port < 0) {
+            server = new ChessServer(0, timeControl);
+            port   = server.getPort();
+            server.registerMetrics();
+            new Thread(server, "ChessServer").start();
+        }
+
+        long thinkMillis = rate > 0 ? (long) (1000 / rate) : 0;
+        long start       = System.nanoTime();
+        long deadline    = start + duration * 1_000_000_000L;
+
+        System.out.println("Running " + clients + " clients against " + host + ":" + port + " for " + duration + "s");
+
+        List<BotClient> bots    = new ArrayList<>(clients);
+        List<Thread>    threads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            BotClient bot    = new BotClient(host, port, thinkMillis, plies, script, deadline, i);
+            Thread    thread = new Thread(bot, "Bot-" + i);
+            thread.setDaemon(true);
+            bots.add(bot);
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) thread.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        if (server != null) {
+            System.out.println("Server: " + server.getRelayedMoves() + " moves relayed, "
+                               + server.getRejectedMoves() + " rejected");
+            server.stop();
+        }
+
+        report(bots, elapsed, thinkMillis);
+    }
+
+    /**
+     * Print aggregated results of all bots
+     */
+    private static void report(List<BotClient> bots, double elapsed, long thinkMillis) {
+        BotClient.Samples connect   = new BotClient.Samples();
+        BotClient.Samples roundTrip = new BotClient.Samples();
+        long              moves     = 0;
+        int               started   = 0;
+        int               completed = 0;
+        int               failures  = 0;
+        int               flagged   = 0;
+
+        for (BotClient bot : bots) {
+            connect.addAll(bot.connectNanos);
+            roundTrip.addAll(bot.roundTripNanos);
+            moves     += bot.movesSent;
+            started   += bot.gamesStarted;
+            completed += bot.gamesCompleted;
+            failures  += bot.failures;
+            flagged   += bot.gamesFlagged;
+        }
+
+        System.out.printf("Games: %d started, %d completed, %d lost on time, %d failed connections%n",
+                          started, completed, flagged, failures);
+        printPercentiles("Connection setup", connect);
+        printPercentiles("Move round-trip (incl. " + thinkMillis + " ms opponent delay)", roundTrip);
+        System.out.printf("Throughput: %d moves in %.1f s = %.1f moves/s%n", moves, elapsed, moves / elapsed);
+    }
+
+    private static void printPercentiles(String name, BotClient.Samples samples) {
+        System.out.printf("%s (ms, n=%d): p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                          name, samples.size(),
+                          samples.percentile(50) / 1e6, samples.percentile(90) / 1e6,
+                          samples.percentile(99) / 1e6, samples.percentile(99.9) / 1e6,
+                          samples.percentile(100) / 1e6);
+    }
+}
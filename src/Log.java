@@ -0,0 +1,315 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger
+ * <p>
+ * Callers copy an entry into a preallocated ring buffer and return; a background thread formats the entries and
+ * writes them to rotating files in ~/.online-chess/logs, echoing warnings and errors to the console. A call below the
+ * level threshold returns before touching the buffer, and the overloads take a literal message with one primitive or
+ * existing object, so disabled calls allocate nothing. When the buffer is full, entries are dropped and counted
+ * rather than blocking a move or a repaint.
+ * <p>
+ * System properties: chess.log.level (DEBUG, INFO, WARN, ERROR or OFF; default INFO), chess.log.dir.
+ */
+final class Log {
+    // Levels
+    static final int DEBUG = 0;
+    static final int INFO  = 1;
+    static final int WARN  = 2;
+    static final int ERROR = 3;
+    static final int OFF   = 4;
+
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR", "OFF"};
+
+    // Ring buffer size, a power of two
+    private static final int CAPACITY = 8192;
+    private static final int MASK     = CAPACITY - 1;
+
+    // Rotation: chess.log is moved to chess.1.log at MAX_FILE_BYTES, keeping FILE_COUNT files in all
+    private static final long MAX_FILE_BYTES = 1 << 20;
+    private static final int  FILE_COUNT     = 5;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    /**
+     * Slot of the ring buffer, overwritten in place
+     */
+    private static final class Entry {
+        volatile long sequence = -1;  // Sequence of the entry, published last
+        long          timeMillis;
+        int           level;
+        String        thread;
+        String        message;
+        boolean       hasValue;
+        long          value;
+        Object        object;
+        Throwable     error;
+    }
+
+    private static final Entry[]    ring     = new Entry[CAPACITY];
+    private static final AtomicLong claimed  = new AtomicLong();
+    private static final LongAdder  dropped  = new LongAdder();
+    private static volatile long    consumed = 0;
+    private static volatile int     threshold;
+    private static volatile boolean waiting  = false;
+
+    private static final Thread     writerThread;
+    private static       Path       dir;
+    private static       String     baseName = "chess";
+    private static       Writer     out;
+    private static       long       fileBytes;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) ring[i] = new Entry();
+
+        threshold = parseLevel(System.getProperty("chess.log.level", "INFO"));
+        dir       = Paths.get(System.getProperty("chess.log.dir",
+                                                 Paths.get(System.getProperty("user.home"), ".online-chess", "logs")
+                                                      .toString()));
+
+        writerThread = new Thread(Log::runWriter, "LogWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        // Write what is left on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "LogFlush"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * @param name Level name such as "WARN"
+     * @return Level, INFO if unknown
+     */
+    static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name.trim())) return i;
+        }
+        return INFO;
+    }
+
+    static void setLevel(int level) {
+        threshold = level;
+    }
+
+    static boolean isEnabled(int level) {
+        return level >= threshold;
+    }
+
+    /**
+     * Name the log files, e.g. "server" for server.log; must be called before the first entry is logged
+     */
+    static synchronized void setName(String name) {
+        baseName = name;
+    }
+
+    static void debug(String message) {
+        if (DEBUG >= threshold) append(DEBUG, message, false, 0, null, null);
+    }
+
+    static void debug(String message, long value) {
+        if (DEBUG >= threshold) append(DEBUG, message, true, value, null, null);
+    }
+
+    static void debug(String message, Object object) {
+        if (DEBUG >= threshold) append(DEBUG, message, false, 0, object, null);
+    }
+
+    static void info(String message) {
+        if (INFO >= threshold) append(INFO, message, false, 0, null, null);
+    }
+
+    static void info(String message, long value) {
+        if (INFO >= threshold) append(INFO, message, true, value, null, null);
+    }
+
+    static void info(String message, Object object) {
+        if (INFO >= threshold) append(INFO, message, false, 0, object, null);
+    }
+
+    static void warn(String message) {
+        if (WARN >= threshold) append(WARN, message, false, 0, null, null);
+    }
+
+    static void warn(String message, Throwable error) {
+        if (WARN >= threshold) append(WARN, message, false, 0, null, error);
+    }
+
+    static void error(String message, Throwable error) {
+        if (ERROR >= threshold) append(ERROR, message, false, 0, null, error);
+    }
+
+    /**
+     * Copy an entry into the ring buffer, or count it as dropped if the buffer is full
+     */
+    private static void append(int level, String message, boolean hasValue, long value, Object object, Throwable error) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ring[(int) (sequence & MASK)];
+        entry.timeMillis = System.currentTimeMillis();
+        entry.level      = level;
+        entry.thread     = Thread.currentThread().getName();
+        entry.message    = message;
+        entry.hasValue   = hasValue;
+        entry.value      = value;
+        entry.object     = object;
+        entry.error      = error;
+        entry.sequence   = sequence;
+
+        // Errors are written at once, everything else within the writer's poll interval
+        if (level >= WARN && waiting) LockSupport.unpark(writerThread);
+    }
+
+    private static void runWriter() {
+        while (true) {
+            waiting = true;
+            if (claimed.get() == consumed) LockSupport.parkNanos(50_000_000L);
+            waiting = false;
+
+            flush();
+        }
+    }
+
+    /**
+     * Write all published entries
+     */
+    static synchronized void flush() {
+        StringBuilder sb    = new StringBuilder(256);
+        boolean       wrote = false;
+
+        long missed = dropped.sumThenReset();
+        if (missed > 0) {
+            sb.append(TIME_FORMAT.format(Instant.now())).append(" WARN  [LogWriter] ").append(missed)
+              .append(" log entries dropped, buffer full\n");
+            write(sb, WARN);
+            wrote = true;
+        }
+
+        while (true) {
+            long  sequence = consumed;
+            Entry entry    = ring[(int) (sequence & MASK)];
+            if (entry.sequence != sequence) break;
+
+            format(entry, sb);
+            int level = entry.level;
+
+            // Release the slot
+            entry.thread  = null;
+            entry.message = null;
+            entry.object  = null;
+            entry.error   = null;
+            consumed      = sequence + 1;
+
+            write(sb, level);
+            wrote = true;
+        }
+
+        if (wrote && out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                closeFile();
+            }
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder sb) {
+        sb.setLength(0);
+        sb.append(TIME_FORMAT.format(Instant.ofEpochMilli(entry.timeMillis))).append(' ');
+        sb.append(LEVEL_NAMES[entry.level]);
+        for (int i = LEVEL_NAMES[entry.level].length(); i < 5; i++) sb.append(' ');
+        sb.append(" [").append(entry.thread).append("] ").append(entry.message);
+
+        if (entry.hasValue) sb.append(' ').append(entry.value);
+        if (entry.object != null) sb.append(' ').append(entry.object);
+        if (entry.error != null) {
+            StringWriter trace = new StringWriter();
+            entry.error.printStackTrace(new PrintWriter(trace));
+            sb.append(": ").append(trace);
+        } else {
+            sb.append('\n');
+        }
+    }
+
+    /**
+     * Write a formatted entry to the log file, and to the console if it is a warning or error
+     */
+    private static void write(StringBuilder sb, int level) {
+        if (level >= WARN) System.err.print(sb);
+
+        try {
+            if (out == null) openFile();
+            if (out == null) return;
+
+            if (fileBytes >= MAX_FILE_BYTES) {
+                closeFile();
+                rotate();
+                openFile();
+            }
+
+            out.append(sb);
+            fileBytes += sb.length();
+
+        } catch (IOException e) {
+            // Console only until the next entry retries
+            closeFile();
+        }
+    }
+
+    private static void openFile() throws IOException {
+        Files.createDirectories(dir);
+        Path file = dir.resolve(baseName + ".log");
+
+        out       = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                                            StandardOpenOption.APPEND);
+        fileBytes = Files.size(file);
+    }
+
+    private static void closeFile() {
+        if (out == null) return;
+
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        out = null;
+    }
+
+    /**
+     * Shift name.log to name.1.log, name.1.log to name.2.log and so on, deleting the oldest
+     */
+    private static void rotate() throws IOException {
+        Files.deleteIfExists(dir.resolve(baseName + "." + (FILE_COUNT - 1) + ".log"));
+
+        for (int i = FILE_COUNT - 2; i >= 0; i--) {
+            Path from = dir.resolve(i == 0 ? baseName + ".log" : baseName + "." + i + ".log");
+            if (Files.exists(from)) {
+                Files.move(from, dir.resolve(baseName + "." + (i + 1) + ".log"), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of counters, gauges, rates and histograms, readable over JMX
+ * <p>
+ * Counters and histogram buckets are LongAdders, so recording from many threads costs a few nanoseconds and
+ * never blocks. Histograms have fixed power-of-two buckets. Registered under "OnlineChess:type=...", every
+ * metric shows up in jconsole as attributes of one MBean.
+ */
+final class Metrics implements DynamicMBean {
+
+    /**
+     * Count of events
+     */
+    static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        void increment() {
+            adder.increment();
+        }
+
+        void add(long amount) {
+            adder.add(amount);
+        }
+
+        long get() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * Distribution of values in power-of-two buckets
+     * <p>
+     * Bucket 0 counts zeros and negative values, bucket i values from 2^(i-1) to 2^i - 1. Percentiles are reported
+     * as the upper end of their bucket, so they are at most twice the true value.
+     */
+    static final class Histogram {
+        private final LongAdder[]     buckets = new LongAdder[64];
+        private final LongAdder       sum     = new LongAdder();
+        private final LongAccumulator max     = new LongAccumulator(Long::max, 0);
+        private final long            nanosPerUnit;
+
+        /**
+         * @param unit "ns", "us" or "ms" for times, anything else for other values
+         */
+        Histogram(String unit) {
+            this.nanosPerUnit = unit.equals("us") ? 1000 : unit.equals("ms") ? 1_000_000 : 1;
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long value) {
+            if (value < 0) value = 0;
+
+            buckets[Math.min(64 - Long.numberOfLeadingZeros(value), 63)].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Record the time since start
+         *
+         * @param startNanos Result of System.nanoTime() at the start
+         */
+        void recordSince(long startNanos) {
+            record((System.nanoTime() - startNanos) / nanosPerUnit);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) count += bucket.sum();
+            return count;
+        }
+
+        double mean() {
+            long count = count();
+            return count > 0 ? (double) sum.sum() / count : 0;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * @param fraction Fraction of values at or below the result, 0 to 1
+         * @return Upper end of the bucket holding the percentile, 0 if empty
+         */
+        long percentile(double fraction) {
+            long[] counts = new long[buckets.length];
+            long   total  = 0;
+            for (int i = 0; i < buckets.length; i++) total += counts[i] = buckets[i].sum();
+            if (total == 0) return 0;
+
+            long rank = (long) Math.ceil(fraction * total), seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(rank, 1)) return Math.min(i == 0 ? 0 : (1L << i) - 1, max());
+            }
+            return max();
+        }
+    }
+
+    /**
+     * Per-second rate of a counter, measured between reads at least a second apart
+     */
+    static final class Rate {
+        private final Counter counter;
+        private       long    lastNanos = System.nanoTime();
+        private       long    lastCount;
+        private       double  rate;
+
+        Rate(Counter counter) {
+            this.counter   = counter;
+            this.lastCount = counter.get();
+        }
+
+        synchronized double get() {
+            long now = System.nanoTime();
+
+            if (now - lastNanos >= 1_000_000_000L) {
+                long count = counter.get();
+                rate      = (count - lastCount) * 1e9 / (now - lastNanos);
+                lastCount = count;
+                lastNanos = now;
+            }
+            return rate;
+        }
+    }
+
+    // Histogram attributes, as suffix and description
+    private static final String[][] HISTOGRAM_FIELDS = {
+        {"Count", "Number of values"}, {"Mean", "Mean"}, {"P50", "Median"}, {"P90", "90th percentile"},
+        {"P99", "99th percentile"}, {"Max", "Maximum"}
+    };
+
+    // Metrics and descriptions by name, sorted for stable display
+    private final Map<String, Object> metrics      = new ConcurrentSkipListMap<>();
+    private final Map<String, String> descriptions = new ConcurrentSkipListMap<>();
+
+    Counter counter(String name, String description) {
+        return add(name, description, new Counter());
+    }
+
+    Histogram histogram(String name, String unit, String description) {
+        return add(name, description + " (" + unit + ")", new Histogram(unit));
+    }
+
+    Rate rate(String name, Counter counter, String description) {
+        return add(name, description, new Rate(counter));
+    }
+
+    void gauge(String name, String description, LongSupplier supplier) {
+        add(name, description, supplier);
+    }
+
+    private <T> T add(String name, String description, T metric) {
+        if (metrics.putIfAbsent(name, metric) != null) throw new IllegalArgumentException("Duplicate metric " + name);
+        descriptions.put(name, description);
+        return metric;
+    }
+
+    /**
+     * Register with the platform MBean server, replacing an earlier registration of the same type
+     *
+     * @param type Value of the type key, such as "Server"
+     * @return "" if successful, error message if unsuccessful
+     */
+    String register(String type) {
+        try {
+            ObjectName name = new ObjectName("OnlineChess:type=" + type);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            return e.getMessage();
+        }
+
+        return "";
+    }
+
+    // DynamicMBean
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object metric = metrics.get(attribute);
+
+        if (metric instanceof Counter) return ((Counter) metric).get();
+        if (metric instanceof Rate) return ((Rate) metric).get();
+        if (metric instanceof LongSupplier) return ((LongSupplier) metric).getAsLong();
+
+        for (String[] field : HISTOGRAM_FIELDS) {
+            if (!attribute.endsWith(field[0])) continue;
+
+            Object histogram = metrics.get(attribute.substring(0, attribute.length() - field[0].length()));
+            if (histogram instanceof Histogram) return histogramField((Histogram) histogram, field[0]);
+        }
+
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private static Object histogramField(Histogram histogram, String field) {
+        switch (field) {
+            case "Count":
+                return histogram.count();
+            case "Mean":
+                return histogram.mean();
+            case "P50":
+                return histogram.percentile(0.5);
+            case "P90":
+                return histogram.percentile(0.9);
+            case "P99":
+                return histogram.percentile(0.99);
+            default:
+                return histogram.max();
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException ignored) {
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+
+        metrics.forEach((name, metric) -> {
+            String description = descriptions.get(name);
+
+            if (metric instanceof Histogram) {
+                for (String[] field : HISTOGRAM_FIELDS) {
+                    String type = field[0].equals("Mean") ? "double" : "long";
+                    attributes.add(new MBeanAttributeInfo(name + field[0], type, description + ", " + field[1],
+                                                          true, false, false));
+                }
+            } else {
+                String type = metric instanceof Rate ? "double" : "long";
+                attributes.add(new MBeanAttributeInfo(name, type, description, true, false, false));
+            }
+        });
+
+        return new MBeanInfo(Metrics.class.getName(), "Online Chess metrics",
+                             attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * A move from src to dest, with the piece type a pawn promotes to
+ */
+final class Move {
+    final Coordinates    src;
+    final Coordinates    dest;
+    final ChessPieceType promotion;  // null if no promotion
+
+    Move(Coordinates src, Coordinates dest, ChessPieceType promotion) {
+        this.src       = src;
+        this.dest      = dest;
+        this.promotion = promotion;
+    }
+
+    Move(Coordinates src, Coordinates dest) {
+        this(src, dest, null);
+    }
+
+    /**
+     * @return Promotion code as sent on the wire
+     */
+    int promotionCode() {
+        return ChessProtocol.promotionCode(promotion);
+    }
+
+    /**
+     * @return Move as src square(6 bits), dest square(6 bits), promotion code(3 bits); never 0
+     */
+    int code() {
+        return src.square << 9 | dest.square << 3 | promotionCode();
+    }
+
+    /**
+     * @param code Move as returned by code()
+     * @return Move
+     */
+    static Move ofCode(int code) {
+        int src = code >>> 9 & 63, dest = code >>> 3 & 63;
+
+        return new Move(Coordinates.of(src), Coordinates.of(dest),
+                        ChessProtocol.promotionType(code & 7));
+    }
+
+    /**
+     * Parse a move in coordinate notation such as "e2e4" or "e7e8q"
+     *
+     * @param text Move
+     * @return Move, null if invalid
+     */
+    static Move parse(String text) {
+        if (text == null || text.length() < 4 || text.length() > 5) return null;
+
+        Coordinates src  = Coordinates.parse(text.substring(0, 2));
+        Coordinates dest = Coordinates.parse(text.substring(2, 4));
+        if (src == null || dest == null) return null;
+
+        ChessPieceType promotion = null;
+        if (text.length() == 5) {
+            switch (text.charAt(4)) {
+                case 'q':
+                    promotion = ChessPieceType.Queen;
+                    break;
+                case 'r':
+                    promotion = ChessPieceType.Rook;
+                    break;
+                case 'b':
+                    promotion = ChessPieceType.Bishop;
+                    break;
+                case 'n':
+                    promotion = ChessPieceType.Knight;
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        return new Move(src, dest, promotion);
+    }
+
+    /**
+     * @return Move in coordinate notation
+     */
+    public String toString() {
+        String result = src.toString() + dest;
+
+        if (promotion != null) result += Character.toLowerCase(San.pieceLetter(promotion));
+
+        return result;
+    }
+
+    public int hashCode() {
+        return (src.hashCode() << 8 | dest.hashCode()) * 7 + (promotion == null ? 0 : promotion.ordinal() + 1);
+    }
+
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Move)) return false;
+
+        Move other = (Move) obj;
+        return src.equals(other.src) && dest.equals(other.dest) && promotion == other.promotion;
+    }
+}
@@ -0,0 +1,348 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of the moves of one game (*.jcj)
+ * <p>
+ * The file starts with the state of the start position in the GameFile layout:
+ * magic "JCJ" and version(byte), followed by the state as written by GameFile.writeState. Version 1 journals
+ * have the unused flags byte of version 2 game files in place of the state.
+ * Every move appends one record of 8 bytes:
+ * src square(byte), dest square(byte), promotion code(byte), record type(byte), CRC32C(int)
+ * <p>
+ * Squares are row * 8 + col. The checksum covers the ply number and the first 4 bytes of the record,
+ * so a torn or stale record is detected on recovery and the journal is cut off before it.
+ * <p>
+ * Appends only write to the OS. A Syncer forces the files of all journals with unsynced records to disk
+ * once per interval, so any number of moves in that interval cost one fsync per game.
+ */
+final class MoveJournal implements Closeable {
+
+    /**
+     * Group commit of journals
+     * <p>
+     * One daemon thread forces every journal that has been appended to since the last sync.
+     */
+    static final class Syncer {
+        private final long                               intervalNanos;
+        private final ConcurrentLinkedQueue<MoveJournal> dirty = new ConcurrentLinkedQueue<>();
+
+        // Shared syncer, interval from the system property chess.journal.syncMillis
+        private static Syncer shared;
+
+        /**
+         * @param interval Time between syncs, 0 to force on every append
+         * @param unit     Unit of interval
+         * @param name     Name of the sync thread
+         */
+        Syncer(long interval, TimeUnit unit, String name) {
+            this.intervalNanos = unit.toNanos(interval);
+
+            if (intervalNanos > 0) {
+                Thread worker = new Thread(this::run, name);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+
+        /**
+         * @return Syncer shared by all journals of this process
+         */
+        static synchronized Syncer shared() {
+            if (shared == null) {
+                shared = new Syncer(Long.getLong("chess.journal.syncMillis", 200), TimeUnit.MILLISECONDS,
+                                    "JournalSyncer");
+            }
+            return shared;
+        }
+
+        private void run() {
+            while (true) {
+                LockSupport.parkNanos(intervalNanos);
+
+                MoveJournal journal;
+                while ((journal = dirty.poll()) != null) journal.sync();
+            }
+        }
+    }
+
+    // File layout
+    static final int    VERSION     = 2;
+    static final int    HEADER_SIZE = 4 + GameFile.STATE_SIZE;
+    static final int    RECORD_SIZE = 8;
+    static final byte   RECORD_MOVE = 1;
+    static final String EXTENSION   = ".jcj";
+    private static final byte[] MAGIC = {'J', 'C', 'J'};
+
+    private final Path          path;
+    private final FileChannel   channel;
+    private final Syncer        syncer;
+    private final ByteBuffer    record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32C        crc    = new CRC32C();
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+
+    // Number of moves in the journal
+    private int plies;
+
+    private MoveJournal(Path path, FileChannel channel, Syncer syncer, int plies) {
+        this.path    = path;
+        this.channel = channel;
+        this.syncer  = syncer;
+        this.plies   = plies;
+    }
+
+    /**
+     * Create a journal, replacing any file at path
+     *
+     * @param path   File of the journal
+     * @param start  Start position
+     * @param syncer Syncer of the journal
+     * @return Journal open for appending
+     */
+    static MoveJournal create(Path path, Board start, Syncer syncer) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.put((byte) VERSION);
+        GameFile.writeState(header, start);
+        header.flip();
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (header.hasRemaining()) channel.write(header);
+            channel.force(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return new MoveJournal(path, channel, syncer, 0);
+    }
+
+    /**
+     * Reopen a recovered journal to append further moves
+     * <p>
+     * Records after the last valid one are cut off.
+     *
+     * @param recovery Result of recover
+     * @param syncer   Syncer of the journal
+     * @return Journal open for appending
+     */
+    static MoveJournal reopen(Recovery recovery, Syncer syncer) throws IOException {
+        FileChannel channel = FileChannel.open(recovery.path, StandardOpenOption.WRITE);
+        int         plies   = recovery.moves.size();
+
+        try {
+            channel.truncate(HEADER_SIZE + (long) plies * RECORD_SIZE);
+            channel.position(HEADER_SIZE + (long) plies * RECORD_SIZE);
+            channel.force(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return new MoveJournal(recovery.path, channel, syncer, plies);
+    }
+
+    /**
+     * @return File of the journal
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Append a move
+     * <p>
+     * The record reaches the disk with the next sync of the Syncer.
+     *
+     * @param move Move
+     */
+    void append(Move move) throws IOException {
+        record.clear();
+        record.put((byte) move.src.square);
+        record.put((byte) move.dest.square);
+        record.put((byte) move.promotionCode());
+        record.put(RECORD_MOVE);
+        record.putInt(checksum(crc, record.array(), plies));
+        record.flip();
+
+        while (record.hasRemaining()) channel.write(record);
+        plies++;
+
+        if (syncer.intervalNanos == 0) {
+            sync();
+        } else if (queued.compareAndSet(false, true)) {
+            syncer.dirty.add(this);
+        }
+    }
+
+    /**
+     * Force appended records to disk
+     */
+    void sync() {
+        queued.set(false);
+
+        PersistenceEvent event = new PersistenceEvent();
+        event.begin();
+        event.operation = "journal sync";
+
+        try {
+            channel.force(false);
+            event.success = true;
+            if (event.shouldCommit()) event.bytes = channel.position();
+        } catch (IOException e) {
+            // Closed journal, nothing left to sync
+        }
+
+        event.commit();
+    }
+
+    /**
+     * Sync and close the journal
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) return;
+
+        sync();
+        channel.close();
+    }
+
+    /**
+     * Close and delete the journal, when its game has ended
+     */
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Result of replaying a journal
+     */
+    static final class Recovery {
+        final Path       path;
+        final Board      start;
+        final Board      board;
+        final List<Move> moves;
+        // Whether bytes after the last valid record were found
+        final boolean    truncated;
+
+        private Recovery(Path path, Board start, Board board, List<Move> moves, boolean truncated) {
+            this.path      = path;
+            this.start     = start;
+            this.board     = board;
+            this.moves     = moves;
+            this.truncated = truncated;
+        }
+    }
+
+    /**
+     * Replay a journal
+     * <p>
+     * Moves are replayed up to the first record that is incomplete, fails its checksum or is not a valid move.
+     *
+     * @param path File of the journal
+     * @return Start position, position after the last valid move and the valid moves
+     */
+    static Recovery recover(Path path) throws IOException {
+        ByteBuffer buf;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) throw new IOException("Not a valid journal!");
+
+            buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && channel.read(buf) >= 0) ;
+            buf.flip();
+        }
+
+        if (buf.get() != MAGIC[0] || buf.get() != MAGIC[1] || buf.get() != MAGIC[2]) {
+            throw new IOException("Not a valid journal!");
+        }
+
+        int version = buf.get();
+        if (version != VERSION && version != 1) throw new IOException("Unsupported journal version " + version);
+
+        Board      start = GameFile.readState(buf, version == VERSION);
+        Board      board = Board.copyOf(start);
+        List<Move> moves = new ArrayList<>((buf.remaining() / RECORD_SIZE) + 1);
+        byte[]     data  = new byte[RECORD_SIZE];
+        CRC32C     crc   = new CRC32C();
+
+        while (buf.remaining() >= RECORD_SIZE) {
+            buf.get(data);
+
+            int stored = (data[4] & 0xFF) << 24 | (data[5] & 0xFF) << 16 | (data[6] & 0xFF) << 8 | (data[7] & 0xFF);
+            if (data[3] != RECORD_MOVE || stored != checksum(crc, data, moves.size())) {
+                buf.position(buf.position() - RECORD_SIZE);
+                break;
+            }
+
+            Move move = decodeMove(data);
+            if (move == null || !board.isLegalMove(move.src, move.dest)
+                || board.isPromotion(move.src, move.dest) != (move.promotion != null)) {
+                buf.position(buf.position() - RECORD_SIZE);
+                break;
+            }
+
+            board.applyMove(move);
+            moves.add(move);
+        }
+
+        return new Recovery(path, start, board, moves, buf.hasRemaining());
+    }
+
+    /**
+     * @param dir Directory of journals
+     * @return Journal files in dir, oldest first
+     */
+    static List<Path> list(Path dir) throws IOException {
+        List<Path> result = new ArrayList<>();
+        if (!Files.isDirectory(dir)) return result;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+            for (Path file : files) result.add(file);
+        }
+        result.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+
+        return result;
+    }
+
+    private static Move decodeMove(byte[] data) {
+        int src = data[0], dest = data[1];
+        if (src < 0 || src >= 64 || dest < 0 || dest >= 64) return null;
+        if (data[2] < ChessProtocol.PROMOTE_NONE || data[2] > ChessProtocol.PROMOTE_KNIGHT) return null;
+
+        return new Move(Coordinates.of(src), Coordinates.of(dest),
+                        ChessProtocol.promotionType(data[2]));
+    }
+
+    /**
+     * @return CRC32C of the ply number and the first 4 bytes of a record
+     */
+    private static int checksum(CRC32C crc, byte[] data, int ply) {
+        crc.reset();
+        crc.update(ply >>> 24);
+        crc.update(ply >>> 16);
+        crc.update(ply >>> 8);
+        crc.update(ply);
+        crc.update(data, 0, 4);
+
+        return (int) crc.getValue();
+    }
+}
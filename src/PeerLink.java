@@ -0,0 +1,239 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Connection to the other side of an online game, a peer or the server
+ * <p>
+ * A reader thread takes every frame as it arrives: pings are answered at once, pongs update the latency estimates,
+ * and move and flag frames are queued for the game. The reader also sends a ping every PING_MILLIS.
+ * <p>
+ * Round trip and jitter are smoothed as in TCP's retransmission timer (RFC 6298). The clock offset of the other
+ * side is taken from the fastest of the last few pings, whose answer was delayed least by queueing.
+ */
+class PeerLink {
+    // Interval between pings
+    static final int PING_MILLIS = 2000;
+
+    // Number of pings the clock offset is chosen from
+    private static final int OFFSET_SAMPLES = 8;
+
+    private final Socket                socket;
+    private final InputStream           is;
+    private final OutputStream          os;
+    private final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+    private final Metrics.Histogram     roundTrips;
+
+    // Outstanding ping, sequence 0 if none
+    private int  pingSequence;
+    private long pingNanos;
+    private long pingWallMillis;
+    private int  lastSequence;
+    private long lastPingNanos;
+
+    // Estimates in milliseconds, NaN until the first pong
+    private       double   roundTrip        = Double.NaN;
+    private       double   jitter           = Double.NaN;
+    private final double[] sampleRoundTrips = new double[OFFSET_SAMPLES];
+    private final double[] sampleOffsets    = new double[OFFSET_SAMPLES];
+    private       int      sampleCount;
+
+    /**
+     * @param socket     Connected socket
+     * @param roundTrips Histogram to record round trips in, in microseconds
+     */
+    PeerLink(Socket socket, Metrics.Histogram roundTrips) throws IOException {
+        this.socket     = socket;
+        this.is         = socket.getInputStream();
+        this.os         = socket.getOutputStream();
+        this.roundTrips = roundTrips;
+
+        socket.setTcpNoDelay(true);
+    }
+
+    /**
+     * Read the handshake of the host; must be called before start
+     *
+     * @return Handshake
+     */
+    byte[] readHandshake() throws IOException {
+        byte[] handshake = is.readNBytes(ChessProtocol.HANDSHAKE_SIZE);
+        if (handshake.length < ChessProtocol.HANDSHAKE_SIZE) throw new EOFException("Connection closed by host");
+
+        return handshake;
+    }
+
+    /**
+     * Start reading frames and pinging
+     */
+    void start() {
+        Thread reader = new Thread(this::run, "PeerReader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send a frame or handshake
+     */
+    void send(byte[] data) throws IOException {
+        synchronized (os) {
+            os.write(data);
+        }
+    }
+
+    /**
+     * Wait for the next move or flag frame
+     *
+     * @return Frame, empty if the connection was closed
+     */
+    byte[] receive() throws InterruptedException {
+        return frames.take();
+    }
+
+    void close() throws IOException {
+        socket.close();
+    }
+
+    private void run() {
+        byte[] frame = new byte[ChessProtocol.MOVE_FRAME_SIZE];
+        int    read  = 0;
+
+        try {
+            socket.setSoTimeout(PING_MILLIS);
+            ping();
+
+            while (true) {
+                try {
+                    int n = is.read(frame, read, frame.length - read);
+                    if (n < 0) break;
+                    read += n;
+                } catch (SocketTimeoutException e) {
+                    // Quiet connection, a partial frame is kept
+                }
+
+                if (read == frame.length) {
+                    handle(frame.clone());
+                    read = 0;
+                }
+
+                if (System.nanoTime() - lastPingNanos >= PING_MILLIS * 1_000_000L) ping();
+            }
+        } catch (IOException e) {
+            // Connection closed
+        }
+
+        frames.add(new byte[0]);
+    }
+
+    private void handle(byte[] frame) throws IOException {
+        switch (ChessProtocol.frameType(frame)) {
+            case ChessProtocol.TYPE_PING:
+                send(ChessProtocol.encodePong(frame, System.currentTimeMillis()));
+                break;
+            case ChessProtocol.TYPE_PONG:
+                pong(frame);
+                break;
+            case ChessProtocol.TYPE_MOVE:
+            case ChessProtocol.TYPE_FLAG:
+                frames.add(frame);
+                break;
+            default:
+                // Unknown frame types are ignored
+        }
+    }
+
+    /**
+     * Send a ping, giving up on an unanswered one
+     */
+    private void ping() throws IOException {
+        int  sequence;
+        long roundTripMicros;
+
+        synchronized (this) {
+            sequence        = pingSequence = ++lastSequence;
+            pingWallMillis  = System.currentTimeMillis();
+            pingNanos       = System.nanoTime();
+            lastPingNanos   = pingNanos;
+            roundTripMicros = Double.isNaN(roundTrip) ? 0 : Math.round(roundTrip * 1000);
+        }
+
+        send(ChessProtocol.encodePing(sequence, (int) Math.min(roundTripMicros, Integer.MAX_VALUE)));
+    }
+
+    private synchronized void pong(byte[] frame) {
+        long now = System.nanoTime();
+
+        // Late answer to a ping given up on
+        if (pingSequence == 0 || ChessProtocol.frameSequence(frame) != pingSequence) return;
+        pingSequence = 0;
+
+        double sample = (now - pingNanos) / 1e6;
+        roundTrips.record((now - pingNanos) / 1000);
+
+        if (Double.isNaN(roundTrip)) {
+            roundTrip = sample;
+            jitter    = sample / 2;
+        } else {
+            jitter    = 0.75 * jitter + 0.25 * Math.abs(roundTrip - sample);
+            roundTrip = 0.875 * roundTrip + 0.125 * sample;
+        }
+
+        // The pong was stamped about halfway through the round trip
+        int slot = sampleCount++ % OFFSET_SAMPLES;
+        sampleRoundTrips[slot] = sample;
+        sampleOffsets[slot]    = ChessProtocol.frameWallClock(frame) - (pingWallMillis + sample / 2);
+    }
+
+    /**
+     * @return Whether a ping has been answered yet
+     */
+    synchronized boolean hasEstimate() {
+        return sampleCount > 0;
+    }
+
+    /**
+     * @return Smoothed round trip in milliseconds, NaN if not known yet
+     */
+    synchronized double roundTripMillis() {
+        return roundTrip;
+    }
+
+    /**
+     * @return Mean deviation of the round trip in milliseconds, NaN if not known yet
+     */
+    synchronized double jitterMillis() {
+        return jitter;
+    }
+
+    /**
+     * @return How far the other side's wall clock is ahead of this one in milliseconds, NaN if not known yet
+     */
+    synchronized double clockOffsetMillis() {
+        if (sampleCount == 0) return Double.NaN;
+
+        int best = 0;
+        for (int i = 1; i < Math.min(sampleCount, OFFSET_SAMPLES); i++) {
+            if (sampleRoundTrips[i] < sampleRoundTrips[best]) best = i;
+        }
+        return sampleOffsets[best];
+    }
+
+    /**
+     * Time a move of the other side spends on the network, to credit to their clock
+     * <p>
+     * A generous bound like TCP's retransmission timeout, round trip plus four deviations, capped at
+     * GameClock.MAX_LAG_MILLIS.
+     *
+     * @return Lag allowance in milliseconds, 0 if not known yet
+     */
+    synchronized long lagAllowanceMillis() {
+        if (Double.isNaN(roundTrip)) return 0;
+
+        return Math.min(Math.round(roundTrip + 4 * jitter), GameClock.MAX_LAG_MILLIS);
+    }
+}
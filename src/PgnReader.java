@@ -0,0 +1,266 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streaming PGN reader
+ * <p>
+ * Reads a file of any size in fixed chunks and tokenizes it byte by byte, without regular expressions
+ * and without keeping more than the current token in memory. Tags, moves and results are passed to a Visitor
+ * as they are read. Comments, variations, NAGs and move numbers are skipped.
+ */
+class PgnReader implements Closeable {
+
+    /**
+     * Receiver of parsed PGN elements
+     */
+    interface Visitor {
+        /**
+         * A tag pair of the current game
+         */
+        void tag(String name, String value);
+
+        /**
+         * A move of the current game
+         *
+         * @param san Move in SAN, only valid during the call
+         * @return false to skip the remaining moves of the game
+         */
+        boolean move(CharSequence san);
+
+        /**
+         * End of the current game
+         *
+         * @param result Game termination marker, "*" if missing
+         */
+        void endGame(String result);
+    }
+
+    // Size of a read chunk
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final FileChannel   channel;
+    private final ByteBuffer    buf   = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    private final StringBuilder token = new StringBuilder(64);
+
+    // Byte pushed back by the tokenizer, -2 if none
+    private int     pushedBack = -2;
+    private boolean inGame     = false;
+    private boolean hasMoves   = false;
+    private boolean skipMoves  = false;
+    private long    gamesRead  = 0;
+
+    PgnReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        buf.limit(0);
+    }
+
+    /**
+     * @return Number of games read so far
+     */
+    long getGamesRead() {
+        return gamesRead;
+    }
+
+    /**
+     * Read the whole file
+     *
+     * @param visitor Receiver of the games
+     */
+    void readAll(Visitor visitor) throws IOException {
+        while (readGame(visitor)) ;
+    }
+
+    /**
+     * Read the next game
+     *
+     * @param visitor Receiver of the game
+     * @return false if there was no further game
+     */
+    boolean readGame(Visitor visitor) throws IOException {
+        int c;
+
+        while ((c = read()) >= 0) {
+            switch (c) {
+                case '[':
+                    // Tags after movetext without a result start a new game
+                    if (hasMoves) {
+                        unread(c);
+                        return endGame(visitor, "*");
+                    }
+                    readTag(visitor);
+                    break;
+                case '{':
+                    skipUntil('}');
+                    break;
+                case ';':
+                    skipUntil('\n');
+                    break;
+                case '(':
+                    skipVariation();
+                    break;
+                case '$':
+                    readToken(read());
+                    break;
+                case '%':
+                    skipUntil('\n');
+                    break;
+                default:
+                    if (isWhitespace(c) || c == '.' || c == ')' || c == '}' || c == ']') break;
+
+                    readToken(c);
+                    inGame = true;
+
+                    if (isResult(token)) return endGame(visitor, token.toString());
+                    if (isMoveNumber(token)) break;
+
+                    hasMoves = true;
+                    if (!skipMoves && !visitor.move(token)) skipMoves = true;
+            }
+        }
+
+        // End of file
+        if (inGame) return endGame(visitor, "*");
+        return false;
+    }
+
+    private boolean endGame(Visitor visitor, String result) {
+        visitor.endGame(result);
+
+        gamesRead++;
+        inGame    = false;
+        hasMoves  = false;
+        skipMoves = false;
+        token.setLength(0);
+
+        return true;
+    }
+
+    /**
+     * Read a tag pair after '['
+     */
+    private void readTag(Visitor visitor) throws IOException {
+        int c;
+
+        // Name
+        while ((c = read()) >= 0 && isWhitespace(c)) ;
+        token.setLength(0);
+        while (c >= 0 && !isWhitespace(c) && c != '"' && c != ']') {
+            token.append((char) c);
+            c = read();
+        }
+        String name = token.toString();
+
+        // Value
+        while (c >= 0 && c != '"' && c != ']') c = read();
+        token.setLength(0);
+        if (c == '"') {
+            while ((c = read()) >= 0 && c != '"') {
+                if (c == '\\') c = read();
+                if (c >= 0) token.append((char) c);
+            }
+            while (c >= 0 && c != ']') c = read();
+        }
+
+        inGame = true;
+        visitor.tag(name, token.toString());
+        token.setLength(0);
+    }
+
+    /**
+     * Read a symbol token into token, starting with c
+     */
+    private void readToken(int c) throws IOException {
+        token.setLength(0);
+
+        while (c >= 0 && !isWhitespace(c) && !isDelimiter(c)) {
+            token.append((char) c);
+
+            // A move number ends at its dots
+            c = read();
+            if (c == '.' && isMoveNumber(token)) break;
+        }
+
+        if (c >= 0) unread(c);
+    }
+
+    private void skipUntil(int end) throws IOException {
+        int c;
+        while ((c = read()) >= 0 && c != end) ;
+    }
+
+    private void skipVariation() throws IOException {
+        int depth = 1, c;
+
+        while (depth > 0 && (c = read()) >= 0) {
+            if (c == '(') depth++;
+            else if (c == ')') depth--;
+            else if (c == '{') skipUntil('}');
+            else if (c == ';') skipUntil('\n');
+        }
+    }
+
+    private int read() throws IOException {
+        if (pushedBack != -2) {
+            int c = pushedBack;
+            pushedBack = -2;
+            return c;
+        }
+
+        if (!buf.hasRemaining()) {
+            buf.clear();
+            int n;
+            do {
+                n = channel.read(buf);
+            } while (n == 0);
+            buf.flip();
+
+            if (n < 0) return -1;
+        }
+
+        return buf.get() & 0xFF;
+    }
+
+    private void unread(int c) {
+        pushedBack = c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f';
+    }
+
+    private static boolean isDelimiter(int c) {
+        return c == '{' || c == '}' || c == '(' || c == ')' || c == '[' || c == ']' || c == ';' || c == '$';
+    }
+
+    private static boolean isMoveNumber(CharSequence s) {
+        if (s.length() == 0) return false;
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    private static boolean isResult(CharSequence s) {
+        return contentEquals(s, "1-0") || contentEquals(s, "0-1") || contentEquals(s, "1/2-1/2") || contentEquals(s, "*");
+    }
+
+    private static boolean contentEquals(CharSequence s, String value) {
+        if (s.length() != value.length()) return false;
+
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != value.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
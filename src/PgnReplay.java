@@ -0,0 +1,91 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PGN visitor that replays the moves of each game on a Board
+ * <p>
+ * Subclasses see every position and move while the game is read, so no game has to be kept in memory.
+ */
+abstract class PgnReplay implements PgnReader.Visitor {
+    // Tags of the current game
+    protected final Map<String, String> tags = new LinkedHashMap<>();
+
+    // Board of the current game, before the move passed to onMove
+    protected Board board;
+
+    private boolean valid = true;
+    private long    invalidGames;
+
+    /**
+     * @return Number of games with a move that could not be replayed
+     */
+    long getInvalidGames() {
+        return invalidGames;
+    }
+
+    @Override
+    public void tag(String name, String value) {
+        tags.put(name, value);
+    }
+
+    @Override
+    public boolean move(CharSequence san) {
+        if (board == null) board = startBoard();
+        if (!valid) return false;
+
+        Move move = San.parse(board, san);
+        if (move == null) {
+            valid = false;
+            return false;
+        }
+
+        onMove(board, move);
+        board.applyMove(move);
+
+        return !board.kingCaught;
+    }
+
+    @Override
+    public void endGame(String result) {
+        if (board == null) board = startBoard();
+        if (!valid) invalidGames++;
+
+        onGameEnd(result, valid);
+
+        tags.clear();
+        board = null;
+        valid = true;
+    }
+
+    /**
+     * @return Board at the start of the current game, from its FEN tag if present
+     */
+    protected Board startBoard() {
+        String fen = tags.get("FEN");
+        if (fen == null) return Board.initial();
+
+        try {
+            return Fen.parse(fen);
+        } catch (IllegalArgumentException e) {
+            valid = false;
+            return Board.initial();
+        }
+    }
+
+    /**
+     * Called before a move is applied
+     *
+     * @param board Board before the move
+     * @param move  Move
+     */
+    protected void onMove(Board board, Move move) {
+    }
+
+    /**
+     * Called at the end of a game
+     *
+     * @param result Game termination marker
+     * @param valid  Whether all moves could be replayed; board holds the position after the last valid move
+     */
+    protected abstract void onGameEnd(String result, boolean valid);
+}
@@ -0,0 +1,106 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PGN writer
+ * <p>
+ * Writes one game at a time, so games can be streamed into a file of any size.
+ */
+class PgnWriter implements Closeable {
+    // Tags every game carries, in the order of the standard
+    static final String[] SEVEN_TAG_ROSTER = {"Event", "Site", "Date", "Round", "White", "Black", "Result"};
+
+    // Maximum length of a movetext line
+    private static final int LINE_LENGTH = 79;
+
+    private final Writer        out;
+    private final StringBuilder line = new StringBuilder(LINE_LENGTH + 16);
+
+    PgnWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Write a game
+     *
+     * @param tags   Tags, missing roster tags are written as "?"
+     * @param start  Board at the start of the game; not modified
+     * @param moves  Moves of the game
+     * @param result Game termination marker
+     */
+    void writeGame(Map<String, String> tags, Board start, List<Move> moves, String result) throws IOException {
+        // Tags
+        for (String name : SEVEN_TAG_ROSTER) {
+            String value = name.equals("Result") ? result : tags.getOrDefault(name, "?");
+            writeTag(name, value);
+        }
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (!isRosterTag(tag.getKey()) && !isSetUpTag(tag.getKey())) writeTag(tag.getKey(), tag.getValue());
+        }
+
+        // Games from other positions carry their start position
+        String fen = Fen.toFen(start);
+        if (!fen.equals(Fen.INITIAL)) {
+            writeTag("SetUp", "1");
+            writeTag("FEN", fen);
+        }
+        out.write('\n');
+
+        // Movetext
+        Board board = Board.copyOf(start);
+        line.setLength(0);
+
+        for (Move move : moves) {
+            if (board.turnColor == ChessColorType.White) {
+                writeToken(board.turnCount + ".");
+            } else if (move == moves.get(0)) {
+                writeToken(board.turnCount + "...");
+            }
+
+            writeToken(San.toSan(board, move));
+            board.applyMove(move);
+        }
+        writeToken(result);
+
+        out.write(line.toString());
+        out.write("\n\n");
+    }
+
+    private void writeTag(String name, String value) throws IOException {
+        out.write('[');
+        out.write(name);
+        out.write(" \"");
+        out.write(value.replace("\\", "\\\\").replace("\"", "\\\""));
+        out.write("\"]\n");
+    }
+
+    private void writeToken(String token) throws IOException {
+        if (line.length() > 0 && line.length() + 1 + token.length() > LINE_LENGTH) {
+            out.write(line.toString());
+            out.write('\n');
+            line.setLength(0);
+        }
+
+        if (line.length() > 0) line.append(' ');
+        line.append(token);
+    }
+
+    private static boolean isSetUpTag(String name) {
+        return name.equals("SetUp") || name.equals("FEN");
+    }
+
+    private static boolean isRosterTag(String name) {
+        for (String rosterTag : SEVEN_TAG_ROSTER) {
+            if (rosterTag.equals(name)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
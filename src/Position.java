@@ -0,0 +1,710 @@
+import java.util.Arrays;
+
+/**
+ * Compact mutable position for searching
+ * <p>
+ * Squares hold piece codes instead of Piece objects, and moves are made and unmade in place, so a search does not
+ * allocate. Moves follow the rules of Board: pseudo-legal, with capturing the king ending the game. Castling is a
+ * king move of two squares and en passant a pawn capture onto an empty square, as in Move.code().
+ */
+final class Position {
+    // Piece codes: type ordinal + 1, plus BLACK for black pieces
+    static final int ROOK   = 1;
+    static final int KNIGHT = 2;
+    static final int BISHOP = 3;
+    static final int QUEEN  = 4;
+    static final int KING   = 5;
+    static final int PAWN   = 6;
+    static final int BLACK  = 8;
+
+    // Deepest make() nesting
+    static final int MAX_DEPTH = 128;
+    // More than the pseudo-legal moves of any position
+    static final int MAX_MOVES = 256;
+
+    // Zobrist keys by piece code and square
+    private static final long[][] KEYS = new long[16][64];
+
+    // Targets by square
+    private static final int[][]   KNIGHT_TARGETS = new int[64][];
+    private static final int[][]   KING_TARGETS   = new int[64][];
+    // Squares along a ray, by direction and square; directions 0-3 are straight, 4-7 diagonal
+    private static final int[][][] RAYS           = new int[8][64][];
+    // Direction from one square to another, -1 if not on a line
+    private static final byte[][]  DIRECTIONS     = new byte[64][64];
+    // Squares of the pawns attacking a square, by color (0 White, 1 Black) and square
+    private static final int[][][] PAWN_ATTACKERS = new int[2][64][];
+
+    // Exchange values by piece type for see(); the king is worth more than everything else, as capturing it ends the game
+    private static final int[] SEE_VALUES = {0, 500, 320, 330, 900, 20000, 100, 0};
+
+    // Promotion codes as sent on the wire, in search order
+    private static final int[] PROMOTIONS = {
+        ChessProtocol.PROMOTE_QUEEN, ChessProtocol.PROMOTE_KNIGHT, ChessProtocol.PROMOTE_ROOK, ChessProtocol.PROMOTE_BISHOP
+    };
+
+    static {
+        ChessPieceType[] types = ChessPieceType.values();
+        for (int type = 0; type < types.length; type++) {
+            for (int square = 0; square < 64; square++) {
+                KEYS[type + 1][square]         = Zobrist.pieceKey(ChessColorType.White, types[type], square);
+                KEYS[type + 1 + BLACK][square] = Zobrist.pieceKey(ChessColorType.Black, types[type], square);
+            }
+        }
+
+        int[][] knight = {{-2, -1}, {-2, 1}, {2, -1}, {2, 1}, {-1, -2}, {-1, 2}, {1, -2}, {1, 2}};
+        int[][] king   = {{-1, -1}, {-1, 0}, {-1, 1}, {0, -1}, {0, 1}, {1, -1}, {1, 0}, {1, 1}};
+        int[][] rays   = {{-1, 0}, {1, 0}, {0, -1}, {0, 1}, {-1, -1}, {-1, 1}, {1, -1}, {1, 1}};
+
+        for (byte[] directions : DIRECTIONS) Arrays.fill(directions, (byte) -1);
+
+        for (int square = 0; square < 64; square++) {
+            KNIGHT_TARGETS[square]    = targets(square, knight);
+            KING_TARGETS[square]      = targets(square, king);
+            PAWN_ATTACKERS[0][square] = targets(square, new int[][]{{1, -1}, {1, 1}});
+            PAWN_ATTACKERS[1][square] = targets(square, new int[][]{{-1, -1}, {-1, 1}});
+
+            for (int dir = 0; dir < 8; dir++) {
+                int[] ray    = new int[7];
+                int   length = 0;
+                for (int row = square / 8 + rays[dir][0], col = square % 8 + rays[dir][1];
+                     row >= 0 && row < 8 && col >= 0 && col < 8; row += rays[dir][0], col += rays[dir][1]) {
+                    ray[length++] = row * 8 + col;
+                }
+                RAYS[dir][square] = Arrays.copyOf(ray, length);
+                for (int i = 0; i < length; i++) DIRECTIONS[square][ray[i]] = (byte) dir;
+            }
+        }
+    }
+
+    private static int[] targets(int square, int[][] offsets) {
+        int[] result = new int[offsets.length];
+        int   count  = 0;
+
+        for (int[] offset : offsets) {
+            int row = square / 8 + offset[0], col = square % 8 + offset[1];
+            if (row >= 0 && row < 8 && col >= 0 && col < 8) result[count++] = row * 8 + col;
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    // Piece code by row * 8 + col, 0 if empty
+    final int[] squares = new int[64];
+
+    int     side;          // 0 for White, 1 for Black to move
+    long    hash;          // Same as Zobrist.hash of the Board
+    long    unmovedPawns;  // Pawns that may still advance two squares
+    boolean kingCaught;
+    int     depth;         // Number of moves made since the position was set
+    long    occupied;      // Bit per occupied square
+    int     halfmoveClock; // Plies since the last capture or pawn move
+    int     state;         // Castling rights and en passant file, as Board.state
+    // King squares of White and Black, -1 if none
+    final int[] kingSquares = new int[2];
+
+    // Undo information by depth
+    private final int[]  undoMove         = new int[MAX_DEPTH];
+    private final int[]  undoMoved        = new int[MAX_DEPTH];
+    private final int[]  undoCaptured     = new int[MAX_DEPTH];
+    private final long[] undoHash         = new long[MAX_DEPTH];
+    private final long[] undoUnmovedPawns = new long[MAX_DEPTH];
+    private final int[]  undoHalfmoves    = new int[MAX_DEPTH];
+    private final int[]  undoStates       = new int[MAX_DEPTH];
+
+    // Game positions up to depth 0, for repetitions of positions played before the search
+    final PositionHistory history = new PositionHistory();
+
+    // Gains of each capture in see()
+    private final int[] seeGains = new int[40];
+
+    /**
+     * @param board Board to copy
+     * @return Position of the board
+     */
+    static Position of(Board board) {
+        Position position = new Position();
+        position.set(board);
+        return position;
+    }
+
+    /**
+     * Set up the position of a board, with its history
+     */
+    void set(Board board) {
+        Arrays.fill(squares, 0);
+        Arrays.fill(kingSquares, -1);
+        unmovedPawns = 0;
+        occupied     = 0;
+
+        for (Piece piece : board.pieces.values()) {
+            int square = piece.pos.square;
+
+            squares[square] = code(piece.color, piece.type);
+            occupied |= 1L << square;
+            if (piece.type == ChessPieceType.Pawn && !piece.hasMoved) unmovedPawns |= 1L << square;
+            if (piece.type == ChessPieceType.King) kingSquares[piece.color.ordinal()] = square;
+        }
+
+        side          = board.turnColor == ChessColorType.White ? 0 : 1;
+        state         = board.state;
+        hash          = Zobrist.hash(board);
+        kingCaught    = board.kingCaught;
+        depth         = 0;
+        halfmoveClock = board.halfmoveClock();
+
+        history.copyFrom(board.history());
+    }
+
+    /**
+     * Set up the position of a game state; its history holds the current position only
+     */
+    void set(GameState game) {
+        occupied = 0;
+        Arrays.fill(kingSquares, -1);
+
+        for (int square = 0; square < 64; square++) {
+            int piece = game.squares[square];
+
+            squares[square] = piece;
+            if (piece == 0) continue;
+            occupied |= 1L << square;
+            if ((piece & 7) == KING) kingSquares[piece >>> 3] = square;
+        }
+
+        side          = game.side;
+        state         = game.state;
+        hash          = game.hash;
+        unmovedPawns  = game.unmovedPawns;
+        kingCaught    = game.kingCaught;
+        depth         = 0;
+        halfmoveClock = game.halfmoveClock;
+
+        history.setHalfmoveClock(halfmoveClock);
+        history.start(hash);
+    }
+
+    /**
+     * Keep the moves made so far, so a game can go on for more than MAX_DEPTH moves; they can no longer be unmade
+     */
+    void resetDepth() {
+        for (int d = 1; d <= depth; d++) history.add(hashAt(d), (d < depth ? undoHalfmoves[d] : halfmoveClock) == 0);
+        depth = 0;
+    }
+
+    /**
+     * Draw by the fifty-move rule, or by repeating a position since the last irreversible move, in the moves made or
+     * in the game before them
+     * <p>
+     * A search scores the first repetition as a draw, as the side that could avoid it would have. Costs a comparison
+     * unless four plies passed without a capture or pawn move.
+     *
+     * @return Whether the position is drawn
+     */
+    boolean isDraw() {
+        if (halfmoveClock < 4) return false;
+        if (halfmoveClock >= PositionHistory.FIFTY_MOVES) return true;
+
+        int played = history.reversiblePlies();
+        for (int back = 4; back <= halfmoveClock; back += 2) {
+            int d = depth - back;
+            if (d < -played) break;
+
+            long earlier = d >= 0 ? undoHash[d] : history.hash(-d);
+            if (earlier == hash) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Piece code of a piece
+     */
+    static int code(ChessColorType color, ChessPieceType type) {
+        return type.ordinal() + 1 + (color == ChessColorType.Black ? BLACK : 0);
+    }
+
+    /**
+     * @return Zobrist key of a piece code on a square
+     */
+    static long key(int piece, int square) {
+        return KEYS[piece][square];
+    }
+
+    /**
+     * @return Color of the side to move
+     */
+    ChessColorType turnColor() {
+        return side == 0 ? ChessColorType.White : ChessColorType.Black;
+    }
+
+    /**
+     * Make a move, as a Move.code()
+     */
+    void make(int move) {
+        int src = move >>> 9 & 63, dest = move >>> 3 & 63;
+        int piece = squares[src], captured = squares[dest];
+        int type  = piece & 7;
+
+        undoMove[depth]         = move;
+        undoMoved[depth]        = piece;
+        undoCaptured[depth]     = captured;
+        undoHash[depth]         = hash;
+        undoUnmovedPawns[depth] = unmovedPawns;
+        undoHalfmoves[depth]    = halfmoveClock;
+        undoStates[depth]       = state;
+        depth++;
+
+        int placed = placed(piece, move & 7);
+
+        hash ^= KEYS[piece][src] ^ KEYS[placed][dest] ^ Zobrist.BLACK_TO_MOVE;
+        if (captured != 0) hash ^= KEYS[captured][dest];
+
+        squares[src]  = 0;
+        squares[dest] = placed;
+        occupied      = occupied & ~(1L << src) | 1L << dest;
+        unmovedPawns &= ~(1L << src | 1L << dest);
+
+        if (isCastling(piece, move)) {
+            moveRook(castlingRookSource(move), castlingRookDest(move));
+        } else if (isEnPassant(piece, captured, move)) {
+            int square = enPassantSquare(move);
+            hash ^= KEYS[squares[square]][square];
+            squares[square] = 0;
+            occupied &= ~(1L << square);
+        }
+
+        // Castling rights lost, and en passant after a pawn advanced two squares next to an enemy pawn
+        int newState = state & Board.castlingKept(src) & Board.castlingKept(dest);
+        if (type == PAWN && (dest - src == 16 || src - dest == 16)) {
+            int enemy = PAWN | (side == 0 ? BLACK : 0), col = dest & 7;
+            if (col > 0 && squares[dest - 1] == enemy || col < 7 && squares[dest + 1] == enemy) {
+                newState |= (col + 1) << Board.EN_PASSANT_SHIFT;
+            }
+        }
+        if (newState != state) {
+            hash ^= Zobrist.stateKey(state) ^ Zobrist.stateKey(newState);
+            state = newState;
+        }
+
+        halfmoveClock = type == PAWN || captured != 0 ? 0 : halfmoveClock + 1;
+        if (type == KING) kingSquares[side] = dest;
+        if ((captured & 7) == KING) kingCaught = true;
+        side ^= 1;
+    }
+
+    private void moveRook(int src, int dest) {
+        int rook = squares[src];
+
+        hash ^= KEYS[rook][src] ^ KEYS[rook][dest];
+        squares[src]  = 0;
+        squares[dest] = rook;
+        occupied      = occupied & ~(1L << src) | 1L << dest;
+    }
+
+    /**
+     * Take back the last move made
+     */
+    void unmake(int move) {
+        int src = move >>> 9 & 63, dest = move >>> 3 & 63;
+
+        depth--;
+        int piece = undoMoved[depth], captured = undoCaptured[depth];
+
+        squares[src]  = piece;
+        squares[dest] = captured;
+        hash          = undoHash[depth];
+        unmovedPawns  = undoUnmovedPawns[depth];
+        halfmoveClock = undoHalfmoves[depth];
+        state         = undoStates[depth];
+        kingCaught    = false;
+        side ^= 1;
+
+        occupied |= 1L << src;
+        if (captured == 0) occupied &= ~(1L << dest);
+        if ((piece & 7) == KING) kingSquares[side] = src;
+
+        if (isCastling(piece, move)) {
+            int rookSrc = castlingRookSource(move), rookDest = castlingRookDest(move);
+            squares[rookSrc]  = squares[rookDest];
+            squares[rookDest] = 0;
+            occupied          = occupied & ~(1L << rookDest) | 1L << rookSrc;
+        } else if (isEnPassant(piece, captured, move)) {
+            int square = enPassantSquare(move);
+            squares[square] = PAWN | (side == 0 ? BLACK : 0);
+            occupied |= 1L << square;
+        }
+    }
+
+    /**
+     * @param piece Piece code of the moving piece
+     * @param move  Move.code()
+     * @return Whether the move castles: the king moves two squares
+     */
+    static boolean isCastling(int piece, int move) {
+        int distance = (move >>> 9 & 63) - (move >>> 3 & 63);
+        return (piece & 7) == KING && (distance == 2 || distance == -2);
+    }
+
+    /**
+     * @param piece    Piece code of the moving piece
+     * @param captured Piece code on the destination square
+     * @param move     Move.code()
+     * @return Whether the move captures en passant: a pawn changes file onto an empty square
+     */
+    static boolean isEnPassant(int piece, int captured, int move) {
+        return (piece & 7) == PAWN && captured == 0 && ((move >>> 9 ^ move >>> 3) & 7) != 0;
+    }
+
+    /**
+     * @return Square of the rook that castles in a castling move
+     */
+    static int castlingRookSource(int move) {
+        int dest = move >>> 3 & 63;
+        return (dest & 7) > 4 ? dest + 1 : dest - 2;
+    }
+
+    /**
+     * @return Square the rook moves to in a castling move, which the king passes
+     */
+    static int castlingRookDest(int move) {
+        return ((move >>> 9 & 63) + (move >>> 3 & 63)) / 2;
+    }
+
+    /**
+     * @return Square of the pawn captured by an en passant move
+     */
+    static int enPassantSquare(int move) {
+        return move >>> 9 & 56 | move >>> 3 & 7;
+    }
+
+    /**
+     * @param move Move.code() of the side to move
+     * @return Piece code the move captures, also en passant; 0 if none
+     */
+    int captured(int move) {
+        int src = move >>> 9 & 63, dest = move >>> 3 & 63;
+        int captured = squares[dest];
+
+        return isEnPassant(squares[src], captured, move) ? squares[enPassantSquare(move)] : captured;
+    }
+
+    /**
+     * @param piece     Piece code of the moving piece
+     * @param promotion Promotion code of the move, 0 if none
+     * @return Piece code on the destination square
+     */
+    static int placed(int piece, int promotion) {
+        return promotion == 0 ? piece : code(ChessColorType.White, ChessProtocol.promotionType(promotion)) | piece & BLACK;
+    }
+
+    /**
+     * @param depth Depth below the current one
+     * @return Move made from that depth, as a Move.code()
+     */
+    int moveAt(int depth) {
+        return undoMove[depth];
+    }
+
+    /**
+     * @return Piece code of the piece moved from a depth below the current one
+     */
+    int movedAt(int depth) {
+        return undoMoved[depth];
+    }
+
+    /**
+     * @return Piece code captured by the move from a depth below the current one, 0 if none
+     */
+    int capturedAt(int depth) {
+        return undoCaptured[depth];
+    }
+
+    /**
+     * @param depth Depth up to the current one
+     * @return Hash of the position at that depth
+     */
+    long hashAt(int depth) {
+        return depth < this.depth ? undoHash[depth] : hash;
+    }
+
+    /**
+     * List the pseudo-legal moves of the side to move
+     *
+     * @param moves Array to write Move.code() values to
+     * @return Number of moves
+     */
+    int generate(int[] moves) {
+        return generate(moves, true);
+    }
+
+    /**
+     * List the pseudo-legal captures and promotions of the side to move
+     *
+     * @param moves Array to write Move.code() values to
+     * @return Number of moves
+     */
+    int generateCaptures(int[] moves) {
+        return generate(moves, false);
+    }
+
+    private int generate(int[] moves, boolean quiets) {
+        if (kingCaught) return 0;
+
+        int count = 0;
+        int own   = side == 0 ? 0 : BLACK;
+
+        for (int src = 0; src < 64; src++) {
+            int piece = squares[src];
+            if (piece == 0 || (piece & BLACK) != own) continue;
+
+            switch (piece & 7) {
+                case PAWN:
+                    count = generatePawn(src, moves, count, quiets);
+                    break;
+                case KNIGHT:
+                    count = generateSteps(src, KNIGHT_TARGETS[src], moves, count, quiets);
+                    break;
+                case KING:
+                    count = generateSteps(src, KING_TARGETS[src], moves, count, quiets);
+                    if (quiets) count = generateCastling(src, moves, count);
+                    break;
+                case ROOK:
+                    count = generateRays(src, 0, 4, moves, count, quiets);
+                    break;
+                case BISHOP:
+                    count = generateRays(src, 4, 8, moves, count, quiets);
+                    break;
+                case QUEEN:
+                    count = generateRays(src, 0, 8, moves, count, quiets);
+                    break;
+            }
+        }
+
+        return count;
+    }
+
+    private boolean isEnemy(int square) {
+        int piece = squares[square];
+        return piece != 0 && (piece & BLACK) != (side == 0 ? 0 : BLACK);
+    }
+
+    private int generateSteps(int src, int[] targets, int[] moves, int count, boolean quiets) {
+        for (int dest : targets) {
+            if (squares[dest] == 0 ? quiets : isEnemy(dest)) moves[count++] = src << 9 | dest << 3;
+        }
+        return count;
+    }
+
+    private int generateRays(int src, int firstDir, int lastDir, int[] moves, int count, boolean quiets) {
+        for (int dir = firstDir; dir < lastDir; dir++) {
+            for (int dest : RAYS[dir][src]) {
+                if (squares[dest] == 0) {
+                    if (quiets) moves[count++] = src << 9 | dest << 3;
+                    continue;
+                }
+                if (isEnemy(dest)) moves[count++] = src << 9 | dest << 3;
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Castling as in King: king and rook unmoved, squares between them empty, king not passing an attacked square
+     */
+    private int generateCastling(int king, int[] moves, int count) {
+        int home   = side == 0 ? 60 : 4;
+        int rook   = ROOK | (side == 0 ? 0 : BLACK);
+        int rights = side == 0 ? state : state >>> 2;
+
+        if (king != home || (rights & (Board.WHITE_KINGSIDE | Board.WHITE_QUEENSIDE)) == 0) return count;
+
+        if ((rights & Board.WHITE_KINGSIDE) != 0 && squares[home + 3] == rook
+            && squares[home + 1] == 0 && squares[home + 2] == 0 && !isAttacked(home) && !isAttacked(home + 1)) {
+            moves[count++] = home << 9 | (home + 2) << 3;
+        }
+        if ((rights & Board.WHITE_QUEENSIDE) != 0 && squares[home - 4] == rook
+            && squares[home - 1] == 0 && squares[home - 2] == 0 && squares[home - 3] == 0
+            && !isAttacked(home) && !isAttacked(home - 1)) {
+            moves[count++] = home << 9 | (home - 2) << 3;
+        }
+        return count;
+    }
+
+    private int generatePawn(int src, int[] moves, int count, boolean quiets) {
+        int row = src / 8, col = src % 8;
+        int dir = side == 0 ? -1 : 1;
+        int next = row + dir;
+        if (next < 0 || next > 7) return count;
+
+        int forward = next * 8 + col;
+        if (squares[forward] == 0 && (quiets || next == 0 || next == 7)) {
+            count = addPawnMove(src, forward, moves, count);
+
+            int twoRow = next + dir;
+            if (quiets && (unmovedPawns & 1L << src) != 0 && twoRow >= 0 && twoRow <= 7 && squares[twoRow * 8 + col] == 0) {
+                moves[count++] = src << 9 | (twoRow * 8 + col) << 3;
+            }
+        }
+        if (col > 0 && isEnemy(forward - 1)) count = addPawnMove(src, forward - 1, moves, count);
+        if (col < 7 && isEnemy(forward + 1)) count = addPawnMove(src, forward + 1, moves, count);
+
+        int file = Board.enPassantFile(state);
+        if (file >= 0 && row == (side == 0 ? 3 : 4) && Math.abs(file - col) == 1) {
+            moves[count++] = src << 9 | (next * 8 + file) << 3;
+        }
+
+        return count;
+    }
+
+    private static int addPawnMove(int src, int dest, int[] moves, int count) {
+        if (dest < 8 || dest >= 56) {
+            for (int promotion : PROMOTIONS) moves[count++] = src << 9 | dest << 3 | promotion;
+        } else {
+            moves[count++] = src << 9 | dest << 3;
+        }
+        return count;
+    }
+
+    /**
+     * @return Whether the king of the side to move is attacked
+     */
+    boolean inCheck() {
+        int king = kingSquares[side];
+        return king >= 0 && isAttacked(king);
+    }
+
+    /**
+     * @return Whether a piece of the opponent of the side to move attacks a square
+     */
+    private boolean isAttacked(int square) {
+        return (attackers(square, occupied) & colorMask(occupied, side ^ 1)) != 0;
+    }
+
+    /**
+     * Pieces of both sides attacking a square, looking through the squares missing from occupied
+     *
+     * @param square   Attacked square
+     * @param occupied Pieces taken into account
+     * @return Bit per square of an attacker
+     */
+    long attackers(int square, long occupied) {
+        long result = 0;
+
+        for (int src : PAWN_ATTACKERS[0][square]) if (squares[src] == PAWN) result |= 1L << src;
+        for (int src : PAWN_ATTACKERS[1][square]) if (squares[src] == (PAWN | BLACK)) result |= 1L << src;
+        for (int src : KNIGHT_TARGETS[square]) if ((squares[src] & 7) == KNIGHT) result |= 1L << src;
+        for (int src : KING_TARGETS[square]) if ((squares[src] & 7) == KING) result |= 1L << src;
+
+        for (int dir = 0; dir < 8; dir++) result |= slider(RAYS[dir][square], dir, occupied);
+
+        return result & occupied;
+    }
+
+    /**
+     * @return Bit of the first piece along a ray if it moves in that direction, else 0
+     */
+    private long slider(int[] ray, int dir, long occupied) {
+        for (int src : ray) {
+            if ((occupied & 1L << src) == 0) continue;
+
+            int type = squares[src] & 7;
+            return type == QUEEN || type == (dir < 4 ? ROOK : BISHOP) ? 1L << src : 0;
+        }
+        return 0;
+    }
+
+    /**
+     * @return Squares of occupied holding pieces of a color (0 White, 1 Black)
+     */
+    private long colorMask(long occupied, int color) {
+        long result = 0;
+        for (long bits = occupied; bits != 0; bits &= bits - 1) {
+            int square = Long.numberOfTrailingZeros(bits);
+            if (squares[square] >>> 3 == color) result |= 1L << square;
+        }
+        return result;
+    }
+
+    /**
+     * Static exchange evaluation: material won by a capture or promotion if both sides keep recapturing on the
+     * destination square with their least valuable piece, each stopping when that would lose more
+     *
+     * @param move Move.code()
+     * @return Material gain for the side to move, negative if the exchange loses material
+     */
+    int see(int move) {
+        int src = move >>> 9 & 63, dest = move >>> 3 & 63;
+        int placed = placed(squares[src], move & 7);
+        int[] gains = seeGains;
+
+        gains[0] = SEE_VALUES[captured(move) & 7] + SEE_VALUES[placed & 7] - SEE_VALUES[squares[src] & 7];
+
+        long occupied  = this.occupied;
+        if (isEnPassant(squares[src], squares[dest], move)) occupied &= ~(1L << enPassantSquare(move));
+        long attackers = attackers(dest, occupied);
+        int  onSquare  = SEE_VALUES[placed & 7];
+        int  from      = src;
+        int  color     = side;
+        int  d         = 0;
+
+        while (true) {
+            // Sliders behind the piece that moved join in
+            occupied  &= ~(1L << from);
+            attackers |= xray(dest, from, occupied);
+            attackers &= occupied;
+            color ^= 1;
+
+            from = leastValuable(attackers, color);
+            if (from < 0) break;
+
+            // What this capture wins for its side if it is not answered
+            d++;
+            gains[d] = onSquare - gains[d - 1];
+            // Capturing the king ends the game
+            if (onSquare == SEE_VALUES[KING]) break;
+            onSquare = SEE_VALUES[squares[from] & 7];
+        }
+
+        // Going back, each side either stops or takes the result of capturing
+        for (; d > 0; d--) gains[d - 1] = -Math.max(-gains[d - 1], gains[d]);
+        return gains[0];
+    }
+
+    /**
+     * @param move Move.code()
+     * @return Whether see(move) is negative; captures by a piece worth at most the captured one are not evaluated
+     */
+    boolean losesMaterial(int move) {
+        int src = move >>> 9 & 63;
+        if ((move & 7) == 0 && SEE_VALUES[squares[src] & 7] <= SEE_VALUES[captured(move) & 7]) return false;
+
+        return see(move) < 0;
+    }
+
+    /**
+     * @return Bit of a slider attacking target through from, now that from is empty, else 0
+     */
+    private long xray(int target, int from, long occupied) {
+        int dir = DIRECTIONS[target][from];
+        return dir < 0 ? 0 : slider(RAYS[dir][from], dir, occupied);
+    }
+
+    /**
+     * @return Square of the least valuable attacker of a color, -1 if none
+     */
+    private int leastValuable(long attackers, int color) {
+        int best = -1, bestValue = Integer.MAX_VALUE;
+
+        for (long bits = attackers; bits != 0; bits &= bits - 1) {
+            int square = Long.numberOfTrailingZeros(bits);
+            int piece  = squares[square];
+
+            if (piece >>> 3 == color && SEE_VALUES[piece & 7] < bestValue) {
+                best      = square;
+                bestValue = SEE_VALUES[piece & 7];
+            }
+        }
+        return best;
+    }
+}
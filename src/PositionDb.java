@@ -0,0 +1,529 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Position database (*.jpd)
+ * <p>
+ * Maps the Zobrist hash of a position to the moves played from it, with the number of games and their results.
+ * The index is an open-addressing hash table with linear probing in a memory-mapped file, so queries read
+ * the file through the page cache and nothing is loaded onto the heap.
+ * <p>
+ * Layout: header of 64 bytes - magic "JPD" and version(byte), slot bits(int), games(long), entries(long) -
+ * followed by 2^slotBits slots of 32 bytes:
+ * position hash(long), move(int), games(int), white wins(int), draws(int), black wins(int), reserved(int)
+ * <p>
+ * A slot is empty while its move is 0. All moves of a position start probing at the same slot, so a query reads
+ * one run of consecutive slots. All values are little endian.
+ */
+final class PositionDb implements Closeable {
+
+    /**
+     * Statistics of a move played from a position
+     */
+    static final class MoveStats {
+        final Move move;
+        final int  games;
+        final int  whiteWins;
+        final int  draws;
+        final int  blackWins;
+
+        MoveStats(Move move, int games, int whiteWins, int draws, int blackWins) {
+            this.move      = move;
+            this.games     = games;
+            this.whiteWins = whiteWins;
+            this.draws     = draws;
+            this.blackWins = blackWins;
+        }
+    }
+
+    // File layout; version 2 hashes castling rights and en passant
+    static final int  VERSION       = 2;
+    static final int  HEADER_SIZE   = 64;
+    static final int  SLOT_SIZE     = 32;
+    static final int  MIN_SLOT_BITS = 10;
+    static final int  MAX_SLOT_BITS = 36;
+    private static final byte[] MAGIC = {'J', 'P', 'D'};
+
+    // Slot fields
+    private static final int OFFSET_HASH       = 0;
+    private static final int OFFSET_MOVE       = 8;
+    private static final int OFFSET_GAMES      = 12;
+    private static final int OFFSET_WHITE_WINS = 16;
+
+    // Results, as offsets from OFFSET_WHITE_WINS in ints
+    static final int RESULT_UNKNOWN   = -1;
+    static final int RESULT_WHITE_WIN = 0;
+    static final int RESULT_DRAW      = 1;
+    static final int RESULT_BLACK_WIN = 2;
+
+    // Slots per mapped segment of 1 GiB
+    private static final int SEGMENT_BITS = 25;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT  = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final FileChannel        channel;
+    private final MappedByteBuffer[] segments;
+    private final int                slotBits;
+    private final long               slotMask;
+    private final boolean            writable;
+    private final LongAdder          entries = new LongAdder();
+    private       long               games;
+
+    private PositionDb(FileChannel channel, int slotBits, boolean writable) throws IOException {
+        this.channel  = channel;
+        this.slotBits = slotBits;
+        this.slotMask = (1L << slotBits) - 1;
+        this.writable = writable;
+
+        long slots    = 1L << slotBits;
+        int  count    = (int) ((slots + SEGMENT_MASK) >>> SEGMENT_BITS);
+        this.segments = new MappedByteBuffer[count];
+
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        for (int i = 0; i < count; i++) {
+            long first = (long) i << SEGMENT_BITS;
+            long size  = Math.min(slots - first, 1L << SEGMENT_BITS) * SLOT_SIZE;
+            segments[i] = channel.map(mode, HEADER_SIZE + first * SLOT_SIZE, size);
+        }
+    }
+
+    /**
+     * Create an empty database, replacing any file at path
+     *
+     * @param path     File of the database
+     * @param slotBits Number of slots as a power of 2
+     * @return Database open for adding
+     */
+    static PositionDb create(Path path, int slotBits) throws IOException {
+        if (slotBits < MIN_SLOT_BITS || slotBits > MAX_SLOT_BITS) throw new IOException("Invalid size 2^" + slotBits);
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                               StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            // Sparse until slots are written
+            channel.write(ByteBuffer.wrap(new byte[1]), HEADER_SIZE + ((long) SLOT_SIZE << slotBits) - 1);
+
+            PositionDb db = new PositionDb(channel, slotBits, true);
+            db.writeHeader();
+            return db;
+
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open a database for queries
+     *
+     * @param path File of the database
+     * @return Read-only database
+     */
+    static PositionDb open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) ;
+            header.flip();
+
+            if (header.remaining() < HEADER_SIZE
+                || header.get() != MAGIC[0] || header.get() != MAGIC[1] || header.get() != MAGIC[2]) {
+                throw new IOException("Not a valid position database!");
+            }
+
+            int version = header.get();
+            if (version != VERSION) throw new IOException("Unsupported position database version " + version);
+
+            int slotBits = header.getInt();
+            if (slotBits < MIN_SLOT_BITS || slotBits > MAX_SLOT_BITS
+                || channel.size() < HEADER_SIZE + ((long) SLOT_SIZE << slotBits)) {
+                throw new IOException("Not a valid position database!");
+            }
+
+            PositionDb db = new PositionDb(channel, slotBits, false);
+            db.games = header.getLong();
+            db.entries.add(header.getLong());
+            return db;
+
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of games in the database
+     */
+    long getGames() {
+        return games;
+    }
+
+    /**
+     * @return Number of distinct position and move pairs
+     */
+    long getEntries() {
+        return entries.sum();
+    }
+
+    /**
+     * @return Number of slots
+     */
+    long getCapacity() {
+        return 1L << slotBits;
+    }
+
+    /**
+     * Count a move played from a position
+     * <p>
+     * Safe to call from several threads: slots are claimed with compare-and-set on the mapped file and
+     * counters are incremented atomically.
+     *
+     * @param hash   Zobrist hash of the position
+     * @param move   Move played
+     * @param result One of the RESULT_ constants
+     */
+    void add(long hash, Move move, int result) {
+        long key  = key(hash);
+        int  code = move.code();
+        long slot = key & slotMask;
+
+        for (long probes = 0; probes <= slotMask; probes++, slot = (slot + 1) & slotMask) {
+            ByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+            int        offset  = (int) (slot & SEGMENT_MASK) * SLOT_SIZE;
+
+            int stored = (int) INT.getVolatile(segment, offset + OFFSET_MOVE);
+            if (stored == 0) {
+                if (INT.compareAndSet(segment, offset + OFFSET_MOVE, 0, code)) {
+                    LONG.setRelease(segment, offset + OFFSET_HASH, key);
+                    entries.increment();
+                    count(segment, offset, result);
+                    return;
+                }
+                stored = (int) INT.getVolatile(segment, offset + OFFSET_MOVE);
+            }
+
+            // Wait until the thread that claimed the slot has written the hash
+            long storedKey;
+            while ((storedKey = (long) LONG.getAcquire(segment, offset + OFFSET_HASH)) == 0) Thread.onSpinWait();
+
+            if (storedKey == key && stored == code) {
+                count(segment, offset, result);
+                return;
+            }
+        }
+
+        throw new IllegalStateException("Position database is full");
+    }
+
+    private static void count(ByteBuffer segment, int offset, int result) {
+        INT.getAndAdd(segment, offset + OFFSET_GAMES, 1);
+        if (result != RESULT_UNKNOWN) INT.getAndAdd(segment, offset + OFFSET_WHITE_WINS + result * 4, 1);
+    }
+
+    /**
+     * List the moves played from a position
+     *
+     * @param board Board of the position
+     * @return Moves played from the position, most played first
+     */
+    List<MoveStats> query(Board board) {
+        return query(Zobrist.hash(board));
+    }
+
+    /**
+     * List the moves played from a position
+     *
+     * @param hash Zobrist hash of the position
+     * @return Moves played from the position, most played first
+     */
+    List<MoveStats> query(long hash) {
+        List<MoveStats> result = new ArrayList<>();
+        long            key    = key(hash);
+        long            slot   = key & slotMask;
+
+        for (long probes = 0; probes <= slotMask; probes++, slot = (slot + 1) & slotMask) {
+            ByteBuffer segment = segments[(int) (slot >>> SEGMENT_BITS)];
+            int        offset  = (int) (slot & SEGMENT_MASK) * SLOT_SIZE;
+
+            int code = (int) INT.get(segment, offset + OFFSET_MOVE);
+            if (code == 0) break;
+            if ((long) LONG.get(segment, offset + OFFSET_HASH) != key) continue;
+
+            result.add(new MoveStats(Move.ofCode(code),
+                                     (int) INT.get(segment, offset + OFFSET_GAMES),
+                                     (int) INT.get(segment, offset + OFFSET_WHITE_WINS),
+                                     (int) INT.get(segment, offset + OFFSET_WHITE_WINS + 4),
+                                     (int) INT.get(segment, offset + OFFSET_WHITE_WINS + 8)));
+        }
+
+        result.sort((a, b) -> Integer.compare(b.games, a.games));
+        return result;
+    }
+
+    /**
+     * Write the header and flush the database to disk
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.put((byte) VERSION);
+        header.putInt(slotBits);
+        header.putLong(games);
+        header.putLong(entries.sum());
+        header.position(HEADER_SIZE);
+        header.flip();
+
+        channel.write(header, 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) return;
+
+        if (writable) {
+            for (MappedByteBuffer segment : segments) segment.force();
+            writeHeader();
+            channel.force(true);
+        }
+        channel.close();
+    }
+
+    /**
+     * Build a database from a PGN file
+     * <p>
+     * The file is read twice: once to count the moves, which sizes the table to at most half full, and once to
+     * load the games. One thread reads and tokenizes the file and hands batches of games to worker threads,
+     * which replay them and add every position to the shared table.
+     *
+     * @param pgn     PGN source
+     * @param path    Database destination
+     * @param threads Number of worker threads
+     * @return Number of games loaded
+     */
+    static long build(Path pgn, Path path, int threads) throws IOException, InterruptedException {
+        // Count moves
+        AtomicLong plies = new AtomicLong();
+        try (PgnReader reader = new PgnReader(pgn)) {
+            reader.readAll(new PgnReader.Visitor() {
+                @Override
+                public void tag(String name, String value) {
+                }
+
+                @Override
+                public boolean move(CharSequence san) {
+                    plies.incrementAndGet();
+                    return true;
+                }
+
+                @Override
+                public void endGame(String result) {
+                }
+            });
+        }
+
+        int slotBits = Math.max(MIN_SLOT_BITS, 64 - Long.numberOfLeadingZeros(plies.get() * 2));
+        if (slotBits > MAX_SLOT_BITS) throw new IOException("Too many moves: " + plies.get());
+
+        ExecutorService pool    = Executors.newFixedThreadPool(threads);
+        Semaphore       permits = new Semaphore(threads * 2);
+
+        try (PositionDb db = create(path, slotBits); PgnReader reader = new PgnReader(pgn)) {
+            BatchReader batches = new BatchReader(db, pool, permits);
+            reader.readAll(batches);
+            batches.submit();
+
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            if (batches.failure != null) throw new IOException(batches.failure.getMessage(), batches.failure);
+
+            db.games = reader.getGamesRead();
+            return db.games;
+
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Collects games into batches on the reading thread and submits them to the workers
+     */
+    private static final class BatchReader implements PgnReader.Visitor {
+        private static final int BATCH_SIZE = 256;
+
+        private final PositionDb      db;
+        private final ExecutorService pool;
+        private final Semaphore       permits;
+
+        // First error of a worker
+        private volatile RuntimeException failure;
+
+        private List<String> fens    = new ArrayList<>(BATCH_SIZE);
+        private List<String> moves   = new ArrayList<>(BATCH_SIZE);
+        private int[]        results = new int[BATCH_SIZE];
+
+        private       String        fen;
+        private final StringBuilder movetext = new StringBuilder(1024);
+
+        BatchReader(PositionDb db, ExecutorService pool, Semaphore permits) {
+            this.db      = db;
+            this.pool    = pool;
+            this.permits = permits;
+        }
+
+        @Override
+        public void tag(String name, String value) {
+            if (name.equals("FEN")) fen = value;
+        }
+
+        @Override
+        public boolean move(CharSequence san) {
+            movetext.append(san).append(' ');
+            return true;
+        }
+
+        @Override
+        public void endGame(String result) {
+            results[moves.size()] = result(result);
+            fens.add(fen);
+            moves.add(movetext.toString());
+
+            fen = null;
+            movetext.setLength(0);
+
+            if (moves.size() == BATCH_SIZE) submit();
+        }
+
+        /**
+         * Hand the current batch to a worker, waiting while too many batches are queued
+         */
+        void submit() {
+            if (moves.isEmpty()) return;
+
+            List<String> batchFens    = fens;
+            List<String> batchMoves   = moves;
+            int[]        batchResults = results;
+
+            fens    = new ArrayList<>(BATCH_SIZE);
+            moves   = new ArrayList<>(BATCH_SIZE);
+            results = new int[BATCH_SIZE];
+
+            permits.acquireUninterruptibly();
+            pool.execute(() -> {
+                try {
+                    for (int i = 0; i < batchMoves.size(); i++) {
+                        load(db, batchFens.get(i), batchMoves.get(i), batchResults[i]);
+                    }
+                } catch (RuntimeException e) {
+                    failure = e;
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Replay a game and add its positions, up to the first move that cannot be replayed
+     */
+    private static void load(PositionDb db, String fen, String movetext, int result) {
+        Board board;
+        try {
+            board = fen != null ? Fen.parse(fen) : Board.initial();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        int start = 0;
+        while (start < movetext.length() && !board.kingCaught) {
+            int end = movetext.indexOf(' ', start);
+
+            Move move = San.parse(board, movetext.subSequence(start, end));
+            if (move == null) return;
+
+            db.add(Zobrist.hash(board), move, result);
+            board.applyMove(move);
+            start = end + 1;
+        }
+    }
+
+    /**
+     * @param result PGN game termination marker
+     * @return One of the RESULT_ constants
+     */
+    static int result(String result) {
+        switch (result) {
+            case "1-0":
+                return RESULT_WHITE_WIN;
+            case "1/2-1/2":
+                return RESULT_DRAW;
+            case "0-1":
+                return RESULT_BLACK_WIN;
+            default:
+                return RESULT_UNKNOWN;
+        }
+    }
+
+    /**
+     * @return Hash as stored in a slot; 0 marks a slot whose hash is not written yet
+     */
+    private static long key(long hash) {
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Build or query a database from the command line
+     * <p>
+     * PositionDb build GAMES.pgn OUT.jpd [THREADS]
+     * PositionDb query DB.jpd [FEN]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length >= 3 && args[0].equals("build")) {
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+            long start = System.nanoTime();
+            long games = build(Path.of(args[1]), Path.of(args[2]), threads);
+
+            try (PositionDb db = open(Path.of(args[2]))) {
+                System.out.printf("Loaded %d games, %d entries in %d slots, %.1f s%n", games, db.getEntries(),
+                                  db.getCapacity(), (System.nanoTime() - start) / 1e9);
+            }
+
+        } else if (args.length >= 2 && args[0].equals("query")) {
+            Board board = args.length > 2 ? Fen.parse(args[2]) : Board.initial();
+
+            try (PositionDb db = open(Path.of(args[1]))) {
+                long            start  = System.nanoTime();
+                List<MoveStats> result = db.query(board);
+                long            micros = (System.nanoTime() - start) / 1000;
+
+                for (MoveStats stats : result) {
+                    System.out.printf("%-8s %8d  +%d =%d -%d%n", San.toSan(board, stats.move), stats.games,
+                                      stats.whiteWins, stats.draws, stats.blackWins);
+                }
+                System.out.println(result.size() + " moves in " + micros + " us");
+            }
+
+        } else {
+            System.err.println("Usage: PositionDb build GAMES.pgn OUT.jpd [THREADS] | query DB.jpd [FEN]");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Zobrist hashes of the positions of a game, with the halfmove clock, for the draw rules
+ * <p>
+ * A capture or pawn move can never be undone, so a position can only repeat one seen since the last of them, and
+ * the fifty-move rule ends the game 100 plies after it. A ring of CAPACITY hashes therefore holds every position a
+ * repetition check needs, however long the game, and a check scans back no further than the halfmove clock.
+ */
+final class PositionHistory {
+    // More than the 100 plies of the fifty-move rule; a power of two
+    static final int CAPACITY = 128;
+    // Plies without a capture or pawn move that draw the game
+    static final int FIFTY_MOVES = 100;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private final long[] hashes = new long[CAPACITY];
+    private       int    count;          // Positions added since start
+    private       int    halfmoveClock;  // Plies since the last capture or pawn move
+
+    /**
+     * @return Whether start() was not called yet
+     */
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Forget all positions and start from one, keeping the halfmove clock
+     *
+     * @param hash Hash of the position
+     */
+    void start(long hash) {
+        count = 0;
+        hashes[count++ & MASK] = hash;
+    }
+
+    /**
+     * Set the plies since the last capture or pawn move, e.g. from a FEN
+     */
+    void setHalfmoveClock(int halfmoveClock) {
+        this.halfmoveClock = halfmoveClock;
+    }
+
+    int halfmoveClock() {
+        return halfmoveClock;
+    }
+
+    /**
+     * Add the position after a move
+     *
+     * @param hash         Hash of the position
+     * @param irreversible Whether the move was a capture or pawn move
+     */
+    void add(long hash, boolean irreversible) {
+        halfmoveClock = irreversible ? 0 : halfmoveClock + 1;
+        hashes[count++ & MASK] = hash;
+    }
+
+    /**
+     * @param pliesBack 0 for the current position
+     * @return Hash of an earlier position; only positions since the last irreversible move are kept
+     */
+    long hash(int pliesBack) {
+        return hashes[count - 1 - pliesBack & MASK];
+    }
+
+    /**
+     * @return Number of earlier positions that may still repeat: since the last irreversible move, and kept
+     */
+    int reversiblePlies() {
+        return Math.min(halfmoveClock, Math.min(count - 1, CAPACITY - 1));
+    }
+
+    /**
+     * @return How often the current position occurred before
+     */
+    int repetitions() {
+        long hash        = hash(0);
+        int  repetitions = 0;
+        int  reversible  = reversiblePlies();
+
+        // Only positions with the same side to move
+        for (int back = 4; back <= reversible; back += 2) {
+            if (hashes[count - 1 - back & MASK] == hash) repetitions++;
+        }
+        return repetitions;
+    }
+
+    /**
+     * @return Rule that draws the game in the current position, null if none
+     */
+    String drawReason() {
+        if (halfmoveClock >= FIFTY_MOVES) return "fifty-move rule";
+        if (halfmoveClock >= 8 && repetitions() >= 2) return "threefold repetition";
+        return null;
+    }
+
+    void copyFrom(PositionHistory other) {
+        System.arraycopy(other.hashes, 0, hashes, 0, CAPACITY);
+        count         = other.count;
+        halfmoveClock = other.halfmoveClock;
+    }
+}
@@ -0,0 +1,140 @@
+import javax.swing.*;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Window to step through a game
+ * <p>
+ * Positions come from a GameReplay, so jumping to any ply with the slider costs one keyframe and a few moves.
+ */
+class ReplayViewer extends JDialog {
+    // Delays between moves when playing, in ms
+    private final static int[]    speeds        = {2000, 1000, 500, 250, 100};
+    private final static String[] speedLabels   = {"2 s", "1 s", "0.5 s", "0.25 s", "0.1 s"};
+
+    private final GameReplay replay;
+    private final String[]   san;
+    private final BoardView  board      = new BoardView(50, null);
+    private final JLabel     labelMove  = new JLabel();
+    private final JSlider    slider;
+    private final JButton    buttonPlay = new JButton("Play");
+    private final Timer      timer;
+
+    private int ply = -1;
+
+    /**
+     * @param parent Owner window
+     * @param start  Board at the start of the game; not modified
+     * @param moves  Moves of the game
+     */
+    ReplayViewer(JFrame parent, Board start, List<Move> moves) {
+        super(parent, "Replay", false);
+
+        replay = new GameReplay(start, moves, GameReplay.DEFAULT_INTERVAL);
+
+        // Move texts, from one pass over the game
+        san = new String[moves.size()];
+        Board position = Board.copyOf(start);
+        for (int i = 0; i < moves.size(); i++) {
+            Move move = moves.get(i);
+            san[i] = (position.turnColor == ChessColorType.White ? position.turnCount + ". " : position.turnCount + "... ")
+                     + San.toSan(position, move);
+            position.applyMove(move);
+        }
+
+        // Controls
+        slider = new JSlider(0, replay.getPlies(), 0);
+        slider.addChangeListener(l -> showPly(slider.getValue()));
+
+        JButton buttonFirst = new JButton("|<");
+        buttonFirst.addActionListener(l -> slider.setValue(0));
+        JButton buttonPrevious = new JButton("<");
+        buttonPrevious.addActionListener(l -> slider.setValue(ply - 1));
+        JButton buttonNext = new JButton(">");
+        buttonNext.addActionListener(l -> slider.setValue(ply + 1));
+        JButton buttonLast = new JButton(">|");
+        buttonLast.addActionListener(l -> slider.setValue(replay.getPlies()));
+
+        timer = new Timer(speeds[2], l -> {
+            if (ply >= replay.getPlies()) {
+                stop();
+                return;
+            }
+            slider.setValue(ply + 1);
+        });
+
+        JComboBox<String> comboSpeed = new JComboBox<>(speedLabels);
+        comboSpeed.setSelectedIndex(2);
+        comboSpeed.addActionListener(l -> timer.setDelay(speeds[comboSpeed.getSelectedIndex()]));
+
+        buttonPlay.addActionListener(l -> {
+            if (timer.isRunning()) {
+                stop();
+            } else {
+                if (ply >= replay.getPlies()) slider.setValue(0);
+                timer.start();
+                buttonPlay.setText("Pause");
+            }
+        });
+
+        JPanel panelButtons = new JPanel();
+        panelButtons.add(buttonFirst);
+        panelButtons.add(buttonPrevious);
+        panelButtons.add(buttonPlay);
+        panelButtons.add(buttonNext);
+        panelButtons.add(buttonLast);
+        panelButtons.add(new JLabel("Speed"));
+        panelButtons.add(comboSpeed);
+
+        JPanel panelControls = new JPanel(new BorderLayout());
+        panelControls.add(labelMove, BorderLayout.NORTH);
+        panelControls.add(slider, BorderLayout.CENTER);
+        panelControls.add(panelButtons, BorderLayout.SOUTH);
+
+        JPanel panelMain = new JPanel(new BorderLayout(0, 10));
+        panelMain.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        panelMain.add(board, BorderLayout.CENTER);
+        panelMain.add(panelControls, BorderLayout.SOUTH);
+
+        add(panelMain);
+        pack();
+        setResizable(false);
+        setLocationRelativeTo(parent);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        showPly(0);
+    }
+
+    @Override
+    public void dispose() {
+        timer.stop();
+        super.dispose();
+    }
+
+    private void stop() {
+        timer.stop();
+        buttonPlay.setText("Play");
+    }
+
+    /**
+     * Show the position after a number of moves
+     */
+    private void showPly(int newPly) {
+        newPly = Math.max(0, Math.min(newPly, replay.getPlies()));
+        if (newPly == ply) return;
+        ply = newPly;
+
+        Board position = replay.positionAt(ply);
+        Move  lastMove = ply > 0 ? replay.moveAt(ply - 1) : null;
+
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                Piece piece = position.pieces.get(Coordinates.of(row, col));
+                board.setSprite(row, col, piece != null ? BoardView.spriteIndex(piece) : 0);
+            }
+        }
+        board.setHighlighted(lastMove == null ? 0 : 1L << lastMove.src.square | 1L << lastMove.dest.square);
+
+        labelMove.setText(ply == 0 ? "Start position" : "Ply " + ply + " / " + replay.getPlies() + ": " + san[ply - 1]);
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Standard algebraic notation (SAN) of moves, as used in PGN
+ */
+final class San {
+
+    private San() {
+    }
+
+    /**
+     * @param type Piece type
+     * @return Upper case SAN letter of the piece, ' ' for pawns
+     */
+    static char pieceLetter(ChessPieceType type) {
+        switch (type) {
+            case King:
+                return 'K';
+            case Queen:
+                return 'Q';
+            case Rook:
+                return 'R';
+            case Bishop:
+                return 'B';
+            case Knight:
+                return 'N';
+            default:
+                return ' ';
+        }
+    }
+
+    /**
+     * @param letter Upper case SAN letter
+     * @return Piece type of the letter, null if not a piece letter
+     */
+    static ChessPieceType pieceType(char letter) {
+        switch (letter) {
+            case 'K':
+                return ChessPieceType.King;
+            case 'Q':
+                return ChessPieceType.Queen;
+            case 'R':
+                return ChessPieceType.Rook;
+            case 'B':
+                return ChessPieceType.Bishop;
+            case 'N':
+                return ChessPieceType.Knight;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Write a move in SAN
+     *
+     * @param board Board before the move
+     * @param move  Move to write
+     * @return Move in SAN
+     */
+    static String toSan(Board board, Move move) {
+        Piece         piece   = board.pieces.get(move.src);
+        boolean       capture = board.pieces.containsKey(move.dest) || Board.isEnPassant(board.pieces, move.src, move.dest);
+        StringBuilder sb      = new StringBuilder(8);
+
+        if (Board.isCastling(board.pieces, move.src, move.dest)) return move.dest.col > 4 ? "O-O" : "O-O-O";
+
+        if (piece.type == ChessPieceType.Pawn) {
+            if (capture) sb.append((char) ('a' + move.src.col)).append('x');
+            sb.append(move.dest);
+            if (move.promotion != null) sb.append('=').append(pieceLetter(move.promotion));
+            return sb.toString();
+        }
+
+        sb.append(pieceLetter(piece.type));
+
+        // Disambiguate between pieces of the same type reaching dest
+        boolean ambiguous = false, sameCol = false, sameRow = false;
+        for (Piece other : board.pieces.values()) {
+            if (other == piece || other.type != piece.type || other.color != piece.color) continue;
+            if (!other.getPossibleMovements().contains(move.dest)) continue;
+
+            ambiguous = true;
+            if (other.pos.col == move.src.col) sameCol = true;
+            if (other.pos.row == move.src.row) sameRow = true;
+        }
+
+        if (ambiguous) {
+            if (!sameCol) {
+                sb.append((char) ('a' + move.src.col));
+            } else if (!sameRow) {
+                sb.append((char) ('8' - move.src.row));
+            } else {
+                sb.append(move.src);
+            }
+        }
+
+        if (capture) sb.append('x');
+        sb.append(move.dest);
+
+        return sb.toString();
+    }
+
+    /**
+     * Parse a move in SAN
+     * <p>
+     * Check and annotation suffixes are ignored. If several pieces can make the move, pieces that would leave
+     * their king capturable are not considered, as standard notation does not disambiguate against them.
+     *
+     * @param board Board before the move
+     * @param text  Move in SAN
+     * @return Move, null if invalid or not possible on the board
+     */
+    static Move parse(Board board, CharSequence text) {
+        int end = text.length();
+        while (end > 0 && isSuffix(text.charAt(end - 1))) end--;
+        if (end < 2) return null;
+
+        // Castling, also written with zeros
+        String castling = text.subSequence(0, end).toString().replace('0', 'O');
+        if (castling.equals("O-O") || castling.equals("O-O-O")) {
+            int         row  = board.turnColor == ChessColorType.White ? 7 : 0;
+            Coordinates src  = Coordinates.of(row, 4);
+            Coordinates dest = Coordinates.of(row, castling.length() == 3 ? 6 : 2);
+
+            return board.pieces.get(src) instanceof King && board.isLegalMove(src, dest) ? new Move(src, dest) : null;
+        }
+
+        // Promotion
+        ChessPieceType promotion = null;
+        ChessPieceType last      = pieceType(text.charAt(end - 1));
+        if (last != null) {
+            if (last == ChessPieceType.King) return null;
+
+            promotion = last;
+            end--;
+            if (end > 0 && text.charAt(end - 1) == '=') end--;
+            if (end < 2) return null;
+        }
+
+        // Destination
+        Coordinates dest = Coordinates.of('8' - text.charAt(end - 1), text.charAt(end - 2) - 'a');
+        if (!dest.isWithinRange()) return null;
+
+        // Piece and disambiguation
+        int            start = 0;
+        ChessPieceType type  = pieceType(text.charAt(0));
+        if (type != null) start = 1;
+        else type = ChessPieceType.Pawn;
+
+        int fromCol = -1, fromRow = -1;
+        for (int i = start; i < end - 2; i++) {
+            char c = text.charAt(i);
+
+            if (c >= 'a' && c <= 'h') fromCol = c - 'a';
+            else if (c >= '1' && c <= '8') fromRow = '8' - c;
+            else if (c != 'x' && c != ':' && c != '-') return null;
+        }
+
+        List<Piece> candidates = new ArrayList<>(2);
+        for (Piece piece : board.pieces.values()) {
+            if (piece.color != board.turnColor || piece.type != type) continue;
+            if (fromCol >= 0 && piece.pos.col != fromCol) continue;
+            if (fromRow >= 0 && piece.pos.row != fromRow) continue;
+
+            if (piece.getPossibleMovements(board.state).contains(dest)) candidates.add(piece);
+        }
+
+        if (candidates.size() > 1) candidates.removeIf(piece -> board.leavesKingAttacked(piece.pos, dest));
+        if (candidates.size() != 1) return null;
+
+        Piece   piece    = candidates.get(0);
+        boolean promotes = type == ChessPieceType.Pawn && (dest.row == 0 || dest.row == 7);
+
+        if (promotes && promotion == null) promotion = ChessPieceType.Queen;
+        if (!promotes && promotion != null) return null;
+
+        return new Move(piece.pos, dest, promotion);
+    }
+
+    private static boolean isSuffix(char c) {
+        return c == '+' || c == '#' || c == '!' || c == '?';
+    }
+}
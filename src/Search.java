@@ -0,0 +1,473 @@
+import java.util.Arrays;
+
+/**
+ * Iterative deepening alpha-beta search
+ * <p>
+ * Keeps a transposition table of Zobrist hashes across searches, so searching a position that follows from the last
+ * one starts from what is already known. A search can be stopped from another thread at any time.
+ * <p>
+ * At the horizon a quiescence search plays on captures and promotions until the position is quiet, skipping those
+ * that lose material by static exchange evaluation or cannot bring the score near alpha, so a leaf is never scored
+ * in the middle of an exchange.
+ */
+final class Search {
+    // Score for capturing the king now; capturing it n plies later scores MATE - n
+    static final int MATE     = 30000;
+    static final int INFINITE = 32000;
+    // Scores beyond this are king captures
+    static final int MATE_BOUND = MATE - Position.MAX_DEPTH;
+    static final int MAX_PLY    = 64;
+
+    // Captures that leave the quiescence search this far below alpha even if they win their piece are skipped
+    private static final int DELTA_MARGIN = 200;
+
+    // Transposition table bound types
+    private static final int EXACT = 0;
+    private static final int LOWER = 1;
+    private static final int UPPER = 2;
+
+    /**
+     * Result of a search iteration
+     */
+    static final class Info {
+        final int     depth;
+        final int     score;   // Of the best line, for the side to move
+        final int[]   pv;      // Best line as Move.code() values
+        final int[]   scores;  // Of each line, best first
+        final int[][] pvs;     // Lines, best first, each starting with a different move
+        final long    nodes;
+        final long    quiescenceNodes;  // Part of nodes searched by the quiescence search
+        final long    nanos;
+
+        Info(int depth, int[] scores, int[][] pvs, long nodes, long quiescenceNodes, long nanos) {
+            this.depth           = depth;
+            this.score           = scores[0];
+            this.pv              = pvs[0];
+            this.scores          = scores;
+            this.pvs             = pvs;
+            this.nodes           = nodes;
+            this.quiescenceNodes = quiescenceNodes;
+            this.nanos           = nanos;
+        }
+
+        /**
+         * @return Nodes per second
+         */
+        long nps() {
+            return nanos > 0 ? nodes * 1_000_000_000L / nanos : 0;
+        }
+
+        /**
+         * @return Share of the nodes searched by the quiescence search, 0 to 1
+         */
+        double quiescenceShare() {
+            return nodes > 0 ? (double) quiescenceNodes / nodes : 0;
+        }
+    }
+
+    /**
+     * Receives the result of each completed iteration
+     */
+    interface Listener {
+        void update(Info info);
+    }
+
+    private final Evaluator evaluator;
+
+    // Transposition table: hash, and move(15 bits) << 32 | bound(2) << 24 | depth(8) << 16 | score(16)
+    private final long[] tableKeys;
+    private final long[] tableData;
+    private final int    tableMask;
+
+    // Move lists and ordering scores by ply
+    private final int[][] moves       = new int[MAX_PLY + 1][Position.MAX_MOVES];
+    private final int[][] orderScores = new int[MAX_PLY + 1][Position.MAX_MOVES];
+
+    // Root moves of earlier lines, skipped when searching the next line
+    private final int[] excluded = new int[Position.MAX_MOVES];
+    private       int   excludedCount;
+    private       int   rootBestMove;
+
+    private          Position position;
+    private volatile boolean  stopped;
+    private          long     nodes;
+    private          long     quiescenceNodes;
+    private volatile long     publishedNodes;
+
+    // Time limit of each search in nanoseconds, 0 if none; applies once the first iteration is complete
+    private long    timeLimit;
+    private long    deadline;
+    private boolean timed;
+    private boolean timeUp;
+
+    /**
+     * @param tableBits Log2 of the number of transposition table entries
+     * @param evaluator Evaluation
+     */
+    Search(int tableBits, Evaluator evaluator) {
+        this.evaluator = evaluator;
+        this.tableKeys = new long[1 << tableBits];
+        this.tableData = new long[1 << tableBits];
+        this.tableMask = (1 << tableBits) - 1;
+    }
+
+    /**
+     * Stop the running search as soon as possible; it returns the last completed iteration
+     * <p>
+     * The stop stays in effect until clearStop(), so a stop racing with the start of a search is not lost.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Allow searching again after stop()
+     */
+    void clearStop() {
+        stopped = false;
+    }
+
+    /**
+     * Limit the time of the following searches
+     * <p>
+     * A search does not start an iteration after half the limit and stops when the limit is reached, but always
+     * completes depth 1 so it has a move to return.
+     *
+     * @param nanos Time limit in nanoseconds, 0 for none
+     */
+    void setTimeLimit(long nanos) {
+        timeLimit = nanos;
+    }
+
+    /**
+     * Forget everything learned by earlier searches, e.g. before a new game
+     */
+    void clear() {
+        Arrays.fill(tableKeys, 0);
+        Arrays.fill(tableData, 0);
+    }
+
+    /**
+     * @return Nodes searched so far by the running or last search; safe to read from any thread
+     */
+    long nodes() {
+        return publishedNodes;
+    }
+
+    /**
+     * Search a position for the best line until maxDepth is completed or the search is stopped
+     *
+     * @param position Position to search; restored when the search returns
+     * @param maxDepth Deepest iteration, at most MAX_PLY
+     * @param listener Receiver of each completed iteration, may be null
+     * @return Last completed iteration, null if none completed
+     */
+    Info search(Position position, int maxDepth, Listener listener) {
+        return search(position, maxDepth, 1, listener);
+    }
+
+    /**
+     * Search a position for the best lines until maxDepth is completed or the search is stopped
+     * <p>
+     * Each iteration searches the best line, then the best line among the remaining root moves, and so on. All
+     * lines share the transposition table, so later lines mostly reuse what the earlier ones found.
+     *
+     * @param position Position to search; restored when the search returns
+     * @param maxDepth Deepest iteration, at most MAX_PLY
+     * @param lines    Number of lines, fewer if there are fewer moves
+     * @param listener Receiver of each completed iteration, may be null
+     * @return Last completed iteration, null if none completed
+     */
+    Info search(Position position, int maxDepth, int lines, Listener listener) {
+        this.position  = position;
+        this.nodes      = 0;
+        quiescenceNodes = 0;
+        publishedNodes  = 0;
+
+        long start  = System.nanoTime();
+        Info result = null;
+
+        deadline = start + timeLimit;
+        timed    = false;
+        timeUp   = false;
+
+        lines = Math.max(1, Math.min(lines, position.generate(moves[0])));
+
+        for (int depth = 1; depth <= Math.min(maxDepth, MAX_PLY); depth++) {
+            int[]   scores = new int[lines];
+            int[][] pvs    = new int[lines][];
+
+            SearchIterationEvent event                = new SearchIterationEvent();
+            long                 startNodes           = nodes;
+            long                 startQuiescenceNodes = quiescenceNodes;
+            event.begin();
+
+            excludedCount = 0;
+            for (int line = 0; line < lines && !stopped && !timeUp; line++) {
+                rootBestMove = 0;
+                scores[line] = alphaBeta(depth, -INFINITE, INFINITE, 0);
+                if (rootBestMove == 0) break;
+
+                pvs[line]                 = principalVariation(rootBestMove, depth);
+                excluded[excludedCount++] = rootBestMove;
+            }
+            if (stopped || timeUp || pvs[lines - 1] == null) break;
+
+            if (event.shouldCommit()) {
+                event.depth           = depth;
+                event.lines           = lines;
+                event.score           = scores[0];
+                event.nodes           = nodes - startNodes;
+                event.quiescenceNodes = quiescenceNodes - startQuiescenceNodes;
+                event.commit();
+            }
+
+            result = new Info(depth, scores, pvs, nodes, quiescenceNodes, System.nanoTime() - start);
+            if (listener != null) listener.update(result);
+
+            // A forced king capture cannot get better
+            if (lines == 1 && Math.abs(scores[0]) >= MATE_BOUND && MATE - Math.abs(scores[0]) <= depth) break;
+
+            // The next iteration would most likely not finish in time
+            if (timeLimit > 0) {
+                timed = true;
+                if (System.nanoTime() - start > timeLimit / 2) break;
+            }
+        }
+        excludedCount = 0;
+
+        publishedNodes = nodes;
+        return result;
+    }
+
+    private boolean isExcluded(int move) {
+        for (int i = 0; i < excludedCount; i++) if (excluded[i] == move) return true;
+        return false;
+    }
+
+    private int alphaBeta(int depth, int alpha, int beta, int ply) {
+        if (depth <= 0) return quiesce(alpha, beta, ply);
+
+        if ((++nodes & 4095) == 0) checkTime();
+        if (stopped || timeUp) return 0;
+
+        if (ply >= MAX_PLY) return evaluator.evaluate(position);
+        if (ply > 0 && position.isDraw()) return 0;
+
+        // Probe
+        int  index    = (int) position.hash & tableMask;
+        int  bestMove = 0;
+        if (tableKeys[index] == position.hash) {
+            long data = tableData[index];
+            bestMove = (int) (data >>> 32);
+
+            if (ply > 0 && (int) (data >>> 16 & 0xFF) >= depth) {
+                int score = fromTable((short) data, ply);
+                int bound = (int) (data >>> 24 & 3);
+
+                if (bound == EXACT
+                    || bound == LOWER && score >= beta
+                    || bound == UPPER && score <= alpha) return score;
+            }
+        }
+
+        int[] list  = moves[ply];
+        int   count = position.generate(list);
+        if (count == 0) return 0;
+
+        // Capturing the king ends the game
+        for (int i = 0; i < count; i++) {
+            if ((position.squares[list[i] >>> 3 & 63] & 7) == Position.KING && (ply > 0 || !isExcluded(list[i]))) {
+                if (ply == 0) rootBestMove = list[i];
+                return MATE - ply;
+            }
+        }
+
+        scoreMoves(list, orderScores[ply], count, bestMove);
+
+        int originalAlpha = alpha;
+        int bestScore     = -INFINITE;
+        for (int i = 0; i < count; i++) {
+            int move = pickNext(list, orderScores[ply], i, count);
+            if (ply == 0 && isExcluded(move)) continue;
+
+            position.make(move);
+            int score = -alphaBeta(depth - 1, -beta, -alpha, ply + 1);
+            position.unmake(move);
+            if (stopped || timeUp) return 0;
+
+            if (score > bestScore) {
+                bestScore = score;
+                bestMove  = move;
+                if (ply == 0) rootBestMove = move;
+                if (score > alpha) {
+                    alpha = score;
+                    if (alpha >= beta) break;
+                }
+            }
+        }
+
+        // Scores without the excluded root moves are not scores of the position
+        if (ply == 0 && excludedCount > 0) return bestScore;
+
+        int bound = bestScore >= beta ? LOWER : bestScore > originalAlpha ? EXACT : UPPER;
+        store(index, depth, bound, bestScore, bestMove, ply);
+
+        return bestScore;
+    }
+
+    /**
+     * Search captures and promotions until the position is quiet
+     * <p>
+     * The side to move may stand pat on the static score, unless its king is attacked, when every move is searched.
+     */
+    private int quiesce(int alpha, int beta, int ply) {
+        if ((++nodes & 4095) == 0) checkTime();
+        quiescenceNodes++;
+        if (stopped || timeUp) return 0;
+
+        if (ply >= MAX_PLY) return evaluator.evaluate(position);
+
+        boolean inCheck   = position.inCheck();
+        int     standPat  = inCheck ? -INFINITE : evaluator.evaluate(position);
+        int     bestScore = standPat;
+        if (standPat >= beta) return standPat;
+        if (standPat > alpha) alpha = standPat;
+
+        int[] list  = moves[ply];
+        int   count = inCheck ? position.generate(list) : position.generateCaptures(list);
+        if (count == 0 && inCheck) return 0;
+
+        for (int i = 0; i < count; i++) {
+            if ((position.squares[list[i] >>> 3 & 63] & 7) == Position.KING) return MATE - ply;
+        }
+
+        scoreMoves(list, orderScores[ply], count, 0);
+
+        for (int i = 0; i < count; i++) {
+            int move = pickNext(list, orderScores[ply], i, count);
+
+            if (!inCheck && (move & 7) == 0
+                && standPat + evaluator.material(position.captured(move)) + DELTA_MARGIN <= alpha) continue;
+            if (!inCheck && position.losesMaterial(move)) continue;
+
+            position.make(move);
+            int score = -quiesce(-beta, -alpha, ply + 1);
+            position.unmake(move);
+            if (stopped || timeUp) return 0;
+
+            if (score > bestScore) {
+                bestScore = score;
+                if (score > alpha) {
+                    alpha = score;
+                    if (alpha >= beta) break;
+                }
+            }
+        }
+
+        return bestScore;
+    }
+
+    private void checkTime() {
+        publishedNodes = nodes;
+        if (timed && System.nanoTime() - deadline >= 0) timeUp = true;
+    }
+
+    /**
+     * Order moves: table move first, then captures by most valuable victim and least valuable attacker
+     */
+    private void scoreMoves(int[] list, int[] scores, int count, int tableMove) {
+        for (int i = 0; i < count; i++) {
+            int move     = list[i];
+            int captured = position.captured(move);
+
+            if (move == tableMove) {
+                scores[i] = 1 << 30;
+            } else if (captured != 0) {
+                scores[i] = (1 << 20) + evaluator.material(captured) * 16
+                            - evaluator.material(position.squares[move >>> 9 & 63]) / 16;
+            } else {
+                scores[i] = (move & 7) != 0 ? 1 << 19 : 0;
+            }
+        }
+    }
+
+    /**
+     * Swap the best-scored remaining move to index i
+     */
+    private static int pickNext(int[] list, int[] scores, int i, int count) {
+        int best = i;
+        for (int j = i + 1; j < count; j++) if (scores[j] > scores[best]) best = j;
+
+        int move = list[best];
+        list[best]   = list[i];
+        scores[best] = scores[i];
+        list[i]      = move;
+        scores[i]    = 0;
+
+        return move;
+    }
+
+    private void store(int index, int depth, int bound, int score, int move, int ply) {
+        // Keep deeper results of the same position
+        if (tableKeys[index] == position.hash && (int) (tableData[index] >>> 16 & 0xFF) > depth && bound != EXACT) {
+            return;
+        }
+
+        tableKeys[index] = position.hash;
+        tableData[index] = (long) move << 32 | (long) bound << 24 | (long) depth << 16 | toTable(score, ply) & 0xFFFF;
+    }
+
+    // King capture scores are stored relative to the position, not the root
+    private static int toTable(int score, int ply) {
+        return score >= MATE_BOUND ? score + ply : score <= -MATE_BOUND ? score - ply : score;
+    }
+
+    private static int fromTable(int score, int ply) {
+        return score >= MATE_BOUND ? score - ply : score <= -MATE_BOUND ? score + ply : score;
+    }
+
+    /**
+     * Follow table moves after a root move
+     */
+    private int[] principalVariation(int rootMove, int depth) {
+        int[] line   = new int[depth];
+        int   length = 1;
+
+        line[0] = rootMove;
+        position.make(rootMove);
+        while (length < depth && !position.kingCaught) {
+            int index = (int) position.hash & tableMask;
+            if (tableKeys[index] != position.hash) break;
+
+            int move = (int) (tableData[index] >>> 32);
+            if (move == 0 || !isPseudoLegal(move, length)) break;
+
+            position.make(move);
+            line[length++] = move;
+        }
+        for (int i = length - 1; i >= 0; i--) position.unmake(line[i]);
+
+        return Arrays.copyOf(line, length);
+    }
+
+    private boolean isPseudoLegal(int move, int ply) {
+        int[] list  = moves[ply];
+        int   count = position.generate(list);
+
+        for (int i = 0; i < count; i++) if (list[i] == move) return true;
+        return false;
+    }
+
+    /**
+     * @param score Score from search
+     * @return Score as text, in pawns or as "#n" for a king capture in n moves
+     */
+    static String scoreText(int score) {
+        if (Math.abs(score) >= MATE_BOUND) {
+            int moves = (MATE - Math.abs(score)) / 2 + 1;
+            return (score > 0 ? "#" : "#-") + moves;
+        }
+        return String.format("%+.2f", score / 100.0);
+    }
+}
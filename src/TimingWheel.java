@@ -0,0 +1,177 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical hashed timing wheel
+ * <p>
+ * One thread serves any number of timeouts. Scheduling and cancelling are O(1): a timeout is hashed into a
+ * bucket of the wheel level that covers its delay, and buckets of higher levels are cascaded down as time passes.
+ * Tasks run on the wheel thread and must be short - hand longer work to another thread.
+ */
+class TimingWheel {
+
+    /**
+     * Handle of a scheduled task
+     */
+    static final class Timeout {
+        private final Runnable  task;
+        private       long      deadline;  // In ticks
+        private       Timeout   next;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task     = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task if it has not run yet
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    // Number of bits per level - 256 buckets each
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS     = 4;
+
+    // Shared wheel with 10ms resolution
+    private static TimingWheel shared;
+
+    private final long                           tickNanos;
+    private final long                           startNanos;
+    private final Timeout[][]                    buckets = new Timeout[LEVELS][WHEEL_SIZE];
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread                         worker;
+
+    // Next tick to process, only accessed by the worker
+    private long nextTick = 0;
+
+    /**
+     * @param tick     Resolution of the wheel
+     * @param unit     Unit of tick
+     * @param name     Name of the worker thread
+     */
+    TimingWheel(long tick, TimeUnit unit, String name) {
+        this.tickNanos  = unit.toNanos(tick);
+        this.startNanos = System.nanoTime();
+
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @return Wheel shared by all game clocks of this process
+     */
+    static synchronized TimingWheel shared() {
+        if (shared == null) shared = new TimingWheel(10, TimeUnit.MILLISECONDS, "TimingWheel");
+        return shared;
+    }
+
+    /**
+     * Schedule a task
+     *
+     * @param delay Delay until the task runs
+     * @param unit  Unit of delay
+     * @param task  Task to run on the wheel thread
+     * @return Handle to cancel the task
+     */
+    Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        long elapsed  = System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay));
+        long deadline = (elapsed + tickNanos - 1) / tickNanos;
+
+        Timeout timeout = new Timeout(task, deadline);
+        pending.add(timeout);
+
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long currentTick = (System.nanoTime() - startNanos) / tickNanos;
+
+            // Take timeouts scheduled by other threads
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                if (!timeout.cancelled) add(timeout);
+            }
+
+            while (nextTick <= currentTick) {
+                processTick();
+            }
+
+            LockSupport.parkNanos(tickNanos);
+        }
+    }
+
+    /**
+     * Put a timeout in the bucket of the level covering its delay
+     */
+    private void add(Timeout timeout) {
+        if (timeout.deadline < nextTick) timeout.deadline = nextTick;
+
+        long delta = timeout.deadline - nextTick;
+        int  level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) level++;
+
+        // Clamp timeouts beyond the range of the top level
+        long maxDelta = (1L << (WHEEL_BITS * LEVELS)) - 1;
+        if (delta > maxDelta) timeout.deadline = nextTick + maxDelta;
+
+        int index = (int) (timeout.deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+        timeout.next           = buckets[level][index];
+        buckets[level][index] = timeout;
+    }
+
+    private void processTick() {
+        int index = (int) nextTick & WHEEL_MASK;
+
+        // Cascade higher levels down when a lower level wraps around
+        for (int level = 1; level < LEVELS && cascadeIndex(level - 1) == 0; level++) {
+            int     higherIndex = (int) (nextTick >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+            Timeout timeout     = buckets[level][higherIndex];
+            buckets[level][higherIndex] = null;
+
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (!timeout.cancelled) add(timeout);
+                timeout = next;
+            }
+        }
+
+        // Expire timeouts of this tick
+        Timeout timeout = buckets[0][index];
+        buckets[0][index] = null;
+
+        while (timeout != null) {
+            Timeout next = timeout.next;
+
+            if (!timeout.cancelled) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.error("Timeout task failed", e);
+                }
+            }
+            timeout = next;
+        }
+
+        nextTick++;
+    }
+
+    /**
+     * @return Index of nextTick within a level
+     */
+    private int cascadeIndex(int level) {
+        return (int) (nextTick >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+    }
+}
@@ -0,0 +1,497 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless engine-vs-engine tournament
+ * <p>
+ * Plays games between two engine settings on a fixed pool of threads, one game per thread at a time. Each opening is
+ * played twice with colors reversed. Every thread keeps its own Position and two Searches for all its games, so a game
+ * allocates little beyond its move list. The match stops early once a sequential probability ratio test decides
+ * whether engine 1 is stronger by elo1 or not stronger than by elo0.
+ * <p>
+ * Usage: java Tournament [--games N] [--threads N] [--time-control MINUTES+INCREMENT] [--depth1 D] [--depth2 D]
+ * [--params1 FILE] [--params2 FILE] [--nnue1 FILE] [--nnue2 FILE] [--openings FILE.pgn] [--opening-plies N] [--max-plies N] [--elo0 E] [--elo1 E] [--alpha A] [--beta B]
+ * [--hash BITS] [--pgn OUT.pgn]
+ * <p>
+ * Without a time control every move is searched to the given depth. Games reaching max plies are drawn.
+ */
+public class Tournament {
+
+    /**
+     * Settings of one engine
+     */
+    static final class Engine {
+        final String    name;
+        final Evaluator evaluator;
+        final int       depth;
+
+        Engine(String name, Evaluator evaluator, int depth) {
+            this.name      = name;
+            this.evaluator = evaluator;
+            this.depth     = depth;
+        }
+    }
+
+    /**
+     * Opening: start position and the moves played from it
+     */
+    static final class Opening {
+        final Board      start;
+        final List<Move> moves;
+
+        Opening(Board start, List<Move> moves) {
+            this.start = start;
+            this.moves = moves;
+        }
+    }
+
+    /**
+     * Generalized sequential probability ratio test on wins, draws and losses
+     * <p>
+     * Uses the normal approximation of the log-likelihood ratio (Van den Bergh), with Elo on the logistic scale.
+     */
+    static final class Sprt {
+        final double elo0;
+        final double elo1;
+        final double lower;
+        final double upper;
+
+        Sprt(double elo0, double elo1, double alpha, double beta) {
+            this.elo0  = elo0;
+            this.elo1  = elo1;
+            this.lower = Math.log(beta / (1 - alpha));
+            this.upper = Math.log((1 - beta) / alpha);
+        }
+
+        /**
+         * @return Log-likelihood ratio of H1 (elo1) against H0 (elo0)
+         */
+        double llr(long wins, long draws, long losses) {
+            long n = wins + draws + losses;
+            if (n == 0) return 0;
+
+            double score    = (wins + draws / 2.0) / n;
+            double variance = (wins * sq(1 - score) + draws * sq(0.5 - score) + losses * sq(score)) / n;
+            if (variance <= 0) return 0;
+
+            double s0 = expectedScore(elo0), s1 = expectedScore(elo1);
+            return (s1 - s0) * (2 * score - s0 - s1) / (2 * variance / n);
+        }
+
+        private static double sq(double x) {
+            return x * x;
+        }
+    }
+
+    // Result of a game for engine 1
+    private static final int WIN  = 0;
+    private static final int DRAW = 1;
+    private static final int LOSS = 2;
+
+    private final Engine                engine1;
+    private final Engine                engine2;
+    private final GameClock.TimeControl timeControl;
+    private final List<Opening>         openings;
+    private final int                   maxPlies;
+    private final int                   hashBits;
+    private final Sprt                  sprt;
+
+    // Results, guarded by this
+    private final long[]    results = new long[3];
+    private       PgnWriter pgn;
+    private       String    decision;
+
+    private final AtomicInteger nextGame = new AtomicInteger();
+    private volatile boolean    finished = false;
+
+    Tournament(Engine engine1, Engine engine2, GameClock.TimeControl timeControl, List<Opening> openings, int maxPlies,
+               int hashBits, Sprt sprt) {
+        this.engine1     = engine1;
+        this.engine2     = engine2;
+        this.timeControl = timeControl;
+        this.openings    = openings;
+        this.maxPlies    = maxPlies;
+        this.hashBits    = hashBits;
+        this.sprt        = sprt;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int    games        = 1000;
+        int    threads      = Runtime.getRuntime().availableProcessors();
+        int    depth1       = 4;
+        int    depth2       = 4;
+        int    openingPlies = 8;
+        int    maxPlies     = 300;
+        int    hashBits     = 16;
+        double elo0 = 0, elo1 = 10, alpha = 0.05, beta = 0.05;
+        Path   openingFile  = null;
+        Path   pgnFile      = null;
+        int[]  params1      = Evaluator.defaultParams();
+        int[]  params2      = Evaluator.defaultParams();
+        Path   network1     = null;
+        Path   network2     = null;
+
+        GameClock.TimeControl timeControl = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+
+            switch (args[i]) {
+                case "--games":
+                    games = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--time-control":
+                    timeControl = GameClock.TimeControl.parse(value);
+                    break;
+                case "--depth1":
+                    depth1 = Integer.parseInt(value);
+                    break;
+                case "--depth2":
+                    depth2 = Integer.parseInt(value);
+                    break;
+                case "--params1":
+                    params1 = Evaluator.readParams(Path.of(value));
+                    break;
+                case "--params2":
+                    params2 = Evaluator.readParams(Path.of(value));
+                    break;
+                case "--nnue1":
+                    network1 = Path.of(value);
+                    break;
+                case "--nnue2":
+                    network2 = Path.of(value);
+                    break;
+                case "--openings":
+                    openingFile = Path.of(value);
+                    break;
+                case "--opening-plies":
+                    openingPlies = Integer.parseInt(value);
+                    break;
+                case "--max-plies":
+                    maxPlies = Integer.parseInt(value);
+                    break;
+                case "--elo0":
+                    elo0 = Double.parseDouble(value);
+                    break;
+                case "--elo1":
+                    elo1 = Double.parseDouble(value);
+                    break;
+                case "--alpha":
+                    alpha = Double.parseDouble(value);
+                    break;
+                case "--beta":
+                    beta = Double.parseDouble(value);
+                    break;
+                case "--hash":
+                    hashBits = Integer.parseInt(value);
+                    break;
+                case "--pgn":
+                    pgnFile = Path.of(value);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        // With a time control the clock limits the search
+        if (timeControl != null) {
+            if (!contains(args, "--depth1")) depth1 = Search.MAX_PLY;
+            if (!contains(args, "--depth2")) depth2 = Search.MAX_PLY;
+        }
+
+        List<Opening> openings = openingFile != null ? readOpenings(openingFile, openingPlies) : defaultOpenings();
+        if (openings.isEmpty()) {
+            System.err.println("No openings");
+            return;
+        }
+
+        Evaluator  evaluator1 = network1 != null ? Evaluator.network(network1) : new Evaluator(params1);
+        Evaluator  evaluator2 = network2 != null ? Evaluator.network(network2) : new Evaluator(params2);
+        Engine     engine1    = new Engine("Engine 1", evaluator1, depth1);
+        Engine     engine2    = new Engine("Engine 2", evaluator2, depth2);
+        Tournament tournament = new Tournament(engine1, engine2, timeControl, openings, maxPlies, hashBits,
+                                               new Sprt(elo0, elo1, alpha, beta));
+
+        System.out.println("Playing up to " + games + " games on " + threads + " threads, "
+                           + (timeControl != null ? "time control " + timeControl : "depth " + depth1 + " vs " + depth2)
+                           + ", " + openings.size() + " openings, SPRT elo0 " + elo0 + " elo1 " + elo1);
+
+        Writer out = pgnFile != null ? Files.newBufferedWriter(pgnFile, StandardCharsets.ISO_8859_1) : null;
+        try {
+            if (out != null) tournament.pgn = new PgnWriter(out);
+            tournament.run(games, threads);
+        } finally {
+            if (out != null) out.close();
+        }
+    }
+
+    private static boolean contains(String[] args, String option) {
+        for (String arg : args) if (arg.equals(option)) return true;
+        return false;
+    }
+
+    /**
+     * Play until the SPRT decides or all games are played
+     *
+     * @param games   Maximum number of games
+     * @param threads Number of games played at a time
+     */
+    void run(int games, int threads) throws InterruptedException {
+        long            start = System.nanoTime();
+        ExecutorService pool  = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < threads; i++) pool.execute(() -> playGames(games));
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        synchronized (this) {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long   played  = results[WIN] + results[DRAW] + results[LOSS];
+
+            System.out.println(summary());
+            System.out.printf("%d games in %.1f s = %.1f games/s%n", played, seconds, played / seconds);
+            System.out.println(decision != null ? decision : "SPRT undecided after " + played + " games");
+        }
+    }
+
+    /**
+     * Worker loop: take game numbers until done
+     */
+    private void playGames(int games) {
+        Position position = new Position();
+        Search   search1  = new Search(hashBits, engine1.evaluator.copy());
+        Search   search2  = new Search(hashBits, engine2.evaluator.copy());
+        int[]    moves    = new int[maxPlies];
+
+        int game;
+        while (!finished && (game = nextGame.getAndIncrement()) < games) {
+            // Each opening twice, engine 1 playing White first
+            Opening opening      = openings.get(game / 2 % openings.size());
+            boolean engine1White = game % 2 == 0;
+
+            search1.clear();
+            search2.clear();
+
+            try {
+                playGame(game, opening, engine1White, position, search1, search2, moves);
+            } catch (IOException e) {
+                Log.error("Game not written", e);
+                finished = true;
+            }
+        }
+    }
+
+    private void playGame(int game, Opening opening, boolean engine1White, Position position, Search search1,
+                          Search search2, int[] moves) throws IOException {
+        Board board = Board.copyOf(opening.start);
+        for (Move move : opening.moves) board.applyMove(move);
+        position.set(board);
+
+        GameClock clock = timeControl != null ? new GameClock(timeControl, null, null) : null;
+        if (clock != null) clock.start(board.turnColor);
+
+        int    count       = 0;
+        String result      = "1/2-1/2";
+        String termination = "adjudication";
+
+        while (count < maxPlies) {
+            boolean        whiteToMove = position.side == 0;
+            ChessColorType mover       = whiteToMove ? ChessColorType.White : ChessColorType.Black;
+            boolean        engine1Move = whiteToMove == engine1White;
+            Search         search      = engine1Move ? search1 : search2;
+
+            if (clock != null) search.setTimeLimit(moveTime(clock.remaining(mover)) * 1_000_000L);
+
+            Search.Info info = search.search(position, (engine1Move ? engine1 : engine2).depth, null);
+            if (info == null) {
+                termination = "no moves";
+                break;
+            }
+
+            if (clock != null) {
+                if (clock.getFlagged() != null) {
+                    result      = whiteToMove ? "0-1" : "1-0";
+                    termination = "time forfeit";
+                    break;
+                }
+                clock.press();
+            }
+
+            int move = info.pv[0];
+            moves[count++] = move;
+            position.make(move);
+            position.resetDepth();
+
+            if (position.kingCaught) {
+                result      = whiteToMove ? "1-0" : "0-1";
+                termination = "normal";
+                break;
+            }
+
+            // Drawn by repetition or the fifty-move rule
+            if (position.history.drawReason() != null) {
+                termination = "normal";
+                break;
+            }
+        }
+
+        record(game, opening, engine1White, moves, count, result, termination);
+    }
+
+    /**
+     * Time to spend on a move: a thirtieth of the remaining time plus most of the increment, at most half
+     */
+    private long moveTime(long remainingMillis) {
+        long time = remainingMillis / 30 + timeControl.incrementMillis * 3L / 4;
+        return Math.max(1, Math.min(time, remainingMillis / 2));
+    }
+
+    private synchronized void record(int game, Opening opening, boolean engine1White, int[] moves, int count,
+                                     String result, String termination) throws IOException {
+        int outcome = result.equals("1/2-1/2") ? DRAW : result.equals("1-0") == engine1White ? WIN : LOSS;
+        results[outcome]++;
+
+        if (pgn != null) {
+            List<Move> list = new ArrayList<>(opening.moves.size() + count);
+            list.addAll(opening.moves);
+            for (int i = 0; i < count; i++) list.add(Move.ofCode(moves[i]));
+
+            Map<String, String> tags = new LinkedHashMap<>();
+            tags.put("Event", "Tournament");
+            tags.put("Site", "Online Chess");
+            tags.put("Date", LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy.MM.dd")));
+            tags.put("Round", String.valueOf(game + 1));
+            tags.put("White", (engine1White ? engine1 : engine2).name);
+            tags.put("Black", (engine1White ? engine2 : engine1).name);
+            tags.put("Termination", termination);
+            if (timeControl != null) tags.put("TimeControl", seconds(timeControl.baseMillis) + "+"
+                                                             + seconds(timeControl.incrementMillis));
+            pgn.writeGame(tags, opening.start, list, result);
+        }
+
+        long played = results[WIN] + results[DRAW] + results[LOSS];
+        if (played % 100 == 0) System.out.println(summary());
+
+        if (decision != null) return;
+
+        double llr = sprt.llr(results[WIN], results[DRAW], results[LOSS]);
+        if (llr >= sprt.upper) {
+            decision = "H1 accepted after " + played + " games: engine 1 is stronger by at least " + sprt.elo1 + " Elo";
+        } else if (llr <= sprt.lower) {
+            decision = "H0 accepted after " + played + " games: engine 1 is not stronger by more than " + sprt.elo0
+                       + " Elo";
+        }
+        if (decision != null) finished = true;
+    }
+
+    /**
+     * @return Results, Elo difference with 95% interval and LLR so far
+     */
+    private String summary() {
+        long   wins = results[WIN], draws = results[DRAW], losses = results[LOSS];
+        long   n    = wins + draws + losses;
+        double score    = n > 0 ? (wins + draws / 2.0) / n : 0.5;
+        double variance = n > 0 ? (wins * sq(1 - score) + draws * sq(0.5 - score) + losses * sq(score)) / n : 0;
+        double margin   = 1.96 * Math.sqrt(variance / Math.max(n, 1));
+
+        return String.format("Games %d: +%d =%d -%d  score %.1f%%  Elo %+.1f [%+.1f, %+.1f]  LLR %.2f (%.2f, %.2f)",
+                             n, wins, draws, losses, score * 100, elo(score), elo(score - margin), elo(score + margin),
+                             sprt.llr(wins, draws, losses), sprt.lower, sprt.upper);
+    }
+
+    private static double sq(double x) {
+        return x * x;
+    }
+
+    /**
+     * @return Milliseconds as seconds, without a fraction if whole
+     */
+    private static String seconds(int millis) {
+        return millis % 1000 == 0 ? String.valueOf(millis / 1000) : String.valueOf(millis / 1000.0);
+    }
+
+    /**
+     * @return Expected score of a player the given Elo stronger
+     */
+    static double expectedScore(double elo) {
+        return 1 / (1 + Math.pow(10, -elo / 400));
+    }
+
+    /**
+     * @return Elo difference of an expected score
+     */
+    static double elo(double score) {
+        score = Math.max(1e-6, Math.min(1 - 1e-6, score));
+        return -400 * Math.log10(1 / score - 1);
+    }
+
+    /**
+     * Read the first moves of each game of a PGN file
+     *
+     * @param path  PGN file
+     * @param plies Number of moves to keep
+     * @return Openings, without games that could not be replayed
+     */
+    static List<Opening> readOpenings(Path path, int plies) throws IOException {
+        List<Opening> openings = new ArrayList<>();
+
+        try (PgnReader reader = new PgnReader(path)) {
+            reader.readAll(new PgnReplay() {
+                private Board      start;
+                private List<Move> moves = new ArrayList<>();
+
+                @Override
+                protected void onMove(Board board, Move move) {
+                    if (start == null) start = Board.copyOf(board);
+                    if (moves.size() < plies) moves.add(move);
+                }
+
+                @Override
+                protected void onGameEnd(String result, boolean valid) {
+                    if (valid && start != null && moves.size() == plies) openings.add(new Opening(start, moves));
+                    start = null;
+                    moves = new ArrayList<>();
+                }
+            });
+        }
+
+        return openings;
+    }
+
+    /**
+     * @return A few common openings of four moves each
+     */
+    static List<Opening> defaultOpenings() {
+        String[] lines = {
+            "e2e4 e7e5 g1f3 b8c6", "e2e4 c7c5 g1f3 d7d6", "e2e4 e7e6 d2d4 d7d5", "e2e4 c7c6 d2d4 d7d5",
+            "d2d4 d7d5 c2c4 e7e6", "d2d4 g8f6 c2c4 g7g6", "d2d4 g8f6 c2c4 e7e6", "c2c4 e7e5 b1c3 g8f6",
+            "g1f3 d7d5 g2g3 g8f6", "e2e4 e7e5 f1c4 g8f6", "d2d4 d7d5 c2c4 c7c6", "e2e4 d7d5 e4d5 d8d5"
+        };
+
+        List<Opening> openings = new ArrayList<>(lines.length);
+        for (String line : lines) {
+            List<Move> moves = new ArrayList<>();
+            for (String move : line.split(" ")) moves.add(Move.parse(move));
+            openings.add(new Opening(Board.initial(), moves));
+        }
+
+        return openings;
+    }
+}
@@ -0,0 +1,399 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Texel-style tuner of the evaluation parameters
+ * <p>
+ * Fits the parameters so that a sigmoid of the static evaluation predicts the results of the games the positions
+ * come from. The evaluation is linear in the parameters, so each position is packed as the piece-square slots of its
+ * pieces: one row of 32 shorts, a cache line, per position. A pass looks up each slot in a table of current weights
+ * that fits in L1 and streams the rows sequentially, split over a fork-join pool. Gradient descent uses Adam on the
+ * mean squared error.
+ * <p>
+ * Usage: java Tuner --data FILE [--epochs N] [--rate R] [--skip-plies N] [--threads N] [--start PARAMS] [--out PARAMS]
+ * <p>
+ * Data is a PGN file, whose positions are labelled with the result of their game, or a text file of lines
+ * "FEN result", with the result as 1-0, 0-1, 1/2-1/2 or a score such as [0.5].
+ */
+public class Tuner {
+
+    /**
+     * Labelled positions in primitive arrays
+     */
+    static final class Dataset {
+        // Slots per position: piece code << 6 | square, 0 for none
+        static final int SLOTS = 32;
+
+        short[] slots   = new short[SLOTS * 1024];
+        float[] results = new float[1024];
+        int     size;
+
+        /**
+         * Pack a position
+         *
+         * @param board  Position
+         * @param result Score of White, 0 to 1
+         */
+        void add(Board board, float result) {
+            if (size == results.length) {
+                slots   = Arrays.copyOf(slots, slots.length * 2);
+                results = Arrays.copyOf(results, results.length * 2);
+            }
+
+            int offset = size * SLOTS, count = 0;
+            for (Piece piece : board.pieces.values()) {
+                if (count == SLOTS) break;
+                slots[offset + count++] = (short) (Position.code(piece.color, piece.type) << 6 | piece.pos.square);
+            }
+            Arrays.fill(slots, offset + count, offset + SLOTS, (short) 0);
+
+            results[size++] = result;
+        }
+    }
+
+    /**
+     * Error and gradient over a range of positions
+     */
+    private static final class Pass extends RecursiveTask<double[]> {
+        // Positions per task
+        private static final int THRESHOLD = 16384;
+
+        private final Dataset data;
+        private final float[] weights;
+        private final double  k;
+        private final boolean gradient;
+        private final int     from;
+        private final int     to;
+
+        Pass(Dataset data, float[] weights, double k, boolean gradient, int from, int to) {
+            this.data     = data;
+            this.weights  = weights;
+            this.k        = k;
+            this.gradient = gradient;
+            this.from     = from;
+            this.to       = to;
+        }
+
+        /**
+         * @return Sum of squared errors at index WEIGHTS, and its gradient by weight if requested
+         */
+        @Override
+        protected double[] compute() {
+            if (to - from > THRESHOLD) {
+                int  mid  = (from + to) >>> 1;
+                Pass left = new Pass(data, weights, k, gradient, from, mid);
+                left.fork();
+                double[] right = new Pass(data, weights, k, gradient, mid, to).compute();
+                double[] sum   = left.join();
+
+                for (int i = 0; i < sum.length; i++) sum[i] += right[i];
+                return sum;
+            }
+
+            double[] result  = new double[WEIGHTS + 1];
+            short[]  slots   = data.slots;
+            float[]  results = data.results;
+            double   error   = 0;
+            double   scale   = k * Math.log(10) / 400;
+
+            for (int i = from; i < to; i++) {
+                int   offset = i * Dataset.SLOTS;
+                float eval   = 0;
+                for (int j = 0; j < Dataset.SLOTS; j++) eval += weights[slots[offset + j]];
+
+                double predicted = 1 / (1 + Math.exp(-scale * eval));
+                double diff      = results[i] - predicted;
+                error += diff * diff;
+
+                if (gradient) {
+                    // d(diff^2)/d(eval)
+                    double g = -2 * diff * predicted * (1 - predicted) * scale;
+                    for (int j = 0; j < Dataset.SLOTS; j++) result[slots[offset + j]] += g;
+                }
+            }
+
+            result[WEIGHTS] = error;
+            return result;
+        }
+    }
+
+    // Weights by slot, as in Evaluator's table: piece code << 6 | square
+    private static final int WEIGHTS = 16 * 64;
+
+    private final Dataset      data;
+    private final ForkJoinPool pool;
+
+    Tuner(Dataset data, int threads) {
+        this.data = data;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path   dataFile  = null;
+        Path   startFile = null;
+        Path   outFile   = Path.of("params.txt");
+        int    epochs    = 200;
+        double rate      = 2;
+        int    skipPlies = 8;
+        int    threads   = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+
+            switch (args[i]) {
+                case "--data":
+                    dataFile = Path.of(value);
+                    break;
+                case "--start":
+                    startFile = Path.of(value);
+                    break;
+                case "--out":
+                    outFile = Path.of(value);
+                    break;
+                case "--epochs":
+                    epochs = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "--skip-plies":
+                    skipPlies = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        if (dataFile == null) {
+            System.err.println("Usage: Tuner --data FILE [--epochs N] [--rate R] [--skip-plies N] [--threads N]"
+                               + " [--start PARAMS] [--out PARAMS]");
+            return;
+        }
+
+        long    start = System.nanoTime();
+        Dataset data  = dataFile.toString().endsWith(".pgn") ? readPgn(dataFile, skipPlies) : readText(dataFile);
+        System.out.printf("Loaded %d positions in %.1f s%n", data.size, (System.nanoTime() - start) / 1e9);
+        if (data.size == 0) return;
+
+        int[] initial = startFile != null ? Evaluator.readParams(startFile) : Evaluator.defaultParams();
+        Tuner tuner   = new Tuner(data, threads);
+
+        double k = tuner.fitScale(initial);
+        System.out.printf("Scale K = %.3f, error %.6f%n", k, tuner.error(initial, k));
+
+        int[] tuned = tuner.tune(initial, k, epochs, rate);
+        Evaluator.writeParams(outFile, tuned);
+        System.out.println("Wrote " + outFile);
+    }
+
+    /**
+     * Fill the weights by slot from parameters, the same way Evaluator fills its table
+     */
+    static void weights(double[] params, float[] weights) {
+        Arrays.fill(weights, 0);
+
+        for (int type = 0; type < 6; type++) {
+            for (int square = 0; square < 64; square++) {
+                int mirrored = (7 - square / 8) * 8 + square % 8;
+
+                weights[(type + 1) << 6 | square] = (float) (params[Evaluator.MATERIAL + type]
+                                                             + params[Evaluator.PSQT + type * 64 + square]);
+                weights[(type + 1 + Position.BLACK) << 6 | square] = (float) -(params[Evaluator.MATERIAL + type]
+                                                                               + params[Evaluator.PSQT + type * 64 + mirrored]);
+            }
+        }
+    }
+
+    /**
+     * @return Mean squared error of the parameters
+     */
+    double error(int[] params, double k) {
+        float[] weights = new float[WEIGHTS];
+        weights(Arrays.stream(params).asDoubleStream().toArray(), weights);
+
+        return pool.invoke(new Pass(data, weights, k, false, 0, data.size))[WEIGHTS] / data.size;
+    }
+
+    /**
+     * Find the scale of the sigmoid that fits the parameters best, by golden section search
+     */
+    double fitScale(int[] params) {
+        double a = 0.01, b = 3;
+        double ratio = (Math.sqrt(5) - 1) / 2;
+
+        double c = b - ratio * (b - a), d = a + ratio * (b - a);
+        double fc = error(params, c), fd = error(params, d);
+        for (int i = 0; i < 30; i++) {
+            if (fc < fd) {
+                b  = d;
+                d  = c;
+                fd = fc;
+                c  = b - ratio * (b - a);
+                fc = error(params, c);
+            } else {
+                a  = c;
+                c  = d;
+                fc = fd;
+                d  = a + ratio * (b - a);
+                fd = error(params, d);
+            }
+        }
+
+        return (a + b) / 2;
+    }
+
+    /**
+     * Minimize the error by gradient descent with Adam
+     *
+     * @param initial Starting parameters
+     * @param k       Scale of the sigmoid
+     * @param epochs  Number of passes over the data
+     * @param rate    Step size in centipawns
+     * @return Tuned parameters, rounded
+     */
+    int[] tune(int[] initial, double k, int epochs, double rate) {
+        double[] params  = Arrays.stream(initial).asDoubleStream().toArray();
+        double[] grad    = new double[Evaluator.PARAM_COUNT];
+        double[] m       = new double[Evaluator.PARAM_COUNT];
+        double[] v       = new double[Evaluator.PARAM_COUNT];
+        float[]  weights = new float[WEIGHTS];
+        double   beta1   = 0.9, beta2 = 0.999;
+
+        for (int epoch = 1; epoch <= epochs; epoch++) {
+            long start = System.nanoTime();
+
+            weights(params, weights);
+            double[] result = pool.invoke(new Pass(data, weights, k, true, 0, data.size));
+
+            // Slot gradients to parameter gradients
+            Arrays.fill(grad, 0);
+            for (int type = 0; type < 6; type++) {
+                for (int square = 0; square < 64; square++) {
+                    int    mirrored = (7 - square / 8) * 8 + square % 8;
+                    double white    = result[(type + 1) << 6 | square] / data.size;
+                    double black    = result[(type + 1 + Position.BLACK) << 6 | square] / data.size;
+
+                    grad[Evaluator.MATERIAL + type]               += white - black;
+                    grad[Evaluator.PSQT + type * 64 + square]     += white;
+                    grad[Evaluator.PSQT + type * 64 + mirrored]   -= black;
+                }
+            }
+
+            // Kings are never captured in the data, so their value stays put
+            grad[Evaluator.MATERIAL + ChessPieceType.King.ordinal()] = 0;
+
+            for (int i = 0; i < params.length; i++) {
+                m[i] = beta1 * m[i] + (1 - beta1) * grad[i];
+                v[i] = beta2 * v[i] + (1 - beta2) * grad[i] * grad[i];
+
+                double mHat = m[i] / (1 - Math.pow(beta1, epoch));
+                double vHat = v[i] / (1 - Math.pow(beta2, epoch));
+                params[i] -= rate * mHat / (Math.sqrt(vHat) + 1e-12);
+            }
+
+            if (epoch == 1 || epoch % 10 == 0 || epoch == epochs) {
+                System.out.printf("Epoch %d: error %.6f, %.2f s%n", epoch, result[WEIGHTS] / data.size,
+                                  (System.nanoTime() - start) / 1e9);
+            }
+        }
+
+        int[] tuned = new int[params.length];
+        for (int i = 0; i < params.length; i++) tuned[i] = (int) Math.round(params[i]);
+        return tuned;
+    }
+
+    /**
+     * Read the positions of every game of a PGN file, labelled with the game's result
+     *
+     * @param skipPlies Number of opening moves whose positions are skipped
+     */
+    static Dataset readPgn(Path path, int skipPlies) throws IOException {
+        Dataset data = new Dataset();
+
+        try (PgnReader reader = new PgnReader(path)) {
+            reader.readAll(new PgnReplay() {
+                private int first = -1;
+
+                @Override
+                protected void onMove(Board board, Move move) {
+                    if (first < 0) first = data.size;
+                    if (board.plyCount >= skipPlies) data.add(board, 0);
+                }
+
+                @Override
+                protected void onGameEnd(String result, boolean valid) {
+                    float score = resultScore(result);
+
+                    if (first >= 0) {
+                        // Drop the game's positions if it has no result
+                        if (!valid || Float.isNaN(score)) data.size = first;
+                        else Arrays.fill(data.results, first, data.size, score);
+                    }
+                    first = -1;
+                }
+            });
+        }
+
+        return data;
+    }
+
+    /**
+     * Read lines of a FEN followed by a result
+     */
+    static Dataset readText(Path path) throws IOException {
+        Dataset data = new Dataset();
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                int space = line.lastIndexOf(' ');
+                if (space < 0) continue;
+
+                float score = resultScore(line.substring(space + 1));
+                if (Float.isNaN(score)) continue;
+
+                try {
+                    data.add(Fen.parse(line.substring(0, space)), score);
+                } catch (IllegalArgumentException ignored) {
+                    // Skip invalid positions
+                }
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * @param result Result such as "1-0", "[0.5]" or "\"1/2-1/2\";"
+     * @return Score of White, NaN if unknown
+     */
+    static float resultScore(String result) {
+        String text = result.replaceAll("[\\[\\]\";]", "");
+
+        switch (text) {
+            case "1-0":
+                return 1;
+            case "0-1":
+                return 0;
+            case "1/2-1/2":
+                return 0.5f;
+            default:
+                try {
+                    float score = Float.parseFloat(text);
+                    return score >= 0 && score <= 1 ? score : Float.NaN;
+                } catch (NumberFormatException e) {
+                    return Float.NaN;
+                }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Zobrist hashing of positions
+ * <p>
+ * A position hashes to the XOR of one random key per piece on its square, a key for Black to move, and a key for
+ * each castling right and the en passant file, if any. Keys come from a fixed seed, so hashes are stable across runs
+ * and can be stored in files.
+ */
+final class Zobrist {
+    // Keys by [color ordinal][type ordinal][row * 8 + col]
+    private static final long[][][] PIECE_KEYS = new long[2][ChessPieceType.values().length][64];
+    static final long               BLACK_TO_MOVE;
+    // Keys by Board.state, combined from one key per castling right and per en passant file
+    private static final long[]     STATE_KEYS = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x4A43475A4F42524CL);
+
+        for (long[][] colorKeys : PIECE_KEYS) {
+            for (long[] typeKeys : colorKeys) {
+                for (int square = 0; square < 64; square++) typeKeys[square] = random.nextLong();
+            }
+        }
+        BLACK_TO_MOVE = random.nextLong();
+
+        // Drawn after the other keys, which therefore keep their values
+        long[] castlingKeys  = new long[4];
+        long[] enPassantKeys = new long[8];
+        for (int i = 0; i < castlingKeys.length; i++) castlingKeys[i] = random.nextLong();
+        for (int i = 0; i < enPassantKeys.length; i++) enPassantKeys[i] = random.nextLong();
+
+        for (int state = 0; state < STATE_KEYS.length; state++) {
+            long key = 0;
+            for (int i = 0; i < castlingKeys.length; i++) {
+                if ((state & 1 << i) != 0) key ^= castlingKeys[i];
+            }
+            int file = Board.enPassantFile(state);
+            if (file >= 0 && file < 8) key ^= enPassantKeys[file];
+            STATE_KEYS[state] = key;
+        }
+    }
+
+    private Zobrist() {
+    }
+
+    /**
+     * @param board Board
+     * @return Hash of the position
+     */
+    static long hash(Board board) {
+        return hash(board.pieces, board.turnColor, board.state);
+    }
+
+    /**
+     * @param pieces    Map of pieces
+     * @param turnColor Color to move
+     * @param state     Castling rights and en passant file, as Board.state
+     * @return Hash of the position
+     */
+    static long hash(Map<Coordinates, Piece> pieces, ChessColorType turnColor, int state) {
+        long hash = (turnColor == ChessColorType.Black ? BLACK_TO_MOVE : 0) ^ stateKey(state);
+
+        for (Piece piece : pieces.values()) {
+            hash ^= pieceKey(piece.color, piece.type, piece.pos.square);
+        }
+
+        return hash;
+    }
+
+    /**
+     * @return Key of a piece on a square
+     */
+    static long pieceKey(ChessColorType color, ChessPieceType type, int square) {
+        return PIECE_KEYS[color.ordinal()][type.ordinal()][square];
+    }
+
+    /**
+     * @param state Castling rights and en passant file, as Board.state
+     * @return Key of the state; 0 without castling rights and en passant
+     */
+    static long stateKey(int state) {
+        return STATE_KEYS[state & 0xFF];
+    }
+}